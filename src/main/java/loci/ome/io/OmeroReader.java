@@ -33,9 +33,16 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import loci.common.Constants;
 import loci.common.DateTools;
@@ -96,6 +103,12 @@ public class OmeroReader extends FormatReader {
 
     public static final int DEFAULT_PORT = 4064;
 
+    /** Default number of bytes of tiles kept by {@link #openBytes}. */
+    public static final long DEFAULT_TILE_CACHE_SIZE = 64L * 1024 * 1024;
+
+    /** Most pixels stores kept open between calls to {@link #openBytes}. */
+    private static final int MAX_IDLE_STORES = 4;
+
     // -- Fields --
 
     private String server;
@@ -123,6 +136,32 @@ public class OmeroReader extends FormatReader {
     private Image img;
     private Pixels pix;
 
+    /** Stores for {@link #pix} not currently in use, for reuse. */
+    private final BlockingQueue<RawPixelsStorePrx> idleStores =
+            new ArrayBlockingQueue<RawPixelsStorePrx>(MAX_IDLE_STORES);
+
+    /** Changed on close so stores in use are then closed, not reused. */
+    private volatile int storeGeneration;
+
+    /**
+     * Recently read tiles by plane number, x, y, width and height, the
+     * least recently used first. Also guards the other tile cache fields.
+     */
+    private final LinkedHashMap<List<Integer>, byte[]> tileCache =
+            new LinkedHashMap<List<Integer>, byte[]>(16, 0.75f, true);
+    private long tileCacheSize = DEFAULT_TILE_CACHE_SIZE;
+    private long tileCacheUsed;
+
+    /**
+     * Tiles currently being read ahead, completed with the tile or with
+     * {@code null} if it could not be read.
+     */
+    private final Map<List<Integer>, CompletableFuture<byte[]>> readingAhead =
+            new HashMap<List<Integer>, CompletableFuture<byte[]>>();
+
+    /** Plane number, x, y, width and height of the last tile opened. */
+    private int[] lastTile;
+
     // -- Constructors --
 
     public OmeroReader() {
@@ -159,6 +198,19 @@ public class OmeroReader extends FormatReader {
         this.group = group;
     }
 
+    /**
+     * Sets how many bytes of tiles {@link #openBytes} may keep so that
+     * repeated and read-ahead tiles need not be fetched from the server.
+     * @param bytes the size of the tile cache, {@code 0} to disable it
+     * and reading ahead
+     */
+    public void setTileCacheSize(long bytes) {
+        synchronized (tileCache) {
+            tileCacheSize = Math.max(0, bytes);
+            evictTiles();
+        }
+    }
+
     public void setGroupID(Long groupID) {
         this.groupID = groupID;
     }
@@ -178,28 +230,28 @@ public class OmeroReader extends FormatReader {
         FormatTools.checkPlaneNumber(this, no);
         FormatTools.checkBufferSize(this, buf.length, w, h);
 
-        final int[] zct = FormatTools.getZCTCoords(this, no);
-
-        final byte[] plane;
-        RawPixelsStorePrx store = null;
-        try {
-            store = serviceFactory.createRawPixelsStore();
-            store.setPixelsId(pix.getId().getValue(), false);
-            plane = store.getTile(zct[0], zct[1], zct[2], x, y, w, h);
+        final List<Integer> key = Arrays.asList(no, x, y, w, h);
+        byte[] plane = cachedTile(key);
+        if (plane == null) {
+            plane = awaitReadAhead(key);
         }
-        catch (ServerError e) {
-            throw new FormatException(e);
-        } finally {
-            // cannot use try-with-resources
-            // RawPixelsStorePrx does not implement autocloseable
-            if (store != null) {
-                try {
-                    store.close();
-                } catch (Exception ex) {
-                    throw new FormatException(ex);
-                }
+        if (plane == null) {
+            final int[] zct = FormatTools.getZCTCoords(this, no);
+            final int generation = storeGeneration;
+            final RawPixelsStorePrx store = borrowStore();
+            boolean reuse = false;
+            try {
+                plane = store.getTile(zct[0], zct[1], zct[2], x, y, w, h);
+                reuse = true;
             }
+            catch (ServerError e) {
+                throw new FormatException(e);
+            } finally {
+                releaseStore(store, reuse, generation);
+            }
+            cacheTile(key, plane);
         }
+        readAhead(no, x, y, w, h);
 
         System.arraycopy(plane, 0, buf, 0, plane.length);
         return buf;
@@ -208,6 +260,17 @@ public class OmeroReader extends FormatReader {
     @Override
     public void close(boolean fileOnly) throws IOException {
         super.close(fileOnly);
+        storeGeneration++;
+        RawPixelsStorePrx store;
+        while ((store = idleStores.poll()) != null) {
+            closeStore(store);
+        }
+        synchronized (tileCache) {
+            tileCache.clear();
+            tileCacheUsed = 0;
+            readingAhead.clear();
+            lastTile = null;
+        }
         if (!fileOnly) {
             if (secureClient != null) {
                 secureClient.closeSession();
@@ -218,6 +281,222 @@ public class OmeroReader extends FormatReader {
         }
     }
 
+    // -- Helper methods --
+
+    /**
+     * @return an idle store for {@link #pix} or else a new one
+     */
+    private RawPixelsStorePrx borrowStore() throws FormatException {
+        final RawPixelsStorePrx idle = idleStores.poll();
+        if (idle != null) {
+            return idle;
+        }
+        RawPixelsStorePrx store = null;
+        try {
+            store = serviceFactory.createRawPixelsStore();
+            store.setPixelsId(pix.getId().getValue(), false);
+            return store;
+        } catch (ServerError e) {
+            if (store != null) {
+                closeStore(store);
+            }
+            throw new FormatException(e);
+        }
+    }
+
+    /**
+     * Keeps the store for reuse unless it failed, the reader was closed
+     * since it was borrowed, or enough stores are already idle.
+     */
+    private void releaseStore(RawPixelsStorePrx store, boolean reuse,
+            int generation) {
+        if (!reuse || generation != storeGeneration
+                || !idleStores.offer(store)) {
+            closeStore(store);
+        }
+    }
+
+    private void closeStore(RawPixelsStorePrx store) {
+        try {
+            store.close();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to close pixels store", e);
+        }
+    }
+
+    /**
+     * Waits for the tile if it is being read ahead rather than fetching it
+     * a second time.
+     * @return the tile, or {@code null} if it is not being read ahead or
+     * could not be read
+     */
+    private byte[] awaitReadAhead(List<Integer> key) throws FormatException {
+        final CompletableFuture<byte[]> future;
+        synchronized (tileCache) {
+            future = readingAhead.get(key);
+        }
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FormatException("Interrupted while reading tile", e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private byte[] cachedTile(List<Integer> key) {
+        synchronized (tileCache) {
+            return tileCache.get(key);
+        }
+    }
+
+    private void cacheTile(List<Integer> key, byte[] plane) {
+        synchronized (tileCache) {
+            if (plane.length > tileCacheSize) {
+                return;
+            }
+            final byte[] previous = tileCache.put(key, plane);
+            if (previous != null) {
+                tileCacheUsed -= previous.length;
+            }
+            tileCacheUsed += plane.length;
+            evictTiles();
+        }
+    }
+
+    /**
+     * Removes the least recently used tiles until the cache fits its size.
+     * Must be called while holding the lock on {@link #tileCache}.
+     */
+    private void evictTiles() {
+        final Iterator<Map.Entry<List<Integer>, byte[]>> tiles =
+                tileCache.entrySet().iterator();
+        while (tileCacheUsed > tileCacheSize && tiles.hasNext()) {
+            tileCacheUsed -= tiles.next().getValue().length;
+            tiles.remove();
+        }
+    }
+
+    /**
+     * If this tile continues the previous one across the plane or onto the
+     * next plane then starts fetching the following tile in the same
+     * direction into the cache, using an idle store if there is one.
+     */
+    private void readAhead(int no, int x, int y, int w, int h) {
+        int nextNo = no, nextX = x, nextY = y;
+        synchronized (tileCache) {
+            final int[] last = lastTile;
+            lastTile = new int[] {no, x, y, w, h};
+            if (tileCacheSize == 0 || last == null
+                    || last[3] != w || last[4] != h) {
+                return;
+            }
+            if (no == last[0] && y == last[2] && x == last[1] + w) {
+                nextX = x + w;
+            } else if (no == last[0] && x == last[1] && y == last[2] + h) {
+                nextY = y + h;
+            } else if (no == last[0] + 1 && x == last[1] && y == last[2]) {
+                nextNo = no + 1;
+            } else {
+                return;
+            }
+        }
+        if (nextNo >= getImageCount() || nextX >= getSizeX()
+                || nextY >= getSizeY()) {
+            return;
+        }
+        final int nextW = Math.min(w, getSizeX() - nextX);
+        final int nextH = Math.min(h, getSizeY() - nextY);
+        if ((long) nextW * nextH * FormatTools.getBytesPerPixel(getPixelType())
+                > tileCacheSize) {
+            return; // would not be cached anyway
+        }
+        final List<Integer> key = Arrays.asList(nextNo, nextX, nextY, nextW, nextH);
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        synchronized (tileCache) {
+            if (tileCache.containsKey(key) || readingAhead.containsKey(key)) {
+                return;
+            }
+            readingAhead.put(key, future);
+        }
+        final int generation = storeGeneration;
+        final RawPixelsStorePrx store = idleStores.poll();
+        if (store == null) {
+            readAheadDone(key, future, null);
+            return;
+        }
+        final int[] zct = FormatTools.getZCTCoords(this, nextNo);
+        try {
+            store.begin_getTile(zct[0], zct[1], zct[2], nextX, nextY, nextW, nextH,
+                    new Ice.Callback() {
+                        @Override
+                        public void completed(Ice.AsyncResult r) {
+                            boolean reuse = false;
+                            byte[] plane = null;
+                            try {
+                                plane = store.end_getTile(r);
+                                reuse = true;
+                                if (generation == storeGeneration) {
+                                    cacheTile(key, plane);
+                                }
+                            } catch (Exception e) {
+                                LOGGER.debug("Failed to read ahead tile {}", key, e);
+                            } finally {
+                                readAheadDone(key, future, plane);
+                                releaseStore(store, reuse, generation);
+                            }
+                        }
+                    });
+        } catch (RuntimeException e) {
+            LOGGER.debug("Failed to read ahead tile {}", key, e);
+            readAheadDone(key, future, null);
+            releaseStore(store, false, generation);
+        }
+    }
+
+    /**
+     * Ends the reading ahead of a tile, passing it to any waiting call of
+     * {@link #openBytes}.
+     */
+    private void readAheadDone(List<Integer> key, CompletableFuture<byte[]> future,
+            byte[] plane) {
+        synchronized (tileCache) {
+            if (readingAhead.get(key) == future) {
+                readingAhead.remove(key);
+            }
+        }
+        future.complete(plane);
+    }
+
+    /**
+     * Sets the pixels to read through the given session and the core
+     * metadata which describes them.
+     */
+    void initPixels(ServiceFactoryPrx serviceFactory, Pixels pix) {
+        this.serviceFactory = serviceFactory;
+        this.pix = pix;
+        final int sizeZ = pix.getSizeZ().getValue();
+        final int sizeC = pix.getSizeC().getValue();
+        final int sizeT = pix.getSizeT().getValue();
+        final String pixelType = pix.getPixelsType().getValue().getValue();
+
+        CoreMetadata m = core.get(0);
+        m.sizeX = pix.getSizeX().getValue();
+        m.sizeY = pix.getSizeY().getValue();
+        m.sizeZ = sizeZ;
+        m.sizeC = sizeC;
+        m.sizeT = sizeT;
+        m.rgb = false;
+        m.littleEndian = false;
+        m.dimensionOrder = omero.model.enums.DimensionOrderXYZCT.value;
+        m.imageCount = sizeZ * sizeC * sizeT;
+        m.pixelType = FormatTools.pixelTypeFromString(pixelType);
+    }
+
     @Override
     protected void initFile(String id) throws FormatException, IOException {
         LOGGER.debug("OmeroReader.initFile({})", id);
@@ -345,30 +624,12 @@ public class OmeroReader extends FormatReader {
 
             long pixelsId = img.getPixels(0).getId().getValue();
 
-            pix = serviceFactory.getPixelsService().retrievePixDescription(pixelsId);
-
-            final int sizeX = pix.getSizeX().getValue();
-            final int sizeY = pix.getSizeY().getValue();
-            final int sizeZ = pix.getSizeZ().getValue();
-            final int sizeC = pix.getSizeC().getValue();
-            final int sizeT = pix.getSizeT().getValue();
-            final String pixelType = pix.getPixelsType().getValue().getValue();
-
             // populate metadata
 
             LOGGER.info("Populating metadata");
 
-            CoreMetadata m = core.get(0);
-            m.sizeX = sizeX;
-            m.sizeY = sizeY;
-            m.sizeZ = sizeZ;
-            m.sizeC = sizeC;
-            m.sizeT = sizeT;
-            m.rgb = false;
-            m.littleEndian = false;
-            m.dimensionOrder = omero.model.enums.DimensionOrderXYZCT.value;
-            m.imageCount = sizeZ * sizeC * sizeT;
-            m.pixelType = FormatTools.pixelTypeFromString(pixelType);
+            initPixels(serviceFactory,
+                    serviceFactory.getPixelsService().retrievePixDescription(pixelsId));
 
             Length x = pix.getPhysicalSizeX();
             Length y = pix.getPhysicalSizeY();
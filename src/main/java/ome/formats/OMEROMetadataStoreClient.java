@@ -37,10 +37,12 @@ import static ome.formats.model.UnitsFactory.convertPressure;
 import static ome.formats.model.UnitsFactory.convertTemperature;
 import static ome.formats.model.UnitsFactory.convertTime;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -48,7 +50,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.Map.Entry;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -63,6 +64,7 @@ import ome.formats.importer.ImportEvent;
 import ome.formats.importer.util.ClientKeepAlive;
 import ome.formats.model.BlitzInstanceProvider;
 import ome.formats.model.ChannelProcessor;
+import ome.formats.model.IObjectContainerCache;
 import ome.formats.model.IObjectContainerStore;
 import ome.formats.model.InstanceProvider;
 import ome.formats.model.InstrumentProcessor;
@@ -246,8 +248,7 @@ public class OMEROMetadataStoreClient
     private Long groupID = null;
 
     /** Our IObject container cache. */
-    private Map<LSID, IObjectContainer> containerCache =
-        new TreeMap<LSID, IObjectContainer>(new OMEXMLModelComparator());
+    private IObjectContainerCache containerCache = new IObjectContainerCache();
 
     /** Our LSID reference cache. */
     private Map<LSID, List<LSID>> referenceCache =
@@ -325,6 +326,12 @@ public class OMEROMetadataStoreClient
     /** Image channel minimums and maximums. */
     private double[][][] imageChannelGlobalMinMax;
 
+    /**
+     * How many batches of containers and references may be sent but not yet
+     * acknowledged during {@link #saveToDB(FilesetJobLink)}.
+     */
+    private int saveBatchesInFlight = 1;
+
     /** Executor that will run our keep alive task. */
     private ScheduledThreadPoolExecutor executor;
 
@@ -342,6 +349,18 @@ public class OMEROMetadataStoreClient
     public static final String OMERO_EXCITATION_FILTER_SUFFIX =
         ":OMERO_EXCITATION_FILTER";
 
+    /**
+     * Request context key under which {@link #saveToDB(FilesetJobLink)}
+     * numbers the batches that it streams to the server so that they are
+     * applied in the order sent, however many are in flight.
+     * @see omero.constants.METADATASEQUENCE
+     */
+    public static final String SEQUENCE_CONTEXT = omero.constants.METADATASEQUENCE.value;
+
+    /** Time that each streamed batch is sized to take the server to apply. */
+    private static final long TARGET_BATCH_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(500);
+
     /** The default longest side of a thumbnail in OMERO.insight. */
     private static final int DEFAULT_INSIGHT_THUMBNAIL_LONGEST_SIDE = 96;
 
@@ -535,6 +554,35 @@ public class OMEROMetadataStoreClient
     }
 
 
+    /**
+     * Sets how many batches {@link #saveToDB(FilesetJobLink)} may have in
+     * flight. With more than one, the container and reference caches are
+     * streamed to the server asynchronously and emptied as they are sent,
+     * and the size of each batch adapts to how long the server takes to
+     * apply its predecessors. One sends fixed size batches of
+     * {@link #getDefaultBatchSize()} synchronously and leaves the caches
+     * intact.
+     * @param saveBatchesInFlight at least one
+     */
+    public void setSaveBatchesInFlight(int saveBatchesInFlight)
+    {
+        if (saveBatchesInFlight < 1)
+        {
+            throw new IllegalArgumentException(
+                    "at least one batch must be allowed in flight");
+        }
+        this.saveBatchesInFlight = saveBatchesInFlight;
+    }
+
+    /**
+     * @return how many batches {@link #saveToDB(FilesetJobLink)} may have in
+     * flight
+     */
+    public int getSaveBatchesInFlight()
+    {
+        return saveBatchesInFlight;
+    }
+
     public void setEncryptedConnection(boolean encryptedConnection) {
         this.encryptedConnection = encryptedConnection;
     }
@@ -1268,8 +1316,7 @@ public class OMEROMetadataStoreClient
             initializeServices(false); // Reset group
             authoritativeContainerCache =
                 new HashMap<Class<? extends IObject>, Map<String, IObjectContainer>>();
-            containerCache =
-                new TreeMap<LSID, IObjectContainer>(new OMEXMLModelComparator());
+            containerCache = new IObjectContainerCache();
             referenceCache = new HashMap<LSID, List<LSID>>();
             referenceCacheCheck = new HashMap<LSID, Set<LSID>>();
             referenceStringCache = null;
@@ -1852,7 +1899,10 @@ public class OMEROMetadataStoreClient
 
     /**
      * Updates the server side MetadataStore with a list of our objects and
-     * references and saves them into the database.
+     * references and saves them into the database. If more than one batch
+     * may be in flight, the container and reference caches are streamed and
+     * only the Image and Pixels containers are kept, see
+     * {@link #setSaveBatchesInFlight(int)}.
      * @param link the link to save to the database
      * @return List of Pixels after database commit.
      */
@@ -1861,10 +1911,6 @@ public class OMEROMetadataStoreClient
     {
         try
         {
-            Collection<IObjectContainer> containers = containerCache.values();
-            IObjectContainer[] containerArray =
-                containers.toArray(new IObjectContainer[containers.size()]);
-
             if (log.isDebugEnabled())
             {
                 log.debug("Starting containers....");
@@ -1892,51 +1938,62 @@ public class OMEROMetadataStoreClient
                           + " entries.");
             }
 
-            int maxBatchSize = getDefaultBatchSize();
-            int containerBatchCount = 0;
-            int containerPointer = 0;
-            log.info("Handling # of containers: {}", containerArray.length);
-            while (containerPointer < containerArray.length)
+            if (saveBatchesInFlight > 1)
+            {
+                streamToDB();
+            }
+            else
             {
-                int nObjects = (int) Math.min(
-                    maxBatchSize, containerArray.length - containerPointer);
+                Collection<IObjectContainer> containers = containerCache.values();
+                IObjectContainer[] containerArray =
+                    containers.toArray(new IObjectContainer[containers.size()]);
+
+                int maxBatchSize = getDefaultBatchSize();
+                int containerBatchCount = 0;
+                int containerPointer = 0;
+                log.info("Handling # of containers: {}", containerArray.length);
+                while (containerPointer < containerArray.length)
+                {
+                    int nObjects = (int) Math.min(
+                        maxBatchSize, containerArray.length - containerPointer);
 
-                IObjectContainer[] batch = Arrays.copyOfRange(
-                        containerArray, containerPointer, containerPointer+nObjects);
+                    IObjectContainer[] batch = Arrays.copyOfRange(
+                            containerArray, containerPointer, containerPointer+nObjects);
 
-                delegate.updateObjects(batch);
-                containerPointer += nObjects;
+                    delegate.updateObjects(batch);
+                    containerPointer += nObjects;
 
-                containerBatchCount += 1;
-                if (containerBatchCount > 1)
-                {
-                    log.info("Starting containerBatch #{}", containerBatchCount);
+                    containerBatchCount += 1;
+                    if (containerBatchCount > 1)
+                    {
+                        log.info("Starting containerBatch #{}", containerBatchCount);
+                    }
                 }
-            }
 
-            int referenceBatchCount = 0;
-            int referencePointer = 0;
-            String[] referenceKeys = referenceStringCache.keySet().toArray(
-              new String[referenceStringCache.size()]);
+                int referenceBatchCount = 0;
+                int referencePointer = 0;
+                String[] referenceKeys = referenceStringCache.keySet().toArray(
+                  new String[referenceStringCache.size()]);
 
-            log.info("Handling # of references: {}", referenceKeys.length);
-            while (referencePointer < referenceKeys.length) {
+                log.info("Handling # of references: {}", referenceKeys.length);
+                while (referencePointer < referenceKeys.length) {
 
-                referenceBatchCount += 1;
-                if (referenceBatchCount > 1)
-                {
-                    log.info("Starting referenceBatch #{}", referenceBatchCount);
-                }
+                    referenceBatchCount += 1;
+                    if (referenceBatchCount > 1)
+                    {
+                        log.info("Starting referenceBatch #{}", referenceBatchCount);
+                    }
 
-                Map<String, String[]> referenceBatch = new HashMap<String, String[]>();
-                int batchSize = (int) Math.min(
-                    maxBatchSize, referenceKeys.length - referencePointer);
-                for (int i=0; i<batchSize; i++) {
-                    String key = referenceKeys[referencePointer + i];
-                    referenceBatch.put(key, referenceStringCache.get(key));
+                    Map<String, String[]> referenceBatch = new HashMap<String, String[]>();
+                    int batchSize = (int) Math.min(
+                        maxBatchSize, referenceKeys.length - referencePointer);
+                    for (int i=0; i<batchSize; i++) {
+                        String key = referenceKeys[referencePointer + i];
+                        referenceBatch.put(key, referenceStringCache.get(key));
+                    }
+                    delegate.updateReferences(referenceBatch);
+                    referencePointer += batchSize;
                 }
-                delegate.updateReferences(referenceBatch);
-                referencePointer += batchSize;
             }
 
             Map<String, List<IObject>> rv = delegate.saveToDB(link);
@@ -1959,6 +2016,211 @@ public class OMEROMetadataStoreClient
         }
     }
 
+    /**
+     * Streams the container and reference caches to the server in batches,
+     * keeping up to {@link #saveBatchesInFlight} of them unacknowledged. The
+     * batches are numbered under {@link #SEQUENCE_CONTEXT} so that the
+     * server applies them in order, all containers before any references.
+     * Entries are removed from the caches once their batch has been
+     * acknowledged so that they may be collected, except for the Image and
+     * Pixels containers which are still needed after the save, e.g. by
+     * {@link #setChannelGlobalMinMax(int, double, double, int)}.
+     * @throws ServerError if the server failed to apply a batch
+     */
+    private void streamToDB() throws ServerError
+    {
+        final Deque<StreamedBatch> inFlight =
+            new ArrayDeque<StreamedBatch>(saveBatchesInFlight);
+        final BatchSizer containerSizer = new BatchSizer(getDefaultBatchSize());
+        final BatchSizer referenceSizer = new BatchSizer(getDefaultBatchSize());
+        long sequence = 0;
+        long lastAcknowledged = 0;
+
+        log.info("Streaming # of containers: {}", containerCache.size());
+        final Iterator<LSID> containers =
+            new ArrayList<LSID>(containerCache.keySet()).iterator();
+        while (containers.hasNext())
+        {
+            if (inFlight.size() >= saveBatchesInFlight)
+            {
+                lastAcknowledged =
+                    acknowledge(inFlight.removeFirst(), lastAcknowledged);
+            }
+            final int size = containerSizer.getSize();
+            final List<IObjectContainer> batch =
+                new ArrayList<IObjectContainer>(size);
+            final List<Object> release = new ArrayList<Object>(size);
+            while (batch.size() < size && containers.hasNext())
+            {
+                final LSID key = containers.next();
+                batch.add(containerCache.get(key));
+                final Class<?> klass = key.getJavaClass();
+                if (!Image.class.equals(klass) && !Pixels.class.equals(klass))
+                {
+                    release.add(key);
+                }
+            }
+            final StreamedBatch sent =
+                new StreamedBatch(containerSizer, batch.size(), false, release);
+            sent.result = delegate.begin_updateObjects(
+                    batch.toArray(new IObjectContainer[batch.size()]),
+                    sequenceContext(sequence++), sent);
+            inFlight.addLast(sent);
+        }
+
+        log.info("Streaming # of references: {}", referenceStringCache.size());
+        final Iterator<String> references =
+            new ArrayList<String>(referenceStringCache.keySet()).iterator();
+        while (references.hasNext())
+        {
+            if (inFlight.size() >= saveBatchesInFlight)
+            {
+                lastAcknowledged =
+                    acknowledge(inFlight.removeFirst(), lastAcknowledged);
+            }
+            final int size = referenceSizer.getSize();
+            final Map<String, String[]> batch = new HashMap<String, String[]>();
+            while (batch.size() < size && references.hasNext())
+            {
+                final String key = references.next();
+                batch.put(key, referenceStringCache.get(key));
+            }
+            final StreamedBatch sent = new StreamedBatch(referenceSizer,
+                    batch.size(), true, new ArrayList<Object>(batch.keySet()));
+            sent.result = delegate.begin_updateReferences(
+                    batch, sequenceContext(sequence++), sent);
+            inFlight.addLast(sent);
+        }
+
+        while (!inFlight.isEmpty())
+        {
+            lastAcknowledged =
+                acknowledge(inFlight.removeFirst(), lastAcknowledged);
+        }
+        log.info("Streamed {} batches", sequence);
+    }
+
+    /**
+     * @return the request context for the numbered batch
+     */
+    private Map<String, String> sequenceContext(long sequence)
+    {
+        final Map<String, String> ctx =
+            new HashMap<String, String>(delegate.ice_getContext());
+        ctx.put(SEQUENCE_CONTEXT, Long.toString(sequence));
+        return ctx;
+    }
+
+    /**
+     * Waits for the server to acknowledge a streamed batch and passes the
+     * time that the server spent on it to the batch's sizer. Batches are
+     * applied in turn so that time is measured from the later of when the
+     * batch was sent and when its predecessor was acknowledged.
+     * @return when the batch was acknowledged, as per
+     * {@link System#nanoTime()}
+     * @throws ServerError if the server failed to apply the batch
+     */
+    private long acknowledge(StreamedBatch batch, long lastAcknowledged)
+        throws ServerError
+    {
+        if (batch.references)
+        {
+            delegate.end_updateReferences(batch.result);
+        }
+        else
+        {
+            delegate.end_updateObjects(batch.result);
+        }
+        for (final Object key : batch.release)
+        {
+            if (batch.references)
+            {
+                referenceStringCache.remove(key);
+            }
+            else
+            {
+                containerCache.remove(key);
+            }
+        }
+        long acknowledged = batch.acknowledged;
+        if (acknowledged == 0)
+        {
+            // completed() may not yet have run
+            acknowledged = System.nanoTime();
+        }
+        batch.sizer.acknowledged(batch.size,
+                acknowledged - Math.max(batch.sent, lastAcknowledged));
+        return acknowledged;
+    }
+
+    /**
+     * A batch sent by {@link #streamToDB()} and not yet acknowledged.
+     */
+    private static class StreamedBatch extends Ice.Callback
+    {
+        final BatchSizer sizer;
+
+        final int size;
+
+        final boolean references;
+
+        /** The cache keys to remove once acknowledged. */
+        final List<Object> release;
+
+        final long sent = System.nanoTime();
+
+        volatile long acknowledged;
+
+        Ice.AsyncResult result;
+
+        StreamedBatch(BatchSizer sizer, int size, boolean references,
+                List<Object> release)
+        {
+            this.sizer = sizer;
+            this.size = size;
+            this.references = references;
+            this.release = release;
+        }
+
+        @Override
+        public void completed(Ice.AsyncResult r)
+        {
+            acknowledged = System.nanoTime();
+        }
+    }
+
+    /**
+     * Sizes the batches sent by {@link #streamToDB()} so that each takes the
+     * server roughly {@link #TARGET_BATCH_NANOS} to apply, whatever the
+     * marshalled size of its entries. The size changes by at most a factor
+     * of two per batch and never exceeds four times the initial size.
+     */
+    private static class BatchSizer
+    {
+        private final int max;
+
+        private int size;
+
+        BatchSizer(int initial)
+        {
+            size = Math.max(1, initial);
+            max = size * 4;
+        }
+
+        int getSize()
+        {
+            return size;
+        }
+
+        void acknowledged(int count, long nanos)
+        {
+            long ideal = nanos > 0 ? TARGET_BATCH_NANOS * count / nanos : max;
+            ideal = Math.max(ideal, size / 2);
+            ideal = Math.min(ideal, size * 2L);
+            size = (int) Math.max(1, Math.min(max, ideal));
+        }
+    }
+
     public List<InteractiveProcessorPrx> launchProcessing()
     {
         try {
@@ -2476,20 +2738,9 @@ public class OMEROMetadataStoreClient
     /* (non-Javadoc)
      * @see ome.formats.model.IObjectContainerStore#getIObjectContainers(java.lang.Class)
      */
-    @SuppressWarnings("unchecked")
     public List<IObjectContainer> getIObjectContainers(Class<? extends IObject> klass)
     {
-        Set<LSID> keys = containerCache.keySet();
-        List<IObjectContainer> toReturn = new ArrayList<IObjectContainer>();
-        for (LSID key : keys)
-        {
-            Class<? extends IObject> keyClass = key.getJavaClass();
-            if (keyClass != null && keyClass.equals(klass))
-            {
-                toReturn.add(containerCache.get(key));
-            }
-        }
-        return toReturn;
+        return containerCache.getContainers(klass);
     }
 
     /**
@@ -2506,7 +2757,6 @@ public class OMEROMetadataStoreClient
     /* (non-Javadoc)
      * @see ome.formats.model.IObjectContainerStore#countCachedContainers(java.lang.Class, int[])
      */
-    @SuppressWarnings("unchecked")
     public int countCachedContainers(Class<? extends IObject> klass,
                                      int... indexes)
     {
@@ -2514,41 +2764,7 @@ public class OMEROMetadataStoreClient
         {
             return new HashSet<IObjectContainer>(containerCache.values()).size();
         }
-
-        int count = 0;
-        for (LSID lsid : containerCache.keySet())
-        {
-            Class<? extends IObject> lsidClass = lsid.getJavaClass();
-            if (lsidClass != null && lsidClass.equals(klass))
-            {
-                if (indexes == null)
-                {
-                    // We're just doing a class match, increment the count
-                    count++;
-                }
-                else
-                {
-                    // We're doing a class and index match, loop over and
-                    // check the indexes based on the shortest array.
-                    int[] lsidIndexes = lsid.getIndexes();
-                    int n = Math.min(indexes.length, lsidIndexes.length);
-                    boolean match = true;
-                    for (int i = 0; i < n; i++)
-                    {
-                        if (lsidIndexes[i] != indexes[i])
-                        {
-                            match = false;
-                            break;
-                        }
-                    }
-                    if (match)
-                    {
-                        count++;
-                    }
-                }
-            }
-        }
-        return count;
+        return containerCache.count(klass, indexes);
     }
 
     /* (non-Javadoc)
@@ -7,14 +7,33 @@ package ome.formats.importer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static omero.rtypes.rint;
 import static omero.rtypes.rstring;
@@ -29,6 +48,7 @@ import loci.formats.in.DynamicMetadataOptions;
 import loci.formats.in.MetadataLevel;
 import ome.formats.ImageNameMetadataStore;
 import ome.formats.importer.util.ErrorHandler;
+import ome.formats.importer.util.ScanCache;
 
 import org.apache.commons.io.DirectoryWalker;
 import org.apache.commons.io.filefilter.TrueFileFilter;
@@ -114,8 +134,43 @@ public class ImportCandidates extends DirectoryWalker
         MetadataLevel.valueOf(System.getProperty(
                 "omero.import.metadata.level","MINIMUM"));
 
+    /**
+     * A file found while listing the paths for a parallel scan.
+     */
+    private static class ScannedFile
+    {
+        final File file;
+        final int depth;
+
+        ScannedFile(File file, int depth)
+        {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The outcome of parsing a file on a worker thread during a parallel
+     * scan. The events are raised by the scanning thread once the file's
+     * turn comes, so observers see them in the same order as for a serial
+     * scan.
+     */
+    private static class ParsedFile
+    {
+        /** If the file was already used by a file parsed ahead of it. */
+        boolean claimed = false;
+        ImportContainer container;
+        final List<ImportEvent> events = new ArrayList<ImportEvent>();
+        /** The pooled reader for the file while it is being parsed. */
+        OMEROWrapper reader;
+    }
+
     final private IObserver observer;
     final private OMEROWrapper reader;
+    final private int depth;
+    final private ScanCache scanCache;
+    /** The file that a worker thread of a parallel scan is parsing. */
+    final private ThreadLocal<ParsedFile> parsing = new ThreadLocal<ParsedFile>();
     final private Set<String> allFiles = new HashSet<String>();
     final private Map<String, List<String>> usedBy = new LinkedHashMap<String, List<String>>();
     final private List<ImportContainer> containers = new ArrayList<ImportContainer>();
@@ -196,6 +251,8 @@ public class ImportCandidates extends DirectoryWalker
         super(TrueFileFilter.INSTANCE, depth);
         this.reader = reader;
         this.observer = observer;
+        this.depth = depth;
+        this.scanCache = createScanCache(reader.getConfig());
         log.info(String.format("Depth: %s Metadata Level: %s", depth,
                 METADATA_LEVEL));
 
@@ -214,14 +271,30 @@ public class ImportCandidates extends DirectoryWalker
             return;
         }
 
+        final int scanThreads = reader.getConfig() == null ? 1
+                : reader.getConfig().parallelScan.get();
         Groups g;
         try {
-            execute(paths);
-            total = count;
-            count = 0;
-            execute(paths);
+            if (scanThreads > 1)
+            {
+                executeInParallel(paths, scanThreads);
+            } else
+            {
+                execute(paths);
+                total = count;
+                count = 0;
+                execute(paths);
+            }
             g = new Groups(usedBy);
             g.parse(containers);
+            if (scanCache != null)
+            {
+                try {
+                    scanCache.save(paths);
+                } catch (IOException e) {
+                    log.warn("Failed to save scan cache", e);
+                }
+            }
             long totalElapsed = System.currentTimeMillis() - start;
             log.info(String.format("%s file(s) parsed into "
                     + "%s group(s) with %s call(s) to setId in "
@@ -242,6 +315,23 @@ public class ImportCandidates extends DirectoryWalker
 
     }
 
+    /**
+     * Opens the scan cache named by {@link ImportConfig#scanCache}, if any.
+     * Entries are only valid for the same Bio-Formats version, metadata
+     * level and list of readers.
+     */
+    private static ScanCache createScanCache(ImportConfig config)
+    {
+        if (config == null || config.scanCache.empty())
+        {
+            return null;
+        }
+        final String readers = config.readersPath.empty() ? ""
+                : config.readersPath.get();
+        return new ScanCache(new File(config.scanCache.get()),
+                FormatTools.VERSION + ";" + METADATA_LEVEL + ";" + readers);
+    }
+
     /**
      * Prints the "standard" representation of the groups, which is parsed by
      * other software layers. The format is: 1) any empty lines are ignored, 2)
@@ -394,11 +484,253 @@ public class ImportCandidates extends DirectoryWalker
     }
 
     /**
-     * Return an import container for a single file
+     * Alternative to the two passes of {@link #execute(String[])} used when
+     * {@link ImportConfig#parallelScan} is greater than one. The paths are
+     * listed once with NIO, in the same order as by {@link #walk(File,
+     * Collection)}, after which the files are parsed by a pool of readers.
+     * The results are merged in listing order exactly as
+     * {@link #handleFile(File, int, Collection)} would have, so the
+     * containers found are the same as for a serial scan. A file may be
+     * parsed ahead of its turn only to find that it is used by an earlier
+     * file; that work is then discarded.
+     *
+     * @param paths file paths which are searched. May be directories.
+     * @param threads how many files may be parsed at once
+     */
+    private void executeInParallel(String[] paths, int threads)
+    {
+        final List<ScannedFile> files = new ArrayList<ScannedFile>();
+        for (String string : paths)
+        {
+            final File f = new File(string);
+            if (f.isDirectory())
+            {
+                list(f.toPath(), files);
+            } else
+            {
+                count++;
+                files.add(new ScannedFile(f, 0));
+            }
+            scanWithCancel(f, 0);
+        }
+        total = count;
+        count = 0;
+
+        final ImportConfig config = reader.getConfig();
+        final BlockingQueue<OMEROWrapper> readers =
+                new ArrayBlockingQueue<OMEROWrapper>(threads);
+        readers.add(reader);
+        for (int i = 1; i < threads; i++)
+        {
+            readers.add(new OMEROWrapper(config));
+        }
+        final Set<String> claimed = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Deque<Future<ParsedFile>> pending =
+                new ArrayDeque<Future<ParsedFile>>();
+        final int window = threads * 4;
+        int submitted = 0;
+        try
+        {
+            for (int i = 0; i < files.size(); i++)
+            {
+                while (submitted < files.size() && submitted < i + window)
+                {
+                    final File file = files.get(submitted++).file;
+                    pending.addLast(pool.submit(new Callable<ParsedFile>() {
+                        @Override
+                        public ParsedFile call() throws Exception
+                        {
+                            return parse(file, config, readers, claimed);
+                        }
+                    }));
+                }
+                final ScannedFile scanned = files.get(i);
+                final Future<ParsedFile> future = pending.removeFirst();
+
+                count++;
+                if (scanned.file.getName().startsWith("."))
+                {
+                    continue; // Omitting dot files.
+                }
+                if (count%100 == 0)
+                {
+                    scanWithCancel(scanned.file, scanned.depth);
+                }
+                if (allFiles.contains(scanned.file.getAbsolutePath()))
+                {
+                    future.cancel(false);
+                    continue;
+                }
+
+                ParsedFile parsed = future.get();
+                if (parsed.claimed)
+                {
+                    // Claimed by a later file, so parse it in its turn.
+                    parsed = parse(scanned.file, config, readers, null);
+                }
+                for (ImportEvent event : parsed.events)
+                {
+                    safeUpdate(event);
+                }
+                if (parsed.container != null)
+                {
+                    addContainer(scanned.file, parsed.container);
+                }
+            }
+        } catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new CANCEL();
+        } catch (ExecutionException ee)
+        {
+            throw new RuntimeException(ee.getCause());
+        } finally
+        {
+            for (Future<ParsedFile> future : pending)
+            {
+                future.cancel(true);
+            }
+            pool.shutdownNow();
+            try
+            {
+                // readers must not be closed beneath running workers
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+            for (OMEROWrapper pooled : readers)
+            {
+                if (pooled != reader)
+                {
+                    try
+                    {
+                        pooled.close();
+                    } catch (IOException e)
+                    {
+                        log.warn("Failed to close reader", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the files under a directory down to {@link #depth}, counting
+     * them and raising {@link SCANNING} events as the first pass of
+     * {@link #execute(String[])} would.
+     */
+    private void list(final Path dir, final List<ScannedFile> files)
+    {
+        try
+        {
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                    depth < 0 ? Integer.MAX_VALUE : depth,
+                    new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path,
+                        BasicFileAttributes attrs)
+                {
+                    if (!attrs.isDirectory())
+                    {
+                        final File file = path.toFile();
+                        final int d = dir.relativize(path).getNameCount();
+                        count++;
+                        files.add(new ScannedFile(file, d));
+                        if (!file.getName().startsWith(".") && count%100 == 0)
+                        {
+                            scanWithCancel(file, d);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path,
+                        IOException exc)
+                {
+                    log.debug("Skipping unlistable path: {}", path, exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parses a file with a reader from the pool.
+     *
+     * @param claimed files used by those already parsed, or {@code null} if
+     *            the file must be parsed regardless
+     */
+    private ParsedFile parse(File file, ImportConfig config,
+            BlockingQueue<OMEROWrapper> readers, Set<String> claimed)
+        throws InterruptedException
+    {
+        final ParsedFile parsed = new ParsedFile();
+        if (file.getName().startsWith("."))
+        {
+            return parsed;
+        }
+        if (claimed != null && claimed.contains(file.getAbsolutePath()))
+        {
+            parsed.claimed = true;
+            return parsed;
+        }
+        parsed.reader = readers.take();
+        parsing.set(parsed);
+        try
+        {
+            parsed.container = singleFile(file, config);
+        } finally
+        {
+            parsing.remove();
+            readers.put(parsed.reader);
+            parsed.reader = null;
+        }
+        if (claimed != null && parsed.container != null)
+        {
+            claimed.addAll(Arrays.asList(parsed.container.getUsedFiles()));
+        }
+        return parsed;
+    }
+
+    /**
+     * Return an import container for a single file. During a parallel scan,
+     * see {@link ImportConfig#parallelScan}, this is called concurrently by
+     * several threads, each of which this method gives its own reader and
+     * whose events it holds back until the file's turn, so overrides must
+     * be thread-safe.
      * @param file - single file
      * @return importer container
      */
     protected ImportContainer singleFile(File file, ImportConfig config)
+    {
+        final ParsedFile parsed = parsing.get();
+        if (parsed != null)
+        {
+            return singleFile(file, config, parsed.reader, parsed.events);
+        }
+        final List<ImportEvent> events = new ArrayList<ImportEvent>();
+        final ImportContainer ic = singleFile(file, config, reader, events);
+        for (ImportEvent event : events)
+        {
+            safeUpdate(event);
+        }
+        return ic;
+    }
+
+    /**
+     * Return an import container for a single file, parsed with the given
+     * reader. Any events for the observer are added to the given list
+     * rather than raised so that this may be called from any thread.
+     */
+    private ImportContainer singleFile(File file, ImportConfig config,
+            OMEROWrapper reader, List<ImportEvent> events)
     {
 
         if (file == null) {
@@ -408,57 +740,68 @@ public class ImportCandidates extends DirectoryWalker
 
         final String path = file.getAbsolutePath();
         if (!file.exists() || !file.canRead()) {
-            safeUpdate(new ErrorHandler.UNREADABLE_FILE(path,
+            events.add(new ErrorHandler.UNREADABLE_FILE(path,
                 new java.io.FileNotFoundException(path), this));
             return null;
         }
 
+        if (scanCache != null) {
+            final ScanCache.Entry cached = scanCache.lookup(file);
+            if (cached != null) {
+                return createContainer(config, file, cached.reader,
+                        cached.usedFiles.clone(), cached.isSPW);
+            }
+        }
+
         String format = null;
         String[] usedFiles = new String[] { path };
         long start = System.currentTimeMillis();
         try {
 
             try {
-                setids++;
+                synchronized (this) {
+                    setids++;
+                }
                 reader.close();
                 reader.setMetadataStore(new ImageNameMetadataStore());
                 reader.setMetadataOptions(
                         new DynamicMetadataOptions(METADATA_LEVEL));
                 reader.setId(path);
                 format = reader.getFormat();
-                usedFiles = getOrderedFiles();
+                usedFiles = getOrderedFiles(reader);
                 String[] domains = reader.getReader().getDomains();
                 boolean isSPW = Arrays.asList(domains).contains(FormatTools.HCS_DOMAIN);
 
                 final String readerClassName = reader.unwrap().getClass().getCanonicalName();
-                ImportContainer ic = new ImportContainer(config,
-                        file, null, null,
-                        readerClassName, usedFiles, isSPW);
-                ic.setDoThumbnails(config.doThumbnails.get());
-                ic.setNoStatsInfo(config.noStatsInfo.get());
-                String configImageName = config.userSpecifiedName.get();
-                ic.setUserSpecifiedName(configImageName);
-                ic.setUserSpecifiedDescription(config.userSpecifiedDescription.get());
-                ic.setCustomAnnotationList(config.annotations.get());
-                return ic;
+                if (scanCache != null) {
+                    scanCache.store(file, readerClassName, usedFiles, isSPW);
+                }
+                return createContainer(config, file, readerClassName,
+                        usedFiles, isSPW);
             } finally
             {
-                readerTime += (System.currentTimeMillis() - start);
+                synchronized (this) {
+                    readerTime += (System.currentTimeMillis() - start);
+                }
                 reader.close();
             }
 
         } catch (UnsupportedCompressionException uce)
         {
-            unknown++;
+            synchronized (this) {
+                unknown++;
+            }
             // Handling as UNKNOWN_FORMAT for 4.3.0
-            safeUpdate(new ErrorHandler.UNKNOWN_FORMAT(path, uce, this));
+            events.add(new ErrorHandler.UNKNOWN_FORMAT(path, uce, this));
         } catch (UnknownFormatException ufe)
         {
-            unknown++;
-            safeUpdate(new ErrorHandler.UNKNOWN_FORMAT(path, ufe, this));
+            synchronized (this) {
+                unknown++;
+            }
+            events.add(new ErrorHandler.UNKNOWN_FORMAT(path, ufe, this));
         } catch (MissingLibraryException mle)
         {
-            safeUpdate(new ErrorHandler.MISSING_LIBRARY(path, mle, usedFiles, format));
+            events.add(new ErrorHandler.MISSING_LIBRARY(path, mle, usedFiles, format));
         } catch (Throwable t)
         {
             Exception e = null;
@@ -468,13 +811,32 @@ public class ImportCandidates extends DirectoryWalker
             else {
                 e = new Exception(t);
             }
-            safeUpdate(new ErrorHandler.FILE_EXCEPTION(path, e, usedFiles, format));
+            events.add(new ErrorHandler.FILE_EXCEPTION(path, e, usedFiles, format));
         }
 
         return null;
 
     }
 
+    /**
+     * Creates the import container for a file which has been parsed.
+     */
+    private static ImportContainer createContainer(ImportConfig config,
+            File file, String readerClassName, String[] usedFiles,
+            boolean isSPW)
+    {
+        ImportContainer ic = new ImportContainer(config,
+                file, null, null,
+                readerClassName, usedFiles, isSPW);
+        ic.setDoThumbnails(config.doThumbnails.get());
+        ic.setNoStatsInfo(config.noStatsInfo.get());
+        String configImageName = config.userSpecifiedName.get();
+        ic.setUserSpecifiedName(configImageName);
+        ic.setUserSpecifiedDescription(config.userSpecifiedDescription.get());
+        ic.setCustomAnnotationList(config.annotations.get());
+        return ic;
+    }
+
     /**
      * Retrieves Image names for each image that Bio-Formats has detected.
      * @return a list of Image names, in the order of <i>series</i>.
@@ -494,7 +856,7 @@ public class ImportCandidates extends DirectoryWalker
      * used files. All files which can be used to initialize a fileset are
      * returned first.
      */
-    private String[] getOrderedFiles() {
+    private static String[] getOrderedFiles(OMEROWrapper reader) {
 
         FileInfo[] infos = reader.getAdvancedUsedFiles(false);
         String[] usedFiles = new String[infos.length];
@@ -577,7 +939,13 @@ public class ImportCandidates extends DirectoryWalker
         if (info == null) {
             return;
         }
+        addContainer(file, info);
+    }
 
+    /**
+     * Records a container found for a file, noting which files it uses.
+     */
+    private void addContainer(File file, ImportContainer info) {
         containers.add(info);
         allFiles.addAll(Arrays.asList(info.getUsedFiles()));
         for (String string : info.getUsedFiles()) {
@@ -596,7 +964,7 @@ public class ImportCandidates extends DirectoryWalker
      * These objects should never leave the outer class.
      *
      * It is important that the Groups keep their used files ordered.
-     * @see ImportCandidates#getOrderedFiles()
+     * @see ImportCandidates#getOrderedFiles(OMEROWrapper)
      */
     private static class Groups {
 
@@ -132,6 +132,11 @@ public class ImportConfig {
     public final BoolValue sendLogFile;
     public final IntValue parallelUpload;
     public final IntValue parallelFileset;
+    public final BoolValue adaptiveParallelism;
+    public final IntValue writesInFlight;
+    public final StrValue resumeImport;
+    public final IntValue parallelScan;
+    public final StrValue scanCache;
     public final StrValue qaBaseURL;
     public final BoolValue checkUpgrade;
 
@@ -279,6 +284,11 @@ public class ImportConfig {
         sendLogFile  = new BoolValue("sendLogFile", this, true);
         parallelUpload  = new IntValue("parallelUpload", this, 1);
         parallelFileset = new IntValue("parallelFileset", this, 1);
+        adaptiveParallelism = new BoolValue("adaptiveParallelism", this, false);
+        writesInFlight  = new IntValue("writesInFlight", this, 1);
+        resumeImport    = new StrValue("resumeImport", this);
+        parallelScan    = new IntValue("parallelScan", this, 1);
+        scanCache       = new StrValue("scanCache", this);
 
         useFullPath  = new BoolValue("useFullPath", this, true);
         useCustomImageNaming = new BoolValue("overrideImageName", this, true);
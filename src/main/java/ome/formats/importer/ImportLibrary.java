@@ -36,6 +36,7 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import loci.common.Location;
@@ -47,6 +48,7 @@ import ome.formats.importer.targets.ImportTarget;
 import ome.formats.importer.transfers.FileTransfer;
 import ome.formats.importer.transfers.TransferState;
 import ome.formats.importer.transfers.UploadFileTransfer;
+import ome.formats.importer.util.AdaptiveParallelism;
 import ome.formats.importer.util.ClientKeepAlive;
 import ome.formats.importer.util.ErrorHandler;
 import ome.formats.importer.util.ProportionalTimeEstimatorImpl;
@@ -71,6 +73,7 @@ import omero.cmd.HandlePrx;
 import omero.cmd.Response;
 import omero.cmd.Status;
 import omero.grid.ImportProcessPrx;
+import omero.grid.ImportProcessPrxHelper;
 import omero.grid.ImportRequest;
 import omero.grid.ImportResponse;
 import omero.grid.ImportSettings;
@@ -166,6 +169,18 @@ public class ImportLibrary implements IObservable
      */
     private ExecutorService uploadThreadPool;
 
+    /**
+     * Resizes {@link #filesetThreadPool} if
+     * {@link ImportConfig#adaptiveParallelism} is set, otherwise {@code null}.
+     */
+    private AdaptiveParallelism filesetParallelism;
+
+    /**
+     * Resizes {@link #uploadThreadPool} if
+     * {@link ImportConfig#adaptiveParallelism} is set, otherwise {@code null}.
+     */
+    private AdaptiveParallelism uploadParallelism;
+
     /**
      * Flag stating that this instance has received an {@link ImportEvent.LOGGED_OUT} event.
      */
@@ -313,8 +328,27 @@ public class ImportLibrary implements IObservable
         List<ImportContainer> containers = candidates.getContainers();
         if (containers != null) {
             final int count = containers.size();
-            filesetThreadPool = Executors.newFixedThreadPool(Math.min(count, config.parallelFileset.get()));
-            uploadThreadPool  = Executors.newFixedThreadPool(config.parallelUpload.get());
+            final int filesetThreads = Math.min(count, config.parallelFileset.get());
+            final int uploadThreads = config.parallelUpload.get();
+            filesetThreadPool = Executors.newFixedThreadPool(filesetThreads);
+            uploadThreadPool  = Executors.newFixedThreadPool(uploadThreads);
+            if (config.adaptiveParallelism.get()) {
+                // the configured sizes become the upper bounds
+                filesetParallelism = new AdaptiveParallelism("fileset",
+                        (ThreadPoolExecutor) filesetThreadPool, 1, filesetThreads);
+                uploadParallelism = new AdaptiveParallelism("upload",
+                        (ThreadPoolExecutor) uploadThreadPool, 1, uploadThreads);
+            }
+            if (transfer instanceof UploadFileTransfer) {
+                ((UploadFileTransfer) transfer).setWritesInFlight(config.writesInFlight.get());
+            }
+            final ImportProcessPrx resumed;
+            try {
+                resumed = lookupImport(config.resumeImport.get(), count);
+            } catch (ServerError | IllegalArgumentException e) {
+                log.error("Could not find import to resume: {}", config.resumeImport.get(), e);
+                return false;
+            }
             try {
                 final List<Callable<Boolean>> threads = new ArrayList<>(count);
                 for (int index = 0; index < count; index++) {
@@ -325,6 +359,8 @@ public class ImportLibrary implements IObservable
                     }
                     final ExecutorService uploadThreadPoolFinal = uploadThreadPool;
                     final int indexFinal = index;
+                    final ImportProcessPrx resumedFinal = resumed;
+                    final AdaptiveParallelism filesets = filesetParallelism;
                     threads.add(new Callable<Boolean>() {
                         @Override
                         public Boolean call() {
@@ -351,9 +387,16 @@ public class ImportLibrary implements IObservable
                                         throw new RuntimeException("Failed to load target", e);
                                     }
                                 }
-                                importImage(ic, uploadThreadPoolFinal, indexFinal);
+                                importImage(ic, uploadThreadPoolFinal, indexFinal,
+                                        resumedFinal);
+                                if (filesets != null) {
+                                    filesets.succeeded(ic.getUsedFilesTotalSize());
+                                }
                                 return true;
                             } catch (Throwable t) {
+                                if (filesets != null) {
+                                    filesets.failed();
+                                }
                                 String message = "Error on import";
                                 if (t instanceof ServerError) {
                                     final ServerError se = (ServerError) t;
@@ -398,11 +441,39 @@ public class ImportLibrary implements IObservable
                 if (uploadThreadPool != null) {
                     uploadThreadPool.shutdownNow();
                 }
+                filesetParallelism = null;
+                uploadParallelism = null;
             }
         }
         return true;
     }
 
+    /**
+     * Find a running import process in the current session so that an
+     * interrupted upload can be resumed.
+     * @param name the service name of the import process as listed by
+     * {@link ServiceFactoryPrx#activeServices()}, may be {@code null}
+     * @param count the number of import containers which are to be imported
+     * @return the import process or {@code null} if no name was given
+     * @throws ServerError if the import process could not be found
+     */
+    public ImportProcessPrx lookupImport(String name, int count)
+            throws ServerError {
+        if (StringUtils.isBlank(name)) {
+            return null;
+        } else if (count != 1) {
+            throw new IllegalArgumentException(
+                    "only a single fileset can be resumed, not " + count);
+        }
+        final ImportProcessPrx proc =
+                ImportProcessPrxHelper.checkedCast(sf.getByName(name));
+        if (proc == null) {
+            throw new omero.ApiUsageException(null, null,
+                    "not an import process: " + name);
+        }
+        return proc;
+    }
+
     /**
      * Delete files from the managed repository.
      * @param container The current import container containing usedFiles to be
@@ -465,7 +536,10 @@ public class ImportLibrary implements IObservable
                 throw new RuntimeException("no supported checksum algorithm negotiated with server");
             }
         }
-        return repo.importFileset(fs, settings);
+        final ImportProcessPrx proc = repo.importFileset(fs, settings);
+        log.info("Started import process {}",
+                Ice.Util.identityToString(proc.ice_getIdentity()));
+        return proc;
     }
 
     /**
@@ -520,6 +594,28 @@ public class ImportLibrary implements IObservable
             final ChecksumProviderFactory cpf, TimeEstimator estimator,
             final byte[] buf)
             throws ServerError, IOException {
+        return uploadFile(proc, srcFiles, index, cpf, estimator, buf, false);
+    }
+
+    /**
+     * Upload a single used file of an import.
+     * @param proc the server import process to use for the upload
+     * @param srcFiles the used files of the import
+     * @param index the index of the file to upload
+     * @param cpf the factory for the checksum provider
+     * @param estimator the upload time estimator
+     * @param buf a block-sized buffer
+     * @param resume if the upload should continue from the offset that the
+     * server has already received
+     * @return the client-side checksum of the file
+     * @throws ServerError if the upload failed on the server
+     * @throws IOException if the file could not be read
+     */
+    public String uploadFile(final ImportProcessPrx proc,
+            final String[] srcFiles, final int index,
+            final ChecksumProviderFactory cpf, TimeEstimator estimator,
+            final byte[] buf, boolean resume)
+            throws ServerError, IOException {
 
         final ChecksumProvider cp = cpf.getProvider(
                 ChecksumAlgorithmMapper.getChecksumType(
@@ -530,7 +626,7 @@ public class ImportLibrary implements IObservable
         try {
             return transfer.transfer(new TransferState(
                     file, index, srcFiles.length,
-                    proc, this, estimator, cp, buf));
+                    proc, this, estimator, cp, buf, resume));
         }
         catch (Exception e) {
             // Required to bump the error count
@@ -591,6 +687,29 @@ public class ImportLibrary implements IObservable
      */
     public List<Pixels> importImage(final ImportContainer container, ExecutorService threadPool, int index)
             throws FormatException, IOException, Throwable
+    {
+        return importImage(container, threadPool, index, null);
+    }
+
+    /**
+     * Perform an image import uploading files if necessary, possibly
+     * resuming an earlier import whose upload was interrupted.
+     * @param container The import container which houses all the configuration
+     * values and target for the import.
+     * @param threadPool The pool of threads to use in file upload.
+     * @param index Index of the import in a set. <code>0</code> is safe if
+     * this is a singular import.
+     * @param resumed The import process of an earlier import of the same
+     * container which is to be continued, or {@code null} to start afresh.
+     * Each file is uploaded only from the offset that the server has
+     * already received.
+     * @return List of Pixels that have been imported.
+     * @throws Throwable If there is some kind of error during import.
+     * @see #lookupImport(String, int)
+     */
+    public List<Pixels> importImage(final ImportContainer container, ExecutorService threadPool, int index,
+            ImportProcessPrx resumed)
+            throws FormatException, IOException, Throwable
     {
         HandlePrx handle;
         for (FileExclusion exclusion : exclusions) {
@@ -610,7 +729,8 @@ public class ImportLibrary implements IObservable
             log.error(message);
             throw new IllegalArgumentException(message);
         }
-        final ImportProcessPrx proc = createImport(container);
+        final boolean resume = resumed != null;
+        final ImportProcessPrx proc = resume ? resumed : createImport(container);
         final String[] srcFiles = container.getUsedFiles();
         final ThreadLocal<byte[]> buf = new ThreadLocal<byte[]>() {
             @Override
@@ -625,13 +745,26 @@ public class ImportLibrary implements IObservable
         notifyObservers(new ImportEvent.FILESET_UPLOAD_START(
                 null, index, srcFiles.length, null, null, null));
 
+        final AdaptiveParallelism uploads = uploadParallelism;
         final List<Callable<Map.Entry<Integer, String>>> threads = new ArrayList<>(srcFiles.length);
         for (int i = 0; i < srcFiles.length; i++) {
             final int fileIndex = i;
             threads.add(new Callable<Map.Entry<Integer, String>>() {
                 @Override
                 public Map.Entry<Integer, String> call() throws Exception {
-                    final String checksum = uploadFile(proc, srcFiles, fileIndex, checksumProviderFactory, estimator, buf.get());
+                    final String checksum;
+                    try {
+                        checksum = uploadFile(proc, srcFiles, fileIndex, checksumProviderFactory, estimator, buf.get(),
+                                resume);
+                    } catch (Exception e) {
+                        if (uploads != null) {
+                            uploads.failed();
+                        }
+                        throw e;
+                    }
+                    if (uploads != null) {
+                        uploads.succeeded(new File(Location.getMappedId(srcFiles[fileIndex])).length());
+                    }
                     return new AbstractMap.SimpleImmutableEntry<>(fileIndex, checksum);
                 }});
         }
@@ -653,8 +786,12 @@ public class ImportLibrary implements IObservable
             }
         }
         final List<String> checksums = Arrays.asList(checksumArray);
+        final long verifyStart = System.nanoTime();
         try {
             handle = proc.verifyUpload(checksums);
+            if (uploads != null) {
+                uploads.latency(System.nanoTime() - verifyStart);
+            }
         } catch (ChecksumValidationException cve) {
             failingChecksums = cve.failingChecksums;
             throw cve;
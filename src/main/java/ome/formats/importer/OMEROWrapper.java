@@ -68,6 +68,14 @@ public class OMEROWrapper extends MinMaxCalculator {
     private ChannelSeparator separator;
     private ChannelFiller filler;
     private Memoizer memoizer;
+
+    /**
+     * Whether the min/max values are already known, {@code null} until
+     * checked. Setting this to {@code true} before reading pixels
+     * intentionally disables the {@link MinMaxCalculator} this class extends,
+     * e.g. when the caller calculates the min/max itself. Reset by
+     * {@link #close()}.
+     */
     public Boolean minMaxSet = null;
 
     /**
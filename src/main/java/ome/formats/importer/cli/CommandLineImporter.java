@@ -437,6 +437,14 @@ public class CommandLineImporter {
             + "       $ ./importer-cli --minutes-wait=0 some_directory/\n"
             + "       $ ./importer-cli --wait-completed # Waits on all 3 imports.\n"
             + "\n"
+            + "  Resumed imports:\n"
+            + "  ----------------\n\n"
+            + "    --resume=ARG            \tContinue the interrupted upload of a single fileset.\n"
+            + "                            \tARG is the import process logged when the import started.\n"
+            + "                            \tThe same session must be used via -k.\n\n"
+            + "  e.g. $ omero import -- --resume=abc-123/def-456 foo.tiff\n"
+            + "       $ ./importer-cli -k SESSION --resume=abc-123/def-456 bar.tiff\n"
+            + "\n"
             + "  File exclusion:\n"
             + "  ---------------\n\n"
             + "    --exclude=filename      \tExclude files based on filename.\n\n"
@@ -453,6 +461,23 @@ public class CommandLineImporter {
             + "                            \t     SHA1-160 (slow, default)\n\n"
             + "  e.g. $ omero import --checksum-algorithm=CRC-32 foo.tiff\n"
             + "       $ ./importer-cli --checksum-algorithm=Murmur3-128 bar.tiff\n\n"
+            + "    --writes-in-flight=ARG\tNumber of file upload writes to keep outstanding at once.\n"
+            + "                            \tLarger values help on high-latency connections. Default: 1\n\n"
+            + "  e.g. $ omero import -- --writes-in-flight=8 foo.tiff\n"
+            + "       $ ./importer-cli --writes-in-flight=8 bar.tiff\n\n"
+            + "    --adaptive-parallelism\tTune the number of filesets and files imported at once while\n"
+            + "                            \timporting, using --parallel-fileset and --parallel-upload\n"
+            + "                            \tas the upper bounds.\n\n"
+            + "  e.g. $ omero import -- --adaptive-parallelism --parallel-upload=16 some_directory/\n"
+            + "       $ ./importer-cli --adaptive-parallelism --parallel-upload=16 some_directory/\n\n"
+            + "    --parallel-scan=ARG\tNumber of files to parse at once while searching directories\n"
+            + "                            \tfor filesets. Each uses its own reader. Default: 1\n\n"
+            + "  e.g. $ omero import -- --parallel-scan=4 some_directory/\n"
+            + "       $ ./importer-cli --parallel-scan=4 some_directory/\n\n"
+            + "    --scan-cache=FILE\t\tRemember how files were grouped in FILE so that files which\n"
+            + "                            \thave not changed since a previous scan are not parsed again.\n\n"
+            + "  e.g. $ omero import -- --scan-cache=scan.cache -f some_directory/\n"
+            + "       $ ./importer-cli --scan-cache=scan.cache some_directory/\n\n"
             + "    --no-stats-info\t\tDisable calculation of minima and maxima"
             + " when as part of the Bio-Formats reader metadata\n\n"
             + "  e.g. $ omero import -- --no-stats-info foo.tiff\n"
@@ -549,6 +574,9 @@ public class CommandLineImporter {
         config.contOnError.set(false);
         config.parallelUpload.set(1);
         config.parallelFileset.set(1);
+        config.adaptiveParallelism.set(false);
+        config.writesInFlight.set(1);
+        config.parallelScan.set(1);
         config.debug.set(false);
         config.encryptedConnection.set(false);
 
@@ -623,6 +651,16 @@ public class CommandLineImporter {
                 new LongOpt("readers", LongOpt.REQUIRED_ARGUMENT, null, 29);
         LongOpt keepAlive =
                 new LongOpt("keep-alive", LongOpt.REQUIRED_ARGUMENT, null, 30);
+        LongOpt writesInFlight =
+                new LongOpt("writes-in-flight", LongOpt.REQUIRED_ARGUMENT, null, 31);
+        LongOpt resume =
+                new LongOpt("resume", LongOpt.REQUIRED_ARGUMENT, null, 32);
+        LongOpt parallelScan =
+                new LongOpt("parallel-scan", LongOpt.REQUIRED_ARGUMENT, null, 33);
+        LongOpt scanCache =
+                new LongOpt("scan-cache", LongOpt.REQUIRED_ARGUMENT, null, 34);
+        LongOpt adaptiveParallelism =
+                new LongOpt("adaptive-parallelism", LongOpt.NO_ARGUMENT, null, 35);
 
         // DEPRECATED OPTIONS
         LongOpt minutesWaitDeprecated =
@@ -663,7 +701,8 @@ public class CommandLineImporter {
                                 noUpgradeCheck, qaBaseURL,
                                 outputFormat, encryptedConnection,
                                 parallelUpload, parallelFileset,
-                                readers, keepAlive,
+                                readers, keepAlive, writesInFlight, resume,
+                                parallelScan, scanCache, adaptiveParallelism,
                                 plateName, plateName2,
                                 plateDescription, plateDescription2,
                                 noThumbnailsDeprecated,
@@ -845,6 +884,35 @@ public class CommandLineImporter {
                 config.keepAlive.set(Integer.parseInt(keepAliveUArg));
                 break;
             }
+            case 31: {
+                String writesArg = g.getOptarg();
+                log.info("Setting writes in flight: {}", writesArg);
+                config.writesInFlight.set(Integer.valueOf(writesArg));
+                break;
+            }
+            case 32: {
+                String resumeArg = g.getOptarg();
+                log.info("Resuming import process: {}", resumeArg);
+                config.resumeImport.set(resumeArg);
+                break;
+            }
+            case 33: {
+                String scanArg = g.getOptarg();
+                log.info("Setting parallel scan: {}", scanArg);
+                config.parallelScan.set(Integer.valueOf(scanArg));
+                break;
+            }
+            case 34: {
+                String cacheArg = g.getOptarg();
+                log.info("Using scan cache: {}", cacheArg);
+                config.scanCache.set(cacheArg);
+                break;
+            }
+            case 35: {
+                log.info("Adapting parallelism to throughput");
+                config.adaptiveParallelism.set(true);
+                break;
+            }
             // ADVANCED END ---------------------------------------------------
             // DEPRECATED OPTIONS
             case 90:
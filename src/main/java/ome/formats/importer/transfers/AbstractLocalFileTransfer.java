@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.transfers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+
+import ome.util.checksum.ChecksumProvider;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+import omero.model.OriginalFile;
+
+/**
+ * Local-only file transfer mechanism which places files on the server by
+ * linking or copying them in the local filesystem, as implemented by
+ * {@link #transfer(File, File, ChecksumProvider)}.
+ *
+ * @since 5.5.7
+ */
+public abstract class AbstractLocalFileTransfer extends AbstractFileTransfer {
+
+    private static final String LINE = "\n---------------------------------------------------\n";
+
+    /** Files up to this size are read whole rather than mapped. */
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+
+    /** The most of a file that is mapped at once. */
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    /**
+     * "Transfer" files by placing them directly into the repository. This
+     * method is likely re-usable for other general "linking" strategies by
+     * overriding {@link #transfer(File, File, ChecksumProvider)} and the
+     * other protected methods here.
+     */
+    public String transfer(TransferState state) throws IOException, ServerError {
+        RawFileStorePrx rawFileStore = start(state);
+        try {
+            final OriginalFile root = state.getRootFile();
+            final OriginalFile ofile = state.getOriginalFile();
+            final File location = getLocalLocation(root, ofile);
+            final File file = state.getFile();
+            final long length = state.getLength();
+            final ChecksumProvider cp = state.getChecksumProvider();
+            state.uploadStarted();
+            checkLocation(location, rawFileStore); // closes rawFileStore
+            state.closeUploader();
+            transfer(file, location, cp);
+            checkTarget(location, state);
+            state.stop(length);
+            state.uploadBytes(length);
+            return finish(state, length);
+        } finally {
+            state.closeUploader();
+        }
+    }
+
+    /**
+     * Build a path of the form "root.path/root.name/file.path/file.name".
+     *
+     * @param root the root directory
+     * @param ofile a path relative to the root
+     * @return the assembled path with separators suitable for the local filesystem
+     */
+    protected File getLocalLocation(OriginalFile root, OriginalFile ofile) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(root.getPath().getValue());
+        sb.append(File.separatorChar);
+        sb.append(root.getName().getValue());
+        sb.append(File.separatorChar);
+        sb.append(ofile.getPath().getValue());
+        sb.append(File.separatorChar);
+        sb.append(ofile.getName().getValue());
+        return new File(sb.toString());
+    }
+
+    /**
+     * Check that the target location: 1) doesn't exist and 2) is properly
+     * written to by the server. If either condition fails, no linking takes
+     * place.
+     *
+     * @param location the source file
+     * @param rawFileStore the target on the server
+     * @throws ServerError if the raw file store could not be used
+     * @throws IOException for problems with the source file
+     */
+    protected void checkLocation(File location, RawFileStorePrx rawFileStore)
+            throws ServerError, IOException {
+
+        final String uuid = UUID.randomUUID().toString();
+
+        // Safety measures
+        if (location.exists()) {
+            throw new RuntimeException(location + " exists!");
+        }
+
+        // First we guarantee that we have the right file
+        // If so, we remove it
+        try {
+            rawFileStore.write(uuid.getBytes(), 0, uuid.getBytes().length);
+        } finally {
+            rawFileStore.close();
+        }
+        try {
+            if (!location.exists()) {
+                throw failLocationCheck(location, "does not exist");
+            } else if (!location.canRead()) {
+                throw failLocationCheck(location, "cannot be read");
+            } else if (!uuid.equals(FileUtils.readFileToString(location))) {
+                throw failLocationCheck(location, "does not match check text");
+            }
+        } finally {
+            if (!location.canWrite()) {
+                throw failLocationCheck(location, "cannot be modified locally");
+            } else {
+                boolean deleted = FileUtils.deleteQuietly(location);
+                if (!deleted) {
+                    throw failLocationCheck(location, "could not be cleaned up");
+                }
+            }
+        }
+    }
+
+    protected RuntimeException failLocationCheck(File location, String msg) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(LINE);
+        sb.append(String.format("Check failed: %s %s!\n", location, msg));
+        sb.append("You likely do not have access to the ManagedRepository ");
+        sb.append("for in-place import.\n");
+        sb.append("Aborting...");
+        sb.append(LINE);
+        throw new RuntimeException(sb.toString());
+    }
+
+    /**
+     * Places the file at the target location and adds its content to the
+     * checksum, e.g. via {@link #checksum(File, ChecksumProvider)} or
+     * {@link #copy(File, File, ChecksumProvider)}.
+     *
+     * @param file the source file
+     * @param location the target on the server
+     * @param cp the checksum provider for the file's content
+     * @throws IOException for problems with the source file or target
+     */
+    protected abstract void transfer(File file, File location,
+            ChecksumProvider cp) throws IOException;
+
+    /**
+     * Adds the content of the file to the checksum in a single read through
+     * a memory-mapped view of it.
+     *
+     * @param file the file to read
+     * @param cp the checksum provider for the file's content
+     * @throws IOException for problems reading the file
+     */
+    protected void checksum(File file, ChecksumProvider cp) throws IOException {
+        copy(file, null, cp);
+    }
+
+    /**
+     * Copies the file to the target location, adding its content to the
+     * checksum from the same memory-mapped view that is written out so that
+     * the source is read only once. Small files are read whole instead.
+     *
+     * @param file the source file
+     * @param location the target on the server, or {@code null} to only
+     * calculate the checksum
+     * @param cp the checksum provider for the file's content
+     * @throws IOException for problems with the source file or target
+     */
+    protected void copy(File file, File location, ChecksumProvider cp)
+            throws IOException {
+        final FileChannel in = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        FileChannel out = null;
+        try {
+            if (location != null) {
+                out = FileChannel.open(location.toPath(),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            final long size = in.size();
+            final byte[] buf = new byte[(int) Math.min(size, MAP_THRESHOLD)];
+            if (size <= MAP_THRESHOLD) {
+                final ByteBuffer whole = ByteBuffer.wrap(buf);
+                while (whole.hasRemaining() && in.read(whole) >= 0) {
+                    // until full
+                }
+                cp.putBytes(buf, 0, whole.position());
+                whole.flip();
+                write(whole, out);
+                return;
+            }
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                final ByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(MAP_WINDOW, size - position));
+                // ChecksumProvider only accepts heap arrays
+                final ByteBuffer view = window.duplicate();
+                while (view.hasRemaining()) {
+                    final int len = Math.min(buf.length, view.remaining());
+                    view.get(buf, 0, len);
+                    cp.putBytes(buf, 0, len);
+                }
+                write(window, out);
+            }
+        } finally {
+            try {
+                in.close();
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    private static void write(ByteBuffer buffer, FileChannel out)
+            throws IOException {
+        if (out != null) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Check that the server can properly read the copied file.
+     *
+     * Like {@link #checkLocation(File, RawFileStorePrx)} but <em>after</em>
+     * the invocation of {@link #transfer(File, File, ChecksumProvider)}, there is some chance, likely
+     * due to file permissions, that the server will not be able to read the
+     * transfered file. If so, raise an exception and leave the user to cleanup
+     * and modifications.
+     */
+    protected void checkTarget(File location, TransferState state) throws ServerError {
+        try {
+            state.getUploader("r").size();
+        } catch (Throwable t) {
+            String message;
+            if (t instanceof ServerError) {
+                message = ((ServerError) t).message;
+            } else {
+                message = t.getMessage();
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(t.getClass().getName());
+            sb.append(" : ");
+            sb.append(message);
+            sb.append("\nThe server could not check the size of the file:\n");
+            sb.append("-----------------------------------------------\n");
+            sb.append(location);
+            sb.append("\n-----------------------------------------------\n");
+            sb.append("Most likely the server process has no read access\n");
+            sb.append("and therefore in-place import cannot proceed. You\n");
+            sb.append("should delete this file manually if you are sure\n");
+            sb.append("that the original is safe.\n");
+            throw new RuntimeException(sb.toString());
+        }
+    }
+
+    protected void printLine() {
+        log.error("*******************************************");
+    }
+
+}
@@ -21,44 +21,33 @@ package ome.formats.importer.transfers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
+import ome.util.checksum.ChecksumProvider;
+
 /**
- * Local-only file transfer mechanism which makes use of the plaform
- * copy command.
+ * Local-only file transfer mechanism which copies files into the managed
+ * repository, calculating the checksum from the same read of each file.
  *
- * This is only useful where the commands "cp source target" (Unix) or
- * "copy source target" (Windows) will work.
+ * This is only useful where the managed repository is writable locally.
  *
  * @since 5.0.7
  */
-public class CopyFileTransfer extends AbstractExecFileTransfer {
+public class CopyFileTransfer extends AbstractLocalFileTransfer {
 
     /**
-     * Executes "cp file location" (Unix) or "cp file location" (Windows)
-     * and fails on non-0 return codes.
+     * Copies file to location, adding each memory-mapped window of file to
+     * the checksum before writing it out.
      *
      * @param file File to be copied
      * @param location Location to copy to.
-     * @throws IOException
+     * @param cp the checksum provider for the file's content
+     * @throws IOException if the file could not be read or copied
      */
-    protected ProcessBuilder createProcessBuilder(File file, File location) {
-        ProcessBuilder pb = new ProcessBuilder();
-        List<String> args = new ArrayList<String>();
-        if (isWindows()) {
-            args.add("cmd");
-            args.add("/c");
-            args.add("cp");
-            args.add(file.getAbsolutePath());
-            args.add(location.getAbsolutePath());
-        } else {
-            args.add("cp");
-            args.add(file.getAbsolutePath());
-            args.add(location.getAbsolutePath());
-        }
-        pb.command(args);
-        return pb;
+    @Override
+    protected void transfer(File file, File location, ChecksumProvider cp)
+            throws IOException {
+        copy(file, location, cp);
     }
 
     /**
@@ -21,46 +21,35 @@ package ome.formats.importer.transfers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Files;
 import java.util.List;
 
+import ome.util.checksum.ChecksumProvider;
+
 /**
  * Local-only file transfer mechanism which makes use of hard-linking.
  *
- * This is only useful where the commands "ln source target" (Unix) or
- * "mklink /H target source" (Windows) will work.
+ * This is only useful where the source and the managed repository are on
+ * the same filesystem and that filesystem supports hard links.
  *
  * @since 5.0
  */
-public class HardlinkFileTransfer extends AbstractExecFileTransfer {
+public class HardlinkFileTransfer extends AbstractLocalFileTransfer {
 
     /**
-     * Executes "ln file location" (Unix) or "mklink /H location file" (Windows)
-     * and fails on non-0 return codes.
-     *
-     * @param file File to be copied.
-     * @param location Location to copy to.
-     * @throws IOException
+     * Hard-links location to file, then calculates the checksum from a
+     * memory-mapped view of the file.
      *
+     * @param file File to be linked.
+     * @param location Location to link to.
+     * @param cp the checksum provider for the file's content
+     * @throws IOException if the link could not be created or the file read
      */
-    // TODO Java7: replace ln once Java6 is dropped
-    protected ProcessBuilder createProcessBuilder(File file, File location) {
-        ProcessBuilder pb = new ProcessBuilder();
-        List<String> args = new ArrayList<String>();
-        if (isWindows()) {
-            args.add("cmd");
-            args.add("/c");
-            args.add("mklink");
-            args.add("/H");
-            args.add(location.getAbsolutePath());
-            args.add(file.getAbsolutePath());
-        } else {
-            args.add("ln");
-            args.add(file.getAbsolutePath());
-            args.add(location.getAbsolutePath());
-        }
-        pb.command(args);
-        return pb;
+    @Override
+    protected void transfer(File file, File location, ChecksumProvider cp)
+            throws IOException {
+        Files.createLink(location.toPath(), file.toPath());
+        checksum(file, cp);
     }
 
     /**
@@ -21,45 +21,35 @@ package ome.formats.importer.transfers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Files;
 import java.util.List;
 
+import ome.util.checksum.ChecksumProvider;
+
 /**
  * Local-only file transfer mechanism which makes use of soft-linking.
  *
- *  This is only useful where the commands "ln -s source target" (Unix) or
- * "mklink target source" (Windows) will work.
+ * This is only useful where the source is visible to the server at the
+ * same path and the platform permits creating symbolic links.
  *
  * @since 5.0
  */
-public class SymlinkFileTransfer extends AbstractExecFileTransfer {
+public class SymlinkFileTransfer extends AbstractLocalFileTransfer {
 
     /**
-     * Executes "ln -s file location" (Unix) or "mklink location file" (Windows)
-     * and fails on non-0 return codes.
+     * Soft-links location to the absolute path of file, then calculates the
+     * checksum from a memory-mapped view of the file.
      *
-     * @param file File to be copied.
-     * @param location Location to copy to.
-     * @throws IOException
+     * @param file File to be linked.
+     * @param location Location to link to.
+     * @param cp the checksum provider for the file's content
+     * @throws IOException if the link could not be created or the file read
      */
-    // TODO Java7: replace ln once Java6 is dropped
-    protected ProcessBuilder createProcessBuilder(File file, File location) {
-        ProcessBuilder pb = new ProcessBuilder();
-        List<String> args = new ArrayList<String>();
-        if (isWindows()) {
-            args.add("cmd");
-            args.add("/c");
-            args.add("mklink");
-            args.add(location.getAbsolutePath());
-            args.add(file.getAbsolutePath());
-        } else {
-            args.add("ln");
-            args.add("-s");
-            args.add(file.getAbsolutePath());
-            args.add(location.getAbsolutePath());
-        }
-        pb.command(args);
-        return pb;
+    @Override
+    protected void transfer(File file, File location, ChecksumProvider cp)
+            throws IOException {
+        Files.createSymbolicLink(location.toPath(), file.getAbsoluteFile().toPath());
+        checksum(file, cp);
     }
 
     /**
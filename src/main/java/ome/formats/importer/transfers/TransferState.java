@@ -67,6 +67,8 @@ public class TransferState implements TimeEstimator {
 
     private final byte[] buf;
 
+    private final boolean resume;
+
     private OriginalFile ofile;
 
     private String checksum;
@@ -99,6 +101,34 @@ public class TransferState implements TimeEstimator {
             TimeEstimator estimator,
             ChecksumProvider cp,
             byte[] buf) throws IOException, ServerError {
+                this(file, index, total, proc, library, estimator, cp, buf, false);
+            }
+
+    /**
+     * State of a file transfer which may be resuming an earlier, interrupted
+     * upload to the same {@link ImportProcessPrx}.
+     *
+     * @param file Source file which is to be transferred.
+     * @param index Which of the total files to upload this is.
+     * @param total Total number of files to upload.
+     * @param proc {@link ImportProcessPrx} which is being imported to.
+     * @param library {@link ImportLibrary} to use for notifications.
+     * @param estimator a time-to-completion estimator.
+     * @param cp a checksum provider, for calculating file content checksums.
+     * @param buf optional buffer. Need not be used or updated.
+     * @param resume if the transfer should continue from
+     * {@link #getResumeOffset()} rather than from the start of the file
+     * @throws IOException I/O exception
+     * @throws ServerError server error
+     */
+    public TransferState(File file,
+            int index, int total, // as index of
+            ImportProcessPrx proc, // to
+            ImportLibrary library,
+            TimeEstimator estimator,
+            ChecksumProvider cp,
+            byte[] buf,
+            boolean resume) throws IOException, ServerError {
                 this.file = file;
                 this.length = file.length();
                 this.index = index;
@@ -108,6 +138,7 @@ public class TransferState implements TimeEstimator {
                 this.estimator = estimator;
                 this.cp = cp;
                 this.buf = buf;
+                this.resume = resume;
             }
 
     /**
@@ -170,6 +201,28 @@ public class TransferState implements TimeEstimator {
         return this.cp;
     }
 
+    /**
+     * Return the number of bytes of the {@link #getFile() target file} which
+     * the server has confirmed as already written and which therefore need
+     * not be sent again. This is always 0 unless this transfer was created to
+     * resume an earlier upload. If the server has more bytes than the local
+     * file, the file is assumed to have changed and 0 is returned.
+     * @return the offset from which the upload may continue
+     * @throws ServerError server error
+     */
+    public long getResumeOffset() throws ServerError {
+        if (!resume) {
+            return 0;
+        }
+        final long offset = proc.getUploadOffset(index);
+        if (offset > length) {
+            log.warn("Server offset {} beyond length {} of {}: restarting",
+                    offset, length, file);
+            return 0;
+        }
+        return offset;
+    }
+
     /**
      * Return the target file passed to the constructor.
      * @return the source file
@@ -22,7 +22,11 @@ package ome.formats.importer.transfers;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import ome.util.checksum.ChecksumProvider;
 import omero.ServerError;
@@ -30,64 +34,226 @@ import omero.api.RawFileStorePrx;
 
 import org.apache.commons.lang.ArrayUtils;
 
+import Ice.AsyncResult;
+
 /**
  * Traditional file transfer mechanism which uploads
  * files using the API. This is done by reading from
- * {@link TransferState#getFile()} into {@link TransferState#getBuffer()}
- * and then {@link RawFileStorePrx#write(byte[], long, int) writing} to the
- * server. <em>Not thread safe</em>
+ * {@link TransferState#getFile()} into a block-sized buffer
+ * and then {@link RawFileStorePrx#begin_write(byte[], long, int) writing} to
+ * the server.
+ *
+ * Writes are pipelined: up to {@link #getWritesInFlight()} calls may be
+ * outstanding at any one time so that reading and checksumming the next
+ * block from disk overlaps with the network round-trip of the previous
+ * ones. Blocks are taken from a pool which is shared by all transfers
+ * performed by this instance. A window of 1 keeps at most a single write
+ * outstanding, much as the previous blocking implementation did.
+ *
+ * If the {@link TransferState} is {@link TransferState#getResumeOffset()
+ * resuming} an earlier upload then the already-uploaded prefix of the file is
+ * only read locally to restore the checksum state.
  *
  * @since 5.0
  */
 public class UploadFileTransfer extends AbstractFileTransfer {
 
+    /**
+     * Default number of writes which may be outstanding per file.
+     */
+    public static final int DEFAULT_WRITES_IN_FLIGHT = 1;
+
+    /**
+     * Block-sized buffers which are not currently holding data for an
+     * outstanding write. Since the block size is fixed per import, buffers
+     * of a different length are simply dropped.
+     */
+    private final Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+    private volatile int writesInFlight = DEFAULT_WRITES_IN_FLIGHT;
+
+    /**
+     * @return the maximum number of writes which may be outstanding per file
+     */
+    public int getWritesInFlight() {
+        return writesInFlight;
+    }
+
+    /**
+     * @param writesInFlight the maximum number of writes which may be
+     * outstanding per file, must be positive
+     */
+    public void setWritesInFlight(int writesInFlight) {
+        if (writesInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "writes in flight must be positive: " + writesInFlight);
+        }
+        this.writesInFlight = writesInFlight;
+    }
+
     public String transfer(TransferState state) throws IOException, ServerError {
 
         final RawFileStorePrx rawFileStore = start(state);
         final File file = state.getFile();
-        final byte[] buf = state.getBuffer();
+        final int blockSize = state.getBuffer().length;
+        final int window = writesInFlight;
         final ChecksumProvider cp = state.getChecksumProvider();
-        
+        final Deque<PendingWrite> pending = new ArrayDeque<PendingWrite>(window);
+
         FileInputStream stream = null;
 
         try {
             stream = new FileInputStream(file);
             int rlen = 0;
-            long offset = 0;
+            long offset = state.getResumeOffset();
 
             state.uploadStarted();
-      
-            // "touch" the file otherwise zero-length files
-            rawFileStore.write(ArrayUtils.EMPTY_BYTE_ARRAY, offset, 0);
+
+            if (offset > 0) {
+                // the server already has this prefix, so it is only
+                // re-read to bring the checksum up to date
+                log.info("Resuming {} at offset {}", file, offset);
+                rehydrate(stream, state.getBuffer(), offset, cp);
+            } else {
+                // "touch" the file otherwise zero-length files
+                rawFileStore.write(ArrayUtils.EMPTY_BYTE_ARRAY, offset, 0);
+            }
             state.stop();
             state.uploadBytes(offset);
-    
+
+            state.start();
             while (true) {
-                state.start();
-                rlen = stream.read(buf);
+                final byte[] buf = acquireBuffer(blockSize);
+                rlen = read(stream, buf);
                 if (rlen == -1) {
+                    releaseBuffer(buf);
                     break;
                 }
                 cp.putBytes(buf, 0, rlen);
                 final byte[] bufferToWrite;
+                final boolean pooled;
                 if (rlen < buf.length) {
+                    // Only the final block of a file can be short. Ice
+                    // marshals the whole array, so it must be trimmed.
                     bufferToWrite = new byte[rlen];
                     System.arraycopy(buf, 0, bufferToWrite, 0, rlen);
+                    releaseBuffer(buf);
+                    pooled = false;
                 } else {
                     bufferToWrite = buf;
+                    pooled = true;
+                }
+                while (pending.size() >= window) {
+                    completeWrite(rawFileStore, pending.removeFirst(), state);
                 }
-                rawFileStore.write(bufferToWrite, offset, rlen);
+                pending.addLast(new PendingWrite(
+                        rawFileStore.begin_write(bufferToWrite, offset, rlen),
+                        bufferToWrite, pooled, offset + rlen));
                 offset += rlen;
-                state.stop(rlen);
-                state.uploadBytes(offset);
             }
 
+            while (!pending.isEmpty()) {
+                completeWrite(rawFileStore, pending.removeFirst(), state);
+            }
+            state.stop();
+
             return finish(state, offset);
         } finally {
+            // Wait on any writes left behind by an error before the
+            // store is closed beneath them.
+            for (PendingWrite write : pending) {
+                write.result.waitForCompleted();
+            }
             cleanupUpload(rawFileStore, stream);
         }
     }
 
+    /**
+     * Feed the first {@code length} bytes of the stream into the checksum
+     * provider, leaving the stream positioned to continue the upload.
+     */
+    private void rehydrate(FileInputStream stream, byte[] buf, long length,
+            ChecksumProvider cp) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            final int rlen = stream.read(buf, 0,
+                    (int) Math.min(buf.length, remaining));
+            if (rlen == -1) {
+                throw new IOException("file shorter than upload offset");
+            }
+            cp.putBytes(buf, 0, rlen);
+            remaining -= rlen;
+        }
+    }
+
+    /**
+     * Fill the given buffer as far as possible, returning a short count only
+     * at the end of the file. This prevents short reads from leaving holes in
+     * the pipeline of full-sized blocks.
+     */
+    private int read(FileInputStream stream, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            final int rlen = stream.read(buf, total, buf.length - total);
+            if (rlen == -1) {
+                break;
+            }
+            total += rlen;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * Block on the given write, record progress and return its buffer to
+     * the pool.
+     */
+    private void completeWrite(RawFileStorePrx rawFileStore,
+            PendingWrite write, TransferState state) throws ServerError {
+        rawFileStore.end_write(write.result);
+        state.stop(write.buffer.length);
+        state.uploadBytes(write.end);
+        if (write.pooled) {
+            releaseBuffer(write.buffer);
+        }
+        state.start();
+    }
+
+    private byte[] acquireBuffer(int blockSize) {
+        byte[] buf;
+        while ((buf = bufferPool.poll()) != null) {
+            if (buf.length == blockSize) {
+                return buf;
+            }
+        }
+        return new byte[blockSize];
+    }
+
+    private void releaseBuffer(byte[] buf) {
+        bufferPool.offer(buf);
+    }
+
+    /**
+     * A write which has been sent but not yet acknowledged.
+     */
+    private static class PendingWrite {
+
+        final AsyncResult result;
+
+        final byte[] buffer;
+
+        final boolean pooled;
+
+        final long end;
+
+        PendingWrite(AsyncResult result, byte[] buffer, boolean pooled,
+                long end) {
+            this.result = result;
+            this.buffer = buffer;
+            this.pooled = pooled;
+            this.end = end;
+        }
+    }
+
     /**
      * Since the {@link RawFileStorePrx} instances are cleaned up after each
      * transfer, there's no need to cleanup per {@link File}.
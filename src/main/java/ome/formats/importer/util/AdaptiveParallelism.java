@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resizes a thread pool between configured bounds according to how the
+ * tasks run on it perform. After each window of completed tasks the
+ * throughput in bytes per second is compared with that of the previous
+ * window: the pool keeps growing or shrinking while throughput improves
+ * and turns around when it does not. Independently, a window with many
+ * failures halves the pool and a window whose server-side latency is
+ * well above the best yet seen shrinks it by one.
+ *
+ * Instances may be used from several threads at once.
+ *
+ * @since 5.5.7
+ */
+public class AdaptiveParallelism {
+
+    private final static Logger log = LoggerFactory.getLogger(AdaptiveParallelism.class);
+
+    /** Failure rate of a window above which the pool is halved. */
+    private final static double MAX_ERROR_RATE = 0.1;
+
+    /** How much worse than the best latency a window may be before shrinking. */
+    private final static double MAX_LATENCY_FACTOR = 2.0;
+
+    /** Throughput gain needed for a change of size to count as an improvement. */
+    private final static double MIN_IMPROVEMENT = 1.05;
+
+    private final String name;
+
+    private final ThreadPoolExecutor pool;
+
+    private final int min, max;
+
+    private int size;
+
+    /** If the last change of size was to grow ({@code 1}) or shrink ({@code -1}). */
+    private int direction = 1;
+
+    /** Bytes per second of the previous window, {@code 0} if not comparable. */
+    private double lastThroughput;
+
+    /** The lowest mean latency of any window so far. */
+    private double bestLatency = Double.MAX_VALUE;
+
+    private long windowStart = System.nanoTime();
+
+    private int successes, failures, latencies;
+
+    private long bytes, latencyNanos;
+
+    /**
+     * Starts the pool half-way between its bounds.
+     * @param name how the pool is named in log messages
+     * @param pool the pool to resize
+     * @param min the fewest threads to use, at least {@code 1}
+     * @param max the most threads to use, at least {@code min}
+     */
+    public AdaptiveParallelism(String name, ThreadPoolExecutor pool, int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException(
+                    "bounds must satisfy 1 <= min <= max, not " + min + ", " + max);
+        }
+        this.name = name;
+        this.pool = pool;
+        this.min = min;
+        this.max = max;
+        this.size = pool.getMaximumPoolSize();
+        resize(min + (max - min + 1) / 2);
+    }
+
+    /**
+     * Notes that a task completed.
+     * @param taskBytes how many bytes the task processed
+     */
+    public synchronized void succeeded(long taskBytes) {
+        successes++;
+        bytes += taskBytes;
+        endOfWindow();
+    }
+
+    /**
+     * Notes that a task failed.
+     */
+    public synchronized void failed() {
+        failures++;
+        endOfWindow();
+    }
+
+    /**
+     * Notes how long the server took to respond to a request which depends
+     * on the tasks, e.g. to verify an upload.
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void latency(long nanos) {
+        latencies++;
+        latencyNanos += nanos;
+    }
+
+    /**
+     * @return the number of threads that the pool currently uses
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    private void endOfWindow() {
+        final int completed = successes + failures;
+        if (completed < Math.max(2, size * 2)) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final double seconds = Math.max(1, now - windowStart) / 1e9;
+        final double throughput = bytes / seconds;
+        final double latency = latencies == 0 ? 0 : (double) latencyNanos / latencies;
+
+        int next;
+        if ((double) failures / completed > MAX_ERROR_RATE) {
+            next = size / 2;
+            direction = 1;
+            lastThroughput = 0;
+        } else if (latencies > 0 && latency > bestLatency * MAX_LATENCY_FACTOR) {
+            next = size - 1;
+            direction = -1;
+            lastThroughput = 0;
+        } else {
+            if (throughput < lastThroughput * MIN_IMPROVEMENT) {
+                direction = -direction;
+            }
+            next = size + direction;
+            lastThroughput = throughput;
+        }
+        if (latencies > 0) {
+            bestLatency = Math.min(bestLatency, latency);
+        }
+        log.debug("{} pool: {} bytes/s, {} failures, {} ns latency over {} tasks",
+                name, (long) throughput, failures, (long) latency, completed);
+        resize(next);
+
+        windowStart = now;
+        successes = failures = latencies = 0;
+        bytes = latencyNanos = 0;
+    }
+
+    private void resize(int next) {
+        next = Math.max(min, Math.min(max, next));
+        if (next == size) {
+            return;
+        }
+        // the core size may never exceed the maximum size
+        if (next > size) {
+            pool.setMaximumPoolSize(next);
+            pool.setCorePoolSize(next);
+        } else {
+            pool.setCorePoolSize(next);
+            pool.setMaximumPoolSize(next);
+        }
+        log.info("Resized {} pool from {} to {} threads", name, size, next);
+        size = next;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk record of how {@link ome.formats.importer.ImportCandidates} grouped
+ * each file that it parsed, so that a repeat scan of unchanged files need not
+ * call {@link loci.formats.IFormatReader#setId(String)} again. Entries are
+ * keyed by canonical path and are only returned while the size and
+ * modification time of the file and of every file that it used are
+ * unchanged.
+ *
+ * Instances may be used from several threads at once.
+ *
+ * @since 5.5.7
+ */
+public class ScanCache {
+
+    private final static Logger log = LoggerFactory.getLogger(ScanCache.class);
+
+    private final static int VERSION = 1;
+
+    /**
+     * The outcome of parsing a file.
+     */
+    public static class Entry {
+
+        /** Class name of the reader which parsed the file. */
+        public final String reader;
+
+        /** The used files, in the order that they were returned. */
+        public final String[] usedFiles;
+
+        /** If the file was found to be a screen, plate or well. */
+        public final boolean isSPW;
+
+        /** Size and modification time of each used file. */
+        private final long[] sizes, times;
+
+        private final long size, time;
+
+        private Entry(String reader, String[] usedFiles, boolean isSPW,
+                long size, long time, long[] sizes, long[] times) {
+            this.reader = reader;
+            this.usedFiles = usedFiles;
+            this.isSPW = isSPW;
+            this.size = size;
+            this.time = time;
+            this.sizes = sizes;
+            this.times = times;
+        }
+    }
+
+    private final File file;
+
+    private final String signature;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Keys looked up or stored since loading, whether or not they hit. */
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Loads the cache from the given file if it exists and was written with
+     * the same signature.
+     * @param file where the cache is kept
+     * @param signature describes anything other than the files themselves
+     * which affects how they are parsed, e.g. the Bio-Formats version
+     */
+    public ScanCache(File file, String signature) {
+        this.file = file;
+        this.signature = signature;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable scan cache {}", file, e);
+                entries.clear();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION || !signature.equals(in.readUTF())) {
+                log.info("Discarding scan cache {} from another version", file);
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long time = in.readLong();
+                final String reader = in.readUTF();
+                final boolean isSPW = in.readBoolean();
+                final int used = in.readInt();
+                final String[] usedFiles = new String[used];
+                final long[] sizes = new long[used];
+                final long[] times = new long[used];
+                for (int j = 0; j < used; j++) {
+                    usedFiles[j] = in.readUTF();
+                    sizes[j] = in.readLong();
+                    times[j] = in.readLong();
+                }
+                entries.put(path, new Entry(reader, usedFiles, isSPW,
+                        size, time, sizes, times));
+            }
+        } catch (EOFException eof) {
+            throw new IOException("Truncated scan cache", eof);
+        } finally {
+            in.close();
+        }
+        log.info("Loaded {} entries from scan cache {}", entries.size(), file);
+    }
+
+    /**
+     * Finds how the given file was grouped when last parsed.
+     * @param candidate the file about to be parsed
+     * @return the outcome, or {@code null} if the file has not been parsed or
+     * it or any of its used files has since changed
+     */
+    public Entry lookup(File candidate) {
+        final String key;
+        final BasicFileAttributes attrs;
+        try {
+            key = candidate.getCanonicalPath();
+            attrs = attributes(candidate);
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+        seen.add(key);
+        final Entry entry = entries.get(key);
+        if (entry == null || !matches(attrs, entry.size, entry.time)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        for (int i = 0; i < entry.usedFiles.length; i++) {
+            final BasicFileAttributes used;
+            try {
+                used = attributes(new File(entry.usedFiles[i]));
+            } catch (IOException e) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (!matches(used, entry.sizes[i], entry.times[i])) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Records how the given file was grouped. Nothing is recorded if any of
+     * the files cannot be examined.
+     * @param candidate the file which was parsed
+     * @param reader class name of the reader which parsed the file
+     * @param usedFiles the files that it uses
+     * @param isSPW if the file was found to be a screen, plate or well
+     */
+    public void store(File candidate, String reader, String[] usedFiles,
+            boolean isSPW) {
+        try {
+            final String key = candidate.getCanonicalPath();
+            final BasicFileAttributes attrs = attributes(candidate);
+            final long[] sizes = new long[usedFiles.length];
+            final long[] times = new long[usedFiles.length];
+            for (int i = 0; i < usedFiles.length; i++) {
+                final BasicFileAttributes used = attributes(new File(usedFiles[i]));
+                sizes[i] = used.size();
+                times[i] = used.lastModifiedTime().toMillis();
+            }
+            seen.add(key);
+            entries.put(key, new Entry(reader, usedFiles.clone(), isSPW,
+                    attrs.size(), attrs.lastModifiedTime().toMillis(),
+                    sizes, times));
+        } catch (IOException e) {
+            log.debug("Not caching scan of {}", candidate, e);
+        }
+    }
+
+    /**
+     * Writes the cache back to its file. Entries beneath the given paths
+     * which were neither looked up nor stored since loading are dropped
+     * since their files no longer exist there; entries elsewhere are kept.
+     * @param paths the paths which were scanned
+     * @throws IOException if the cache could not be written
+     */
+    public void save(String[] paths) throws IOException {
+        final List<String> roots = new ArrayList<String>(paths.length);
+        for (String path : paths) {
+            roots.add(new File(path).getCanonicalPath());
+        }
+        final List<Map.Entry<String, Entry>> kept = new ArrayList<Map.Entry<String, Entry>>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (seen.contains(entry.getKey()) || !isBeneath(entry.getKey(), roots)) {
+                kept.add(entry);
+            }
+        }
+
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(signature);
+            out.writeInt(kept.size());
+            for (Map.Entry<String, Entry> e : kept) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.time);
+                out.writeUTF(entry.reader);
+                out.writeBoolean(entry.isSPW);
+                out.writeInt(entry.usedFiles.length);
+                for (int i = 0; i < entry.usedFiles.length; i++) {
+                    out.writeUTF(entry.usedFiles[i]);
+                    out.writeLong(entry.sizes[i]);
+                    out.writeLong(entry.times[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Saved {} entries to scan cache {} ({} hits, {} misses)",
+                kept.size(), file, hits.get(), misses.get());
+    }
+
+    /**
+     * @return how many lookups found a valid entry
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many lookups found no valid entry
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private static BasicFileAttributes attributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    private static boolean matches(BasicFileAttributes attrs, long size, long time) {
+        return attrs.isRegularFile() && attrs.size() == size
+                && attrs.lastModifiedTime().toMillis() == time;
+    }
+
+    private static boolean isBeneath(String path, List<String> roots) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import ome.formats.OMEXMLModelComparator;
+import ome.util.LSID;
+import omero.metadatastore.IObjectContainer;
+import omero.model.IObject;
+
+/**
+ * Container cache for {@link IObjectContainerStore} implementations. Entries
+ * are ordered by {@link OMEXMLModelComparator} as before but secondary
+ * indexes by class and by leading LSID indexes are kept in step with every
+ * modification, including those made through the map views. This makes
+ * {@link #getContainers(Class)} and {@link #count(Class, int...)} cost in
+ * proportion to their result rather than to the size of the cache.
+ *
+ * @since 5.5.7
+ */
+public class IObjectContainerCache extends AbstractMap<LSID, IObjectContainer> {
+
+    /**
+     * Key for the number of LSIDs of a class which share leading indexes.
+     */
+    private static final class Prefix {
+
+        final Class<?> klass;
+
+        final int[] indexes;
+
+        Prefix(Class<?> klass, int[] indexes, int length) {
+            this.klass = klass;
+            this.indexes = Arrays.copyOf(indexes, length);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Prefix)) {
+                return false;
+            }
+            final Prefix other = (Prefix) obj;
+            return klass.equals(other.klass) && Arrays.equals(indexes, other.indexes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * klass.hashCode() + Arrays.hashCode(indexes);
+        }
+    }
+
+    private final OMEXMLModelComparator comparator = new OMEXMLModelComparator();
+
+    private final TreeMap<LSID, IObjectContainer> containers =
+            new TreeMap<LSID, IObjectContainer>(comparator);
+
+    /** The keys of each class, in the same order as {@link #containers}. */
+    private final Map<Class<?>, NavigableSet<LSID>> byClass =
+            new HashMap<Class<?>, NavigableSet<LSID>>();
+
+    /** How many keys of each class have each leading run of indexes. */
+    private final Map<Prefix, Integer> byPrefix = new HashMap<Prefix, Integer>();
+
+    /** How many keys of each class have each number of indexes. */
+    private final Map<Class<?>, TreeMap<Integer, Integer>> lengths =
+            new HashMap<Class<?>, TreeMap<Integer, Integer>>();
+
+    private final Set<Entry<LSID, IObjectContainer>> entrySet =
+            new AbstractSet<Entry<LSID, IObjectContainer>>() {
+
+        @Override
+        public Iterator<Entry<LSID, IObjectContainer>> iterator() {
+            final Iterator<Entry<LSID, IObjectContainer>> it =
+                    containers.entrySet().iterator();
+            return new Iterator<Entry<LSID, IObjectContainer>>() {
+
+                private LSID last;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Entry<LSID, IObjectContainer> next() {
+                    final Entry<LSID, IObjectContainer> next = it.next();
+                    last = next.getKey();
+                    return next;
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                    unindex(last);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return containers.size();
+        }
+
+        @Override
+        public void clear() {
+            IObjectContainerCache.this.clear();
+        }
+    };
+
+    @Override
+    public Set<Entry<LSID, IObjectContainer>> entrySet() {
+        return entrySet;
+    }
+
+    @Override
+    public int size() {
+        return containers.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return containers.containsKey(key);
+    }
+
+    @Override
+    public IObjectContainer get(Object key) {
+        return containers.get(key);
+    }
+
+    @Override
+    public IObjectContainer put(LSID key, IObjectContainer value) {
+        final boolean isNew = !containers.containsKey(key);
+        final IObjectContainer previous = containers.put(key, value);
+        if (isNew) {
+            index(key);
+        }
+        return previous;
+    }
+
+    @Override
+    public IObjectContainer remove(Object key) {
+        if (!(key instanceof LSID) || !containers.containsKey(key)) {
+            return null;
+        }
+        final IObjectContainer previous = containers.remove(key);
+        unindex((LSID) key);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        containers.clear();
+        byClass.clear();
+        byPrefix.clear();
+        lengths.clear();
+    }
+
+    /**
+     * Retrieves the containers of a given class in cache order.
+     * @param klass Class to retrieve containers for.
+     * @return a new list of the containers, empty if there are none
+     */
+    public List<IObjectContainer> getContainers(Class<? extends IObject> klass) {
+        final NavigableSet<LSID> keys = byClass.get(klass);
+        if (keys == null) {
+            return new ArrayList<IObjectContainer>();
+        }
+        final List<IObjectContainer> toReturn = new ArrayList<IObjectContainer>(keys.size());
+        for (final LSID key : keys) {
+            toReturn.add(containers.get(key));
+        }
+        return toReturn;
+    }
+
+    /**
+     * Counts the containers of a given class whose LSID indexes match the
+     * given indexes, comparing only as many as the shorter of the two has.
+     * @param klass Class to count containers of, not {@code null}.
+     * @param indexes Indexes to match, or {@code null} to count all
+     * containers of the class.
+     * @return See above.
+     * @see IObjectContainerStore#countCachedContainers(Class, int...)
+     */
+    public int count(Class<? extends IObject> klass, int... indexes) {
+        final NavigableSet<LSID> keys = byClass.get(klass);
+        if (keys == null) {
+            return 0;
+        } else if (indexes == null) {
+            return keys.size();
+        }
+        final TreeMap<Integer, Integer> classLengths = lengths.get(klass);
+        int count = 0;
+        // Keys with at least as many indexes must match all those given.
+        final Integer matching = byPrefix.get(new Prefix(klass, indexes, indexes.length));
+        if (matching != null) {
+            count += matching;
+        }
+        // Shorter keys must match in full.
+        for (final Integer length : classLengths.headMap(indexes.length).keySet()) {
+            if (containers.containsKey(new LSID(klass, Arrays.copyOf(indexes, length)))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void index(LSID key) {
+        final Class<? extends IObject> klass = key.getJavaClass();
+        if (klass == null) {
+            return;
+        }
+        NavigableSet<LSID> keys = byClass.get(klass);
+        if (keys == null) {
+            keys = new TreeSet<LSID>(comparator);
+            byClass.put(klass, keys);
+        }
+        keys.add(key);
+        final int[] indexes = key.getIndexes();
+        for (int length = 0; length <= indexes.length; length++) {
+            final Prefix prefix = new Prefix(klass, indexes, length);
+            final Integer count = byPrefix.get(prefix);
+            byPrefix.put(prefix, count == null ? 1 : count + 1);
+        }
+        TreeMap<Integer, Integer> classLengths = lengths.get(klass);
+        if (classLengths == null) {
+            classLengths = new TreeMap<Integer, Integer>();
+            lengths.put(klass, classLengths);
+        }
+        final Integer count = classLengths.get(indexes.length);
+        classLengths.put(indexes.length, count == null ? 1 : count + 1);
+    }
+
+    private void unindex(LSID key) {
+        final Class<? extends IObject> klass = key.getJavaClass();
+        if (klass == null) {
+            return;
+        }
+        final NavigableSet<LSID> keys = byClass.get(klass);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            byClass.remove(klass);
+        }
+        final int[] indexes = key.getIndexes();
+        for (int length = 0; length <= indexes.length; length++) {
+            final Prefix prefix = new Prefix(klass, indexes, length);
+            final int count = byPrefix.get(prefix);
+            if (count == 1) {
+                byPrefix.remove(prefix);
+            } else {
+                byPrefix.put(prefix, count - 1);
+            }
+        }
+        final TreeMap<Integer, Integer> classLengths = lengths.get(klass);
+        final int count = classLengths.get(indexes.length);
+        if (count == 1) {
+            classLengths.remove(indexes.length);
+            if (classLengths.isEmpty()) {
+                lengths.remove(klass);
+            }
+        } else {
+            classLengths.put(indexes.length, count - 1);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.fire;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import omero.api.ServiceFactoryPrx;
+import omero.grid.ClusterNodePrx;
+import omero.grid.InternalRepositoryPrx;
+import omero.grid.ProcessorPrx;
+import omero.grid.TablesPrx;
+import omero.grid.monitors.MonitorServerPrx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import IceGrid.PermissionDeniedException;
+
+/**
+ * {@link Registry} which remembers the servers found by the lookups of
+ * processors, repositories, tables and monitor servers so that callers need
+ * not query IceGrid on every request. Once a lookup is older than the time
+ * to live it is still returned, but a fresh lookup is started in the
+ * background; only the very first lookup of each kind waits for IceGrid.
+ * Failed lookups keep the previous result. Adding or removing registry
+ * objects marks all lookups as stale.
+ *
+ * Cluster nodes are always looked up afresh since {@link Ring} uses them to
+ * detect which nodes are down.
+ *
+ * The outcomes of calls to the servers may be reported to
+ * {@link #getHealth()} so that callers can try the most reliable one first.
+ *
+ * @since 5.5.7
+ */
+public class CachedRegistry implements Registry {
+
+    private final static Logger log = LoggerFactory.getLogger(CachedRegistry.class);
+
+    /** Default milliseconds for which a lookup is used without refreshing. */
+    public final static long DEFAULT_TTL = 5000L;
+
+    private final Registry delegate;
+
+    private final long ttl;
+
+    private final ProxyHealth health;
+
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "registry-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final View<ProcessorPrx[]> processors = new View<ProcessorPrx[]>("processors") {
+        ProcessorPrx[] load() {
+            return delegate.lookupProcessors();
+        }
+    };
+
+    private final View<InternalRepositoryPrx[]> repositories = new View<InternalRepositoryPrx[]>("repositories") {
+        InternalRepositoryPrx[] load() {
+            return delegate.lookupRepositories();
+        }
+    };
+
+    private final View<TablesPrx[]> tables = new View<TablesPrx[]>("tables") {
+        TablesPrx[] load() {
+            return delegate.lookupTables();
+        }
+    };
+
+    private final View<MonitorServerPrx[]> monitors = new View<MonitorServerPrx[]>("monitor servers") {
+        MonitorServerPrx[] load() {
+            return delegate.lookupMonitorServers();
+        }
+    };
+
+    public CachedRegistry(Registry delegate) {
+        this(delegate, DEFAULT_TTL);
+    }
+
+    /**
+     * @param delegate the registry which performs the lookups
+     * @param ttl milliseconds for which a lookup is used without refreshing
+     */
+    public CachedRegistry(Registry delegate, long ttl) {
+        this.delegate = delegate;
+        this.ttl = ttl;
+        this.health = new ProxyHealth(ttl);
+    }
+
+    /**
+     * @return the outcomes of recent calls to the servers found by this
+     * registry
+     */
+    public ProxyHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * Stops refreshing lookups in the background.
+     */
+    public void destroy() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * One kind of lookup and its most recent result.
+     */
+    private abstract class View<T> {
+
+        private final String name;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile T value;
+
+        private volatile long loaded;
+
+        View(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the result of the lookup, or {@code null} if it failed
+         */
+        abstract T load();
+
+        T get() {
+            final T current = value;
+            if (current == null) {
+                return refresh();
+            }
+            if (System.currentTimeMillis() - loaded > ttl
+                    && refreshing.compareAndSet(false, true)) {
+                try {
+                    refresher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                refresh();
+                            } finally {
+                                refreshing.set(false);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    refreshing.set(false);
+                }
+            }
+            return current;
+        }
+
+        private T refresh() {
+            final T fresh = load();
+            if (fresh == null) {
+                log.debug("Keeping previous lookup of {}", name);
+                return value;
+            }
+            value = fresh;
+            loaded = System.currentTimeMillis();
+            return fresh;
+        }
+
+        void invalidate() {
+            loaded = 0;
+        }
+    }
+
+    private void invalidate() {
+        processors.invalidate();
+        repositories.invalidate();
+        tables.invalidate();
+        monitors.invalidate();
+    }
+
+    public ServiceFactoryPrx getInternalServiceFactory(String user,
+            Long groupId, int retries, int interval, String client_uuid)
+            throws Exception {
+        return delegate.getInternalServiceFactory(user, groupId, retries,
+                interval, client_uuid);
+    }
+
+    public IceGrid.QueryPrx getGridQuery() {
+        return delegate.getGridQuery();
+    }
+
+    public IceGrid.AdminSessionPrx getAdminSession()
+            throws PermissionDeniedException {
+        return delegate.getAdminSession();
+    }
+
+    public void addObject(Ice.ObjectPrx obj) throws Exception {
+        try {
+            delegate.addObject(obj);
+        } finally {
+            invalidate();
+        }
+    }
+
+    public void removeObject(Ice.Identity id) throws Exception {
+        try {
+            delegate.removeObject(id);
+        } finally {
+            invalidate();
+        }
+    }
+
+    public boolean removeObjectSafely(Ice.Identity id) {
+        try {
+            return delegate.removeObjectSafely(id);
+        } finally {
+            invalidate();
+        }
+    }
+
+    public ClusterNodePrx[] lookupClusterNodes() {
+        return delegate.lookupClusterNodes();
+    }
+
+    public ProcessorPrx[] lookupProcessors() {
+        return processors.get();
+    }
+
+    public InternalRepositoryPrx[] lookupRepositories() {
+        return repositories.get();
+    }
+
+    public TablesPrx[] lookupTables() {
+        return tables.get();
+    }
+
+    public MonitorServerPrx[] lookupMonitorServers() {
+        return monitors.get();
+    }
+}
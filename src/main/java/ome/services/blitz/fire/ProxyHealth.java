@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.fire;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the outcome of recent calls to the servers found in the
+ * {@link Registry} so that callers can try the most reliable server first
+ * rather than contacting all of them. Servers are identified by the
+ * identity of their proxy. Each outcome moves a server's score a fixed
+ * fraction of the way towards {@code 1} for a success or {@code 0} for a
+ * failure; servers not yet called score {@code 1}.
+ *
+ * Instances may be used from several threads at once.
+ *
+ * @since 5.5.7
+ */
+public class ProxyHealth {
+
+    /** How much weight the latest outcome has in a server's score. */
+    private final static double WEIGHT = 0.3;
+
+    private final ConcurrentMap<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    private final long recentMillis;
+
+    /**
+     * @param recentMillis for how long a success counts as recent for
+     * {@link #recentlySucceeded(Ice.ObjectPrx)}
+     */
+    public ProxyHealth(long recentMillis) {
+        this.recentMillis = recentMillis;
+    }
+
+    private static final class Record {
+
+        double score = 1;
+
+        long lastSuccess;
+
+    }
+
+    private Record record(Ice.ObjectPrx prx) {
+        final String key = Ice.Util.identityToString(prx.ice_getIdentity());
+        Record record = records.get(key);
+        if (record == null) {
+            final Record created = new Record();
+            record = records.putIfAbsent(key, created);
+            if (record == null) {
+                record = created;
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Notes that a call to the server succeeded.
+     * @param prx a proxy to the server
+     */
+    public void succeeded(Ice.ObjectPrx prx) {
+        final Record record = record(prx);
+        synchronized (record) {
+            record.score += WEIGHT * (1 - record.score);
+            record.lastSuccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Notes that a call to the server failed or did not answer in time.
+     * @param prx a proxy to the server
+     */
+    public void failed(Ice.ObjectPrx prx) {
+        final Record record = record(prx);
+        synchronized (record) {
+            record.score -= WEIGHT * record.score;
+            record.lastSuccess = 0;
+        }
+    }
+
+    /**
+     * @param prx a proxy to the server
+     * @return the server's current score, between {@code 0} and {@code 1}
+     */
+    public double score(Ice.ObjectPrx prx) {
+        final Record record = record(prx);
+        synchronized (record) {
+            return record.score;
+        }
+    }
+
+    /**
+     * @param prx a proxy to the server
+     * @return if the last call to the server succeeded, and recently
+     */
+    public boolean recentlySucceeded(Ice.ObjectPrx prx) {
+        final Record record = record(prx);
+        synchronized (record) {
+            return record.lastSuccess > 0
+                    && System.currentTimeMillis() - record.lastSuccess < recentMillis;
+        }
+    }
+
+    /**
+     * @param prxs proxies to servers, may be {@code null} or contain
+     * {@code null}
+     * @return the non-null proxies, the best scoring first
+     */
+    public <T extends Ice.ObjectPrx> List<T> byHealth(T[] prxs) {
+        final List<T> sorted = new ArrayList<T>();
+        if (prxs == null) {
+            return sorted;
+        }
+        for (final T prx : prxs) {
+            if (prx != null) {
+                sorted.add(prx);
+            }
+        }
+        if (sorted.size() > 1) {
+            Collections.sort(sorted, new Comparator<T>() {
+                @Override
+                public int compare(T left, T right) {
+                    return Double.compare(score(right), score(left));
+                }
+            });
+        }
+        return sorted;
+    }
+}
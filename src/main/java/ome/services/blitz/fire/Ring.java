@@ -5,8 +5,11 @@
 
 package ome.services.blitz.fire;
 
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import ome.security.NodeProvider;
@@ -22,6 +25,7 @@ import ome.system.Principal;
 import ome.util.SqlAction;
 import omero.grid.ClusterNodePrx;
 import omero.grid.ClusterNodePrxHelper;
+import omero.grid.NodeLoad;
 import omero.grid._ClusterNodeDisp;
 
 import org.slf4j.Logger;
@@ -48,6 +52,11 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
 
     private final static Logger log = LoggerFactory.getLogger(Ring.class);
 
+    /**
+     * Milliseconds to wait for other nodes to report their load.
+     */
+    private final static int LOAD_TIMEOUT = 1000;
+
     /**
      * UUID for this cluster node. Used to uniquely identify the session manager
      * in this blitz instance. Most likely used in common with internal server
@@ -69,6 +78,8 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
 
     private/* final */ Registry registry;
 
+    private/* final */ SessionManagerI sessionManager;
+
     /**
      * Standard blitz adapter which is used for the callback.
      */
@@ -101,6 +112,15 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
         this.registry = registry;
     }
 
+    /**
+     * Sets the {@link SessionManagerI} whose sessions are counted by
+     * {@link #getLoad(Current)}. This is currently done in
+     * {@link BlitzConfiguration}
+     */
+    public void setSessionManager(SessionManagerI sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
     // Redirector.Context API
     // =========================================================================
 
@@ -129,6 +149,36 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
         return this.communicator;
     }
 
+    /**
+     * Asks every node in the registry for its load. Nodes which do not
+     * answer within {@link #LOAD_TIMEOUT} milliseconds are left out.
+     */
+    public Map<String, NodeLoad> getNodeLoads() {
+        final Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+        loads.put(uuid, getLoad(null));
+        final ClusterNodePrx[] nodes = registry == null ? null
+                : registry.lookupClusterNodes();
+        if (nodes == null) {
+            return loads;
+        }
+        for (ClusterNodePrx prx : nodes) {
+            if (prx == null) {
+                continue;
+            }
+            final String name = prx.ice_getIdentity().name;
+            if (uuid.equals(name)) {
+                continue;
+            }
+            try {
+                loads.put(name, ClusterNodePrxHelper.uncheckedCast(
+                        prx.ice_invocationTimeout(LOAD_TIMEOUT)).getLoad());
+            } catch (Exception e) {
+                log.warn("Could not get load of node " + name + ": " + e);
+            }
+        }
+        return loads;
+    }
+
     // Configuration and cluster usage
     // =========================================================================
 
@@ -250,6 +300,19 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
         return this.uuid;
     }
 
+    public NodeLoad getLoad(Current __current) {
+        final Runtime runtime = Runtime.getRuntime();
+        final NodeLoad load = new NodeLoad();
+        load.activeSessions = sessionManager == null ? 0
+                : (int) sessionManager.getSessionCount();
+        load.systemLoad = ManagementFactory.getOperatingSystemMXBean()
+                .getSystemLoadAverage();
+        load.processors = runtime.availableProcessors();
+        load.heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        load.heapMax = runtime.maxMemory();
+        return load;
+    }
+
     /**
      * Called when any node goes down. First we try to remove any redirect for
      * that instance. Then we try to install ourselves.
@@ -117,6 +117,13 @@ public final class SessionManagerI extends Glacier2._SessionManagerDisp
         this.servantsPerSession = servantsPerSession;
     }
 
+    /**
+     * @return the number of sessions which have servants on this instance
+     */
+    public long getSessionCount() {
+        return sessionToHolder.size();
+    }
+
     public void setApplicationContext(ApplicationContext applicationContext)
             throws BeansException {
         this.context = (OmeroContext) applicationContext;
@@ -8,9 +8,21 @@ package ome.services.blitz.impl;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -30,10 +42,11 @@ import loci.formats.tiff.IFD;
 import ome.api.RawPixelsStore;
 import ome.conditions.ApiUsageException;
 import ome.conditions.InternalException;
+import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
-import ome.io.nio.RomioPixelBuffer;
 import ome.services.blitz.util.BlitzExecutor;
 import ome.services.blitz.util.BlitzOnly;
+import ome.services.blitz.util.ExportCache;
 import ome.services.blitz.util.ServiceFactoryAware;
 import ome.services.db.DatabaseIdentity;
 import ome.services.formats.OmeroReader;
@@ -91,6 +104,23 @@ public class ExporterI extends AbstractCloseableAmdServant implements
      */
     private final static long BIG_TIFF_SIZE = 2L * Integer.MAX_VALUE;
 
+    /**
+     * The width and height of the tiles in which TIFF files are written.
+     */
+    private final static int TILE_SIZE = 512;
+
+    /**
+     * How many threads read tiles for a TIFF file, each from its own
+     * {@link PixelBuffer}.
+     */
+    private final static int TILE_READERS = 4;
+
+    /**
+     * How many tiles may have been read, or be being read, but not yet
+     * have been written. This bounds the memory used by TIFF generation.
+     */
+    private final static int TILES_AHEAD = 16;
+
 
     /**
      * Utility enum for asserting the state of Exporter instances.
@@ -122,6 +152,17 @@ public class ExporterI extends AbstractCloseableAmdServant implements
      */
     private volatile File file;
 
+    /**
+     * The entry of {@link #cache} for {@link #file} if it is shared and so
+     * must be released rather than deleted.
+     */
+    private volatile ExportCache.Entry cached;
+
+    /**
+     * Open on {@link #file} once it is read. Guarded by this.
+     */
+    private FileChannel channel;
+
     /**
      * Encapsulates the logic for creating new LSIDs and comparing existing ones
      * to the internal value for this DB.
@@ -131,20 +172,29 @@ public class ExporterI extends AbstractCloseableAmdServant implements
     /** LOCI OME-XML service for working with OME-XML. */
     private final OMEXMLService service;
 
-    /** Access to information about big images to prevent exporting large
-     * files since there is currently no generally readable tiff support
-     * for our tiles.
+    /** Access to the pixel buffers from which the tiles of TIFF files are
+     * read, including those of big images which require a pyramid.
      *
      * @see ticket:6713
      */
     private final PixelsService pixelsService;
 
+    /** The TIFF files generated by all sessions, may be null. */
+    private final ExportCache cache;
+
     public ExporterI(BlitzExecutor be, DatabaseIdentity databaseIdentity,
             PixelsService pixelsService)
         throws DependencyException {
+        this(be, databaseIdentity, pixelsService, null);
+    }
+
+    public ExporterI(BlitzExecutor be, DatabaseIdentity databaseIdentity,
+            PixelsService pixelsService, ExportCache cache)
+        throws DependencyException {
         super(null, be);
         this.databaseIdentity = databaseIdentity;
         this.pixelsService = pixelsService;
+        this.cache = cache;
         retrieve = new OmeroMetadata(databaseIdentity);
         loci.common.services.ServiceFactory sf =
             new loci.common.services.ServiceFactory();
@@ -258,11 +308,28 @@ public class ExporterI extends AbstractCloseableAmdServant implements
      * Transition from waiting to config
      */
     private void startConfig() {
-        if (file != null) {
+        releaseFile();
+    }
+
+    /**
+     * Stops reading {@link #file} and deletes it unless it is shared.
+     */
+    private synchronized void releaseFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("IOException on file close");
+            }
+            channel = null;
+        }
+        if (cached != null) {
+            cached.release();
+            cached = null;
+        } else if (file != null) {
             file.delete();
-            file = null;
         }
-        
+        file = null;
     }
 
     /**
@@ -333,12 +400,19 @@ public class ExporterI extends AbstractCloseableAmdServant implements
     /**
      * Transitions from config to output.
      */
+    @SuppressWarnings("unchecked")
     private void do_tiff(final AMD_Exporter_generateTiff __cb) {
+        final Future<ExportCache.Entry> pending;
         try {
-            factory.executor.execute(factory.principal,
-                    new Executor.SimpleWork<Void>(this, "generateTiff") {
+            pending = (Future<ExportCache.Entry>) factory.executor.execute(factory.principal,
+                    new Executor.SimpleWork<Future<ExportCache.Entry>>(this, "generateTiff") {
+                        /**
+                         * @return the file being generated by another
+                         * session, to wait for once the transaction ends
+                         */
                         @Transactional(readOnly = true)
-                        public Void doWork(Session session, ServiceFactory sf) {
+                        public Future<ExportCache.Entry> doWork(Session session,
+                                final ServiceFactory sf) {
                             retrieve.initialize(session);
 
                             int num = retrieve.sizeImages();
@@ -350,25 +424,41 @@ public class ExporterI extends AbstractCloseableAmdServant implements
                                 return null;
                             }
 
+                            try {
+                                if (cache != null) {
+                                    return cache.acquireAsync(tiffKey(), ".ome.tiff",
+                                            new ExportCache.Generator() {
+                                                public void generate(File target)
+                                                        throws Exception {
+                                                    writeTiff(sf, target);
+                                                }
+                                            });
+                                }
+                                file = TempFileManager.create_path("__omero_export__",
+                                        ".ome.tiff");
+                                writeTiff(sf, file);
+                                retrieve = null;
+                                __cb.ice_response(file.length());
+                            } catch (Exception e) {
+                                tiffFailed(__cb, e);
+                            }
+
+                            return null; // see calls to __cb above
+                        }
+
+                        private void writeTiff(ServiceFactory sf, File target)
+                                throws Exception {
                             RawPixelsStore raw = null;
                             OmeroReader reader = null;
                             OMETiffWriter writer = null;
+                            final BlockingQueue<PixelBuffer> buffers =
+                                    new ArrayBlockingQueue<PixelBuffer>(TILE_READERS);
                             try {
 
                                 Image image = retrieve.getImage(0);
                                 Pixels pix = image.getPixels(0);
-                                if (requiresPyramid(sf, pix.getId().getValue())) {
-                                    long id = image.getId().getValue();
-                                    int x = pix.getSizeX().getValue();
-                                    int y = pix.getSizeY().getValue();
-                                    throw new omero.ApiUsageException(
-                                            null, null, String.format(
-                                            "Image:%s is too large for export (sizeX=%s, sizeY=%s)",
-                                            id, x, y));
-                                }
-
-                                file = TempFileManager.create_path("__omero_export__",
-                                        ".ome.tiff");
+                                ome.model.core.Pixels _p = sf.getQueryService().get(
+                                        ome.model.core.Pixels.class, pix.getId().getValue());
 
                                 raw = sf.createRawPixelsStore();
                                 raw.setPixelsId(pix.getId().getValue(), true);
@@ -376,6 +466,10 @@ public class ExporterI extends AbstractCloseableAmdServant implements
                                 reader = new OmeroReader(raw, pix);
                                 reader.setId("OMERO");
 
+                                for (int i = 0; i < TILE_READERS; i++) {
+                                    buffers.add(pixelsService.getPixelBuffer(_p, false));
+                                }
+
                                 writer = new OMETiffWriter();
                                 writer.setMetadataRetrieve(retrieve);
                                 writer.setWriteSequentially(true); // ticket:6701
@@ -386,34 +480,19 @@ public class ExporterI extends AbstractCloseableAmdServant implements
                                 if (bigtiff) {
                                     writer.setBigTiff(true);
                                 }
-                                writer.setId(file.getAbsolutePath());
+                                writer.setId(target.getAbsolutePath());
 
                                 int planeCount = reader.planes;
-                                int planeSize = RomioPixelBuffer.safeLongToInteger(
-                                        raw.getPlaneSize());
                                 log.info(String.format(
                                             "Using big TIFF? %s mSize=%d " +
                                             "dSize=%d planeCount=%d " +
-                                            "planeSize=%d",
+                                            "tileSize=%d pyramid=%s",
                                             bigtiff, mSize, dSize,
-                                            planeCount, planeSize));
-                                byte[] plane = new byte[planeSize];
-                                for (int i = 0; i < planeCount; i++) {
-                                    int[] zct = FormatTools.getZCTCoords(
+                                            planeCount, TILE_SIZE,
+                                            pixelsService.requiresPixelsPyramid(_p)));
+                                writeTiles(writer, reader,
                                         retrieve.getPixelsDimensionOrder(0).getValue(),
-                                        reader.getSizeZ(), reader.getSizeC(), reader.getSizeT(),
-                                        planeCount, i);
-                                    int readerIndex = reader.getIndex(zct[0], zct[1], zct[2]);
-                                    reader.openBytes(readerIndex, plane);
-
-
-                                    IFD ifd = new IFD();
-                                    ifd.put(IFD.TILE_WIDTH, 128);
-                                    ifd.put(IFD.TILE_LENGTH, 128);
-
-                                    writer.saveBytes(i, plane, ifd);
-                                }
-                                retrieve = null;
+                                        buffers);
 
                                 try {
                                     writer.close();
@@ -422,22 +501,22 @@ public class ExporterI extends AbstractCloseableAmdServant implements
                                     writer = null;
                                 }
 
-                                    __cb.ice_response(file.length());
-                                } catch (Exception e) {
-                                    omero.InternalException ie = new omero.InternalException(
-                                            null, null,
-                                            "Error during TIFF generation");
-                                    IceMapper.fillServerError(ie, e);
-                                    __cb.ice_exception(ie);
-                                } finally {
-                                    cleanup(raw, reader, writer);
-                                }
-
-                            return null; // see calls to __cb above
+                            } finally {
+                                cleanup(raw, reader, writer, buffers);
+                            }
                         }
 
                         private void cleanup(RawPixelsStore raw,
-                                OmeroReader reader, IFormatWriter writer) {
+                                OmeroReader reader, IFormatWriter writer,
+                                BlockingQueue<PixelBuffer> buffers) {
+                            PixelBuffer buffer;
+                            while ((buffer = buffers.poll()) != null) {
+                                try {
+                                    buffer.close();
+                                } catch (Exception e) {
+                                    log.error("Error closing pixel buffer", e);
+                                }
+                            }
                             try {
                                 if (raw != null) {
                                     raw.close();
@@ -465,7 +544,113 @@ public class ExporterI extends AbstractCloseableAmdServant implements
             IceMapper mapper = new IceMapper();
             Ice.UserException ue = mapper.handleException(e, factory.getExecutor().getContext());
             __cb.ice_exception(ue);
+            return;
         }
+        if (pending != null) {
+            try {
+                cached = ExportCache.await(pending);
+                file = cached.getFile();
+                retrieve = null;
+                __cb.ice_response(file.length());
+            } catch (Exception e) {
+                tiffFailed(__cb, e);
+            }
+        }
+    }
+
+    private static void tiffFailed(AMD_Exporter_generateTiff __cb, Exception e) {
+        omero.InternalException ie = new omero.InternalException(
+                null, null,
+                "Error during TIFF generation");
+        IceMapper.fillServerError(ie, e);
+        __cb.ice_exception(ie);
+    }
+
+    /**
+     * Writes every plane tile by tile, in order, while up to
+     * {@link #TILES_AHEAD} of the following tiles are read concurrently.
+     * Each reading thread borrows one of the given buffers for each tile.
+     * Since tiles rather than whole planes are held in memory, images which
+     * require a pyramid can be written at full resolution.
+     */
+    private void writeTiles(OMETiffWriter writer, OmeroReader reader,
+            String dimensionOrder, final BlockingQueue<PixelBuffer> buffers)
+            throws Exception {
+
+        final int sizeX = reader.getSizeX();
+        final int sizeY = reader.getSizeY();
+        final int bpp = FormatTools.getBytesPerPixel(reader.getPixelType());
+        final int planeCount = reader.planes;
+
+        final ExecutorService readers = Executors.newFixedThreadPool(
+                buffers.size(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "export-tile-reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final Deque<Future<byte[]>> tiles = new ArrayDeque<Future<byte[]>>();
+        final Deque<int[]> positions = new ArrayDeque<int[]>();
+        final Deque<IFD> ifds = new ArrayDeque<IFD>();
+        try {
+            for (int i = 0; i < planeCount; i++) {
+                final int[] zct = FormatTools.getZCTCoords(dimensionOrder,
+                        reader.getSizeZ(), reader.getSizeC(), reader.getSizeT(),
+                        planeCount, i);
+                // One IFD collects the offsets of all tiles of a plane
+                final IFD ifd = new IFD();
+                ifd.put(IFD.TILE_WIDTH, TILE_SIZE);
+                ifd.put(IFD.TILE_LENGTH, TILE_SIZE);
+                for (int y = 0; y < sizeY; y += TILE_SIZE) {
+                    for (int x = 0; x < sizeX; x += TILE_SIZE) {
+                        final int tileX = x;
+                        final int tileY = y;
+                        final int w = Math.min(TILE_SIZE, sizeX - x);
+                        final int h = Math.min(TILE_SIZE, sizeY - y);
+                        tiles.addLast(readers.submit(new Callable<byte[]>() {
+                            @Override
+                            public byte[] call() throws Exception {
+                                final PixelBuffer buffer = buffers.take();
+                                try {
+                                    return buffer.getTileDirect(zct[0], zct[1],
+                                            zct[2], tileX, tileY, w, h,
+                                            new byte[w * h * bpp]);
+                                } finally {
+                                    // never blocks: the queue holds every buffer
+                                    buffers.offer(buffer);
+                                }
+                            }
+                        }));
+                        positions.addLast(new int[] {i, x, y, w, h});
+                        ifds.addLast(ifd);
+                        if (tiles.size() > TILES_AHEAD) {
+                            writeTile(writer, tiles, positions, ifds);
+                        }
+                    }
+                }
+            }
+            while (!tiles.isEmpty()) {
+                writeTile(writer, tiles, positions, ifds);
+            }
+        } finally {
+            readers.shutdownNow();
+            // the buffers must be back in the queue before they are closed
+            if (!readers.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Tile readers did not stop");
+            }
+        }
+    }
+
+    /**
+     * Waits for the oldest tile to be read and writes it.
+     */
+    private void writeTile(OMETiffWriter writer, Deque<Future<byte[]>> tiles,
+            Deque<int[]> positions, Deque<IFD> ifds) throws Exception {
+        final byte[] tile = tiles.removeFirst().get();
+        final int[] p = positions.removeFirst();
+        writer.saveBytes(p[0], tile, ifds.removeFirst(), p[1], p[2], p[3], p[4]);
     }
 
     /**
@@ -477,44 +662,63 @@ public class ExporterI extends AbstractCloseableAmdServant implements
             throw new ApiUsageException("Max read size is: " + MAX_SIZE);
         }
 
-        byte[] buf = new byte[size];
-
-        RandomAccessFile ra = null;
         try {
-            ra = new RandomAccessFile(file, "r");
-
-            long l = ra.length();
+            final FileChannel ch = channel();
+            final long l = ch.size();
             if (pos + size > l) {
-                size  = (int) (l - pos);
+                size = (int) Math.max(0, l - pos);
             }
 
-            ra.seek(pos);
-            int read = ra.read(buf);
+            // Positional reads leave the channel free for concurrent calls
+            final ByteBuffer buf = ByteBuffer.allocate(size);
+            while (buf.hasRemaining()
+                    && ch.read(buf, pos + buf.position()) >= 0) {
+                // read until full or end of file
+            }
 
-            // Handle end of file
-            if (read < 0) {
-                buf = new byte[0];
-            } else if (read < size) {
-                byte[] newBuf = new byte[read];
-                System.arraycopy(buf, 0, newBuf, 0, read);
-                buf = newBuf;
+            if (buf.position() < size) {
+                final byte[] newBuf = new byte[buf.position()];
+                System.arraycopy(buf.array(), 0, newBuf, 0, newBuf.length);
+                return newBuf;
             }
+            return buf.array();
 
         } catch (IOException io) {
             throw new RuntimeException(io);
-        } finally {
-
-            if (ra != null) {
-                try {
-                    ra.close();
-                } catch (IOException e) {
-                    log.warn("IOException on file close");
-                }
-            }
+        }
+    }
 
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
         }
+        return channel;
+    }
 
-        return buf;
+    /**
+     * Identifies the TIFF file for the image of {@link #retrieve}: the pixel
+     * data by checksum and last update, and the metadata as seen by this
+     * session by its OME-XML.
+     */
+    private String tiffKey() throws ServiceException {
+        final Image image = retrieve.getImage(0);
+        final Pixels pix = image.getPixels(0);
+        final StringBuilder key = new StringBuilder("tiff");
+        key.append('\n').append(image.getId().getValue());
+        key.append('\n').append(pix.getId().getValue());
+        key.append('\n').append(pix.getSha1() == null ? "" : pix.getSha1().getValue());
+        key.append('\n').append(updateEvent(image));
+        key.append('\n').append(updateEvent(pix));
+        key.append('\n').append(service.getOMEXML(retrieve));
+        return key.toString();
+    }
+
+    private static String updateEvent(omero.model.IObject obj) {
+        if (obj.getDetails() == null || obj.getDetails().getUpdateEvent() == null
+                || obj.getDetails().getUpdateEvent().getId() == null) {
+            return "";
+        }
+        return Long.toString(obj.getDetails().getUpdateEvent().getId().getValue());
     }
 
     // XML Generation (public for testing)
@@ -540,10 +744,7 @@ public class ExporterI extends AbstractCloseableAmdServant implements
     @Override
     protected void preClose(Ice.Current current) {
         retrieve = null;
-        if (file != null) {
-            file.delete();
-            file = null;
-        }
+        releaseFile();
     }
 
     @Override
@@ -574,11 +775,5 @@ public class ExporterI extends AbstractCloseableAmdServant implements
             FormatTools.getBytesPerPixel(reader.getPixelType());
     }
 
-    private boolean requiresPyramid(ServiceFactory sf, long id) {
-        ome.model.core.Pixels _p =
-            sf.getQueryService().get(ome.model.core.Pixels.class, id);
-        return pixelsService.requiresPixelsPyramid(_p);
-    }
-
 
 }
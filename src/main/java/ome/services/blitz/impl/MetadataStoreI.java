@@ -13,6 +13,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import ome.api.IQuery;
@@ -52,6 +55,7 @@ import omero.api.AMD_MetadataStore_updateObjects;
 import omero.api.AMD_MetadataStore_updateReferences;
 import omero.api.AMD_StatefulServiceInterface_close;
 import omero.api._MetadataStoreOperations;
+import omero.constants.METADATASEQUENCE;
 import omero.grid.InteractiveProcessorPrx;
 import omero.grid.SharedResourcesPrx;
 import omero.metadatastore.IObjectContainer;
@@ -87,6 +91,16 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
 
     protected final String omeroDataDir;
 
+    /** Numbered updates which arrived before their predecessors. */
+    private final SortedMap<Long, SequencedCall> sequenced =
+            new TreeMap<Long, SequencedCall>();
+
+    /** Number of the next update to apply, guarded by {@link #sequenced}. */
+    private long nextSequence = 0;
+
+    /** Incremented whenever numbering restarts, guarded by {@link #sequenced}. */
+    private int sequenceEpoch = 0;
+
     public MetadataStoreI(final BlitzExecutor be, PopulateRoiJob popRoi,
             SqlAction sql, OriginalFilesService filesService,
             String omeroDataDir) throws Exception {
@@ -168,6 +182,7 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
     public void createRoot_async(final AMD_MetadataStore_createRoot __cb,
             final Current __current) throws ServerError {
 
+        resetSequence();
         final IceMapper mapper = new IceMapper(IceMapper.VOID);
         runnableCall(__current, new Adapter(__cb, __current, mapper,
                 this.sf.executor, this.sf.principal, new Executor.SimpleWork(
@@ -219,9 +234,41 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                 }));
     }
 
-    public void updateObjects_async(AMD_MetadataStore_updateObjects __cb,
-            final IObjectContainer[] objects, Current __current)
+    public void updateObjects_async(final AMD_MetadataStore_updateObjects __cb,
+            final IObjectContainer[] objects, final Current __current)
             throws ServerError {
+        final Long sequence = getSequence(__current);
+        if (sequence == null) {
+            updateObjects(__cb, objects, __current);
+            return;
+        }
+        inSequence(sequence, new SequencedCall() {
+            @Override
+            void run(final int epoch) {
+                updateObjects(new AMD_MetadataStore_updateObjects() {
+                    public void ice_response() {
+                        if (complete()) {
+                            sequenceDone(epoch);
+                        }
+                        __cb.ice_response();
+                    }
+                    public void ice_exception(Exception ex) {
+                        if (complete()) {
+                            sequenceDone(epoch);
+                        }
+                        __cb.ice_exception(ex);
+                    }
+                }, objects, __current);
+            }
+            @Override
+            void cancel(Exception reason) {
+                __cb.ice_exception(reason);
+            }
+        });
+    }
+
+    private void updateObjects(AMD_MetadataStore_updateObjects __cb,
+            final IObjectContainer[] objects, Current __current) {
         final IceMapper mapper = new IceMapper(IceMapper.VOID);
         runnableCall(__current, new Adapter(__cb, __current, mapper,
                 this.sf.executor, this.sf.principal, new Executor.SimpleWork(
@@ -245,9 +292,41 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                 }));
     }
 
-    public void updateReferences_async(AMD_MetadataStore_updateReferences __cb,
-            final Map<String, String[]> references, Current __current)
+    public void updateReferences_async(final AMD_MetadataStore_updateReferences __cb,
+            final Map<String, String[]> references, final Current __current)
             throws ServerError {
+        final Long sequence = getSequence(__current);
+        if (sequence == null) {
+            updateReferences(__cb, references, __current);
+            return;
+        }
+        inSequence(sequence, new SequencedCall() {
+            @Override
+            void run(final int epoch) {
+                updateReferences(new AMD_MetadataStore_updateReferences() {
+                    public void ice_response() {
+                        if (complete()) {
+                            sequenceDone(epoch);
+                        }
+                        __cb.ice_response();
+                    }
+                    public void ice_exception(Exception ex) {
+                        if (complete()) {
+                            sequenceDone(epoch);
+                        }
+                        __cb.ice_exception(ex);
+                    }
+                }, references, __current);
+            }
+            @Override
+            void cancel(Exception reason) {
+                __cb.ice_exception(reason);
+            }
+        });
+    }
+
+    private void updateReferences(AMD_MetadataStore_updateReferences __cb,
+            final Map<String, String[]> references, Current __current) {
         final IceMapper mapper = new IceMapper(IceMapper.VOID);
         runnableCall(__current, new Adapter(__cb, __current, mapper,
                 this.sf.executor, this.sf.principal, new Executor.SimpleWork(
@@ -260,6 +339,146 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                 }));
     }
 
+    // Sequenced updates
+    // =========================================================================
+
+    /**
+     * An update numbered by the client, waiting for its predecessors to be
+     * applied.
+     */
+    private static abstract class SequencedCall {
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        /**
+         * Applies the update, calling {@link MetadataStoreI#sequenceDone(int)}
+         * once it has completed whether successfully or not, if
+         * {@link #complete()} allows.
+         * @param epoch the epoch in which the update was numbered
+         */
+        abstract void run(int epoch);
+
+        /**
+         * @return if this is the first completion of the update, so that
+         * its successor is released exactly once
+         */
+        boolean complete() {
+            return completed.compareAndSet(false, true);
+        }
+
+        /**
+         * Fails the update without applying it.
+         * @param reason the exception to pass to the client
+         */
+        abstract void cancel(Exception reason);
+    }
+
+    /**
+     * @return the number that the client gave the current call under
+     * {@link omero.constants.METADATASEQUENCE}, or {@code null} if
+     * the call is not numbered
+     */
+    private static Long getSequence(Current __current) throws ServerError {
+        final String value = __current.ctx == null ? null
+                : __current.ctx.get(METADATASEQUENCE.value);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException nfe) {
+            throw new omero.ApiUsageException(null, null,
+                    "Invalid " + METADATASEQUENCE.value
+                    + ": " + value);
+        }
+    }
+
+    /**
+     * Applies the given numbered update once all those numbered before it in
+     * the current epoch have completed. Clients may thus have several
+     * updates in flight and still have them applied to the store one at a
+     * time in the order that they were sent.
+     */
+    private void inSequence(long sequence, SequencedCall call) {
+        SequencedCall next = null;
+        final boolean duplicate;
+        final int epoch;
+        synchronized (sequenced) {
+            duplicate = sequence < nextSequence || sequenced.containsKey(sequence);
+            if (!duplicate) {
+                sequenced.put(sequence, call);
+                next = sequenced.remove(nextSequence);
+            }
+            epoch = sequenceEpoch;
+        }
+        if (duplicate) {
+            call.cancel(new omero.ApiUsageException(null, null,
+                    "Metadata update " + sequence + " was already sent"));
+        } else if (next != null) {
+            runSequenced(next, epoch);
+        }
+    }
+
+    /**
+     * Called once a numbered update has completed to apply its successor if
+     * that has already arrived.
+     */
+    private void sequenceDone(int epoch) {
+        final SequencedCall next;
+        synchronized (sequenced) {
+            if (epoch != sequenceEpoch) {
+                return;
+            }
+            nextSequence++;
+            next = sequenced.remove(nextSequence);
+        }
+        if (next != null) {
+            runSequenced(next, epoch);
+        }
+    }
+
+    /**
+     * Applies a numbered update, failing it and releasing its successor if
+     * it could not even be started. Otherwise a failure to start would leave
+     * every later update of the epoch waiting.
+     */
+    private void runSequenced(SequencedCall call, int epoch) {
+        try {
+            call.run(epoch);
+        } catch (RuntimeException rt) {
+            log.error("Failed to apply numbered metadata update", rt);
+            if (call.complete()) {
+                sequenceDone(epoch);
+                final omero.InternalException ie = new omero.InternalException(
+                        null, null, "Failed to apply metadata update: " + rt);
+                ie.initCause(rt);
+                call.cancel(ie);
+            }
+        }
+    }
+
+    /**
+     * Starts a new epoch of numbered updates, failing any left waiting from
+     * the previous epoch.
+     */
+    private void resetSequence() {
+        final List<SequencedCall> cancelled;
+        synchronized (sequenced) {
+            cancelled = new ArrayList<SequencedCall>(sequenced.values());
+            sequenced.clear();
+            nextSequence = 0;
+            sequenceEpoch++;
+        }
+        if (!cancelled.isEmpty()) {
+            log.warn("Cancelling {} out of sequence metadata updates",
+                    cancelled.size());
+            for (SequencedCall call : cancelled) {
+                call.cancel(new omero.ApiUsageException(null, null,
+                        "Metadata update cancelled before its predecessors arrived"));
+            }
+        }
+    }
+
     /**
      * Called after some number of Passes the {@link #savedPlates} to a
      * background processor for further work. This happens on
@@ -465,6 +684,7 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
 
     @Override
     protected void preClose(Ice.Current current) {
+        resetSequence();
         // Nulling should be sufficient.
         store = null;
     }
@@ -8,7 +8,6 @@
 package ome.services.blitz.impl;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -18,6 +17,8 @@ import java.util.UUID;
 
 import ome.api.JobHandle;
 import ome.model.IObject;
+import ome.services.blitz.fire.CachedRegistry;
+import ome.services.blitz.fire.ProxyHealth;
 import ome.services.blitz.fire.Registry;
 import ome.services.blitz.fire.TopicManager;
 import ome.services.blitz.util.BlitzExecutor;
@@ -93,6 +94,12 @@ public class SharedResourcesI extends AbstractCloseableAmdServant implements
 
     private final Registry registry;
 
+    /**
+     * Outcomes of recent calls to the servers found in {@link #registry},
+     * shared between sessions if the registry is a {@link CachedRegistry}.
+     */
+    private final ProxyHealth health;
+
     private final ScriptRepoHelper helper;
 
     private final ParamsCache paramsCache;
@@ -131,6 +138,9 @@ public class SharedResourcesI extends AbstractCloseableAmdServant implements
         this.waitMillis = waitMillis;
         this.topicManager = topicManager;
         this.registry = registry;
+        this.health = registry instanceof CachedRegistry
+                ? ((CachedRegistry) registry).getHealth()
+                : new ProxyHealth(CachedRegistry.DEFAULT_TTL);
         this.helper = helper;
         this.paramsCache = cache;
         this.timeout = timeout;
@@ -191,29 +201,6 @@ public class SharedResourcesI extends AbstractCloseableAmdServant implements
         }
     }
 
-    /**
-     * A task that gets applied to various proxies to test their validity.
-     * Usually defined inline as anonymous classes.
-     *
-     * @see {@link ProcessorCheck}
-     */
-    private interface RepeatTask<U extends Ice.ObjectPrx> {
-        void requestService(Ice.ObjectPrx server, ResultHolder<U> holder)
-                throws ServerError;
-    }
-
-    private <U extends Ice.ObjectPrx> U lookup(long millis, List<Ice.ObjectPrx> objectPrxs,
-            RepeatTask<U> task) throws ServerError {
-
-        ResultHolder<U> holder = new ResultHolder<U>(millis);
-        for (Ice.ObjectPrx prx : objectPrxs) {
-            if (prx != null) {
-                task.requestService(prx, holder);
-            }
-        }
-        return holder.get();
-    }
-
     // Public interface
     // =========================================================================
 
@@ -293,23 +280,43 @@ public class SharedResourcesI extends AbstractCloseableAmdServant implements
     }
 
     public boolean areTablesEnabled(Current __current) throws ServerError {
-        TablesPrx[] tables = registry.lookupTables();
-        return null != lookup(waitMillis, Arrays.<Ice.ObjectPrx> asList(tables),
-                new RepeatTask<TablesPrx>() {
-                    public void requestService(Ice.ObjectPrx prx,
-                            final ResultHolder<TablesPrx> holder) {
-                        final TablesPrx server = TablesPrxHelper
-                                .checkedCast(prx);
-                        try {
-                            if (server != null && server.getRepository() != null) {
-                                holder.set(server);
-                            }
-                        } catch (Exception e) {
-                            log.debug("Exception on getRepository: " + e);
-                            holder.set(null);
-                        }
-                    }
-                });
+        final long deadline = System.currentTimeMillis() + waitMillis;
+        for (TablesPrx server : health.byHealth(registry.lookupTables())) {
+            if (health.recentlySucceeded(server)) {
+                return true;
+            }
+            final TablesPrx timed = withinDeadline(server, deadline);
+            if (timed == null) {
+                break;
+            }
+            try {
+                if (timed.getRepository() != null) {
+                    health.succeeded(server);
+                    return true;
+                }
+            } catch (Exception e) {
+                log.debug("Exception on getRepository: " + e);
+                health.failed(server);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * All the servers tried for one call share {@link #waitMillis}, so that
+     * the call does not take longer the more servers are registered.
+     * @param server a Tables server
+     * @param deadline when the call must have finished
+     * @return the server with an invocation timeout of the time left
+     * until the deadline, or {@code null} if there is none left
+     */
+    private TablesPrx withinDeadline(TablesPrx server, long deadline) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return null;
+        }
+        return TablesPrxHelper.uncheckedCast(
+                server.ice_invocationTimeout((int) remaining));
     }
 
     public TablePrx newTable(final long repo, String path, Current __current)
@@ -379,29 +386,31 @@ public class SharedResourcesI extends AbstractCloseableAmdServant implements
             throw ue;
         }
 
-        // Okay. All's valid.
-        TablesPrx[] tables = registry.lookupTables();
-        TablePrx tablePrx = (TablePrx) lookup(waitMillis,
-                Arrays.<Ice.ObjectPrx> asList(tables),
-                new RepeatTask<TablePrx>() {
-                    public void requestService(Ice.ObjectPrx prx,
-                            final ResultHolder holder) throws ServerError {
-                       final TablesPrx server = TablesPrxHelper
-                          .uncheckedCast(prx);
-
-                       Map<String, String> ctx = new HashMap<String, String>();
-                       ctx.put("omero.group", "-1");
-                       server.begin_getTable(file, sf.proxy(), ctx,
-                           new Ice.Callback() {
-                               public void completed(Ice.AsyncResult r) {
-                                   try {
-                                       holder.set(server.end_getTable(r));
-                                   } catch (Exception e) {
-                                       holder.set(null);
-                                   }
-                               }});
-                       }
-                    });
+        // Okay. All's valid. Try the servers which have worked best
+        // recently first, rather than asking all of them.
+        TablePrx tablePrx = null;
+        Map<String, String> callCtx = new HashMap<String, String>();
+        callCtx.put("omero.group", "-1");
+        final long deadline = System.currentTimeMillis() + waitMillis;
+        for (TablesPrx server : health.byHealth(registry.lookupTables())) {
+            final TablesPrx timed = withinDeadline(server, deadline);
+            if (timed == null) {
+                break;
+            }
+            try {
+                tablePrx = timed.getTable(file, sf.proxy(), callCtx);
+            } catch (Exception e) {
+                // includes timeouts
+                log.debug("Exception on getTable: " + e);
+                health.failed(server);
+                continue;
+            }
+            if (tablePrx != null) {
+                health.succeeded(server);
+                break;
+            }
+            // a server declining the table is not unhealthy
+        }
 
         sf.allow(tablePrx);
         register(tablePrx);
@@ -5,25 +5,64 @@
 
 package ome.services.blitz.redirect;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import ome.model.meta.Node;
 import ome.services.util.Executor;
+import omero.grid.NodeLoad;
 import Glacier2.CannotCreateSessionException;
 import Glacier2.SessionPrx;
 
 /**
- * Planned implementation (NYI): will use the "Node.scale" column to randomly
- * choose a target.
- * 
+ * {@link Redirector} implementation which creates each new session on the
+ * least loaded node of the cluster, as reported by {@link Context#getNodeLoads()}.
+ * Joins to existing sessions are still sent to the node which holds the
+ * session by {@link AbstractRedirector}. The loads and the active managers
+ * are fetched at most once per refresh interval, by one login at a time and
+ * without blocking the others, which use the previous figures meanwhile. In
+ * between, each redirected session is added to the cached count of its
+ * target so that a burst of logins is spread out.
+ *
+ * A remote node is only chosen if its score is clearly better than the score
+ * of this node, since a redirect costs an additional round trip.
+ *
  * @since Beta-4.0-RC2
  */
 public class ScaleRedirector extends AbstractRedirector {
 
+    /** How much lower a remote node's score must be for it to be chosen. */
+    private final static double MARGIN = 0.8;
+
+    /** The default milliseconds for which fetched loads are reused. */
+    public final static long DEFAULT_REFRESH = 10000L;
+
+    private final long refresh;
+
+    /** The last fetched loads, by node uuid. Guarded by {@code this}. */
+    private Map<String, NodeLoad> loads;
+
+    /** The active managers fetched with {@link #loads}. Guarded by {@code this}. */
+    private Set<String> active;
+
+    /** When {@link #loads} were fetched. Guarded by {@code this}. */
+    private long fetched;
+
+    /** If a login is fetching the loads. Guarded by {@code this}. */
+    private boolean fetching;
+
     public ScaleRedirector(Executor ex) {
+        this(ex, DEFAULT_REFRESH);
+    }
+
+    /**
+     * @param ex the executor for database lookups
+     * @param refresh how many milliseconds fetched loads are reused for
+     */
+    public ScaleRedirector(Executor ex, long refresh) {
         super(ex);
+        this.refresh = refresh;
     }
 
     public SessionPrx getProxyOrNull(Context ctx, String userId,
@@ -36,28 +75,123 @@ public class ScaleRedirector extends AbstractRedirector {
             return prx; // EARLY EXIT
         }
 
+        if (alreadyRouted(current)) {
+            return null; // EARLY EXIT
+        }
+
         String proxyString = null;
-        double IMPOSSIBLE = 314159.0;
-        if (Math.random() > IMPOSSIBLE) {
-            Set<String> values = ctx.getManagerList(true);
-            if (values != null) {
-                values.remove(ctx.uuid());
-                int size = values.size();
-                if (size != 0) {
-                    double rnd = Math.floor(size * Math.random());
-                    int idx = (int) Math.round(rnd);
-                    List<String> v = new ArrayList<String>(values);
-                    String uuid = (String) v.get(idx);
-                    proxyString = findProxy(ctx, uuid);
-                    log
-                            .info(String.format("Load balancing to %s",
-                                    proxyString));
+        String target = chooseNode(ctx);
+        if (target != null) {
+            proxyString = findProxy(ctx, target);
+            if (proxyString == null || proxyString.length() == 0) {
+                log.warn("No proxy found for manager: " + target);
+                forget(target);
+                proxyString = null;
+            } else {
+                log.info(String.format("Load balancing to %s", proxyString));
+            }
+        }
+
+        try {
+            // Handles nulls
+            return obtainProxy(proxyString, ctx, userId, control, current);
+        } catch (CannotCreateSessionException ccse) {
+            // Creating the session here is better than failing the login
+            log.warn("Redirect to " + target + " failed; creating locally");
+            forget(target);
+            return null;
+        }
+    }
+
+    /**
+     * Picks the node for the next session and counts the session against it.
+     *
+     * @return the uuid of a remote node, or null if the session should be
+     *         created on this node
+     */
+    protected String chooseNode(Context ctx) {
+        refresh(ctx);
+        synchronized (this) {
+            if (loads == null) {
+                return null; // first fetch still in progress
+            }
+            final NodeLoad local = loads.get(ctx.uuid());
+            String best = null;
+            double bestScore = local == null ? Double.MAX_VALUE
+                    : score(local) * MARGIN;
+            for (Map.Entry<String, NodeLoad> entry : loads.entrySet()) {
+                final String uuid = entry.getKey();
+                if (uuid.equals(ctx.uuid())
+                        || (active != null && !active.contains(uuid))) {
+                    continue;
                 }
+                final double score = score(entry.getValue());
+                if (score < bestScore) {
+                    best = uuid;
+                    bestScore = score;
+                }
+            }
+
+            final NodeLoad chosen = loads.get(best == null ? ctx.uuid() : best);
+            if (chosen != null) {
+                chosen.activeSessions++;
             }
+            return best;
         }
+    }
 
-        // Handles nulls
-        return obtainProxy(proxyString, ctx, userId, control, current);
+    /**
+     * Fetches the loads and active managers if they are due for a refresh
+     * and no other login is already fetching them. The lock is not held
+     * while fetching since that involves remote calls.
+     */
+    private void refresh(Context ctx) {
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (fetching || (loads != null && now - fetched <= refresh)) {
+                return;
+            }
+            fetching = true;
+        }
+        Map<String, NodeLoad> newLoads = null;
+        Set<String> newActive = null;
+        try {
+            newLoads = new HashMap<String, NodeLoad>(ctx.getNodeLoads());
+            newActive = ctx.getManagerList(true);
+        } finally {
+            synchronized (this) {
+                fetching = false;
+                if (newLoads != null) {
+                    loads = newLoads;
+                    active = newActive;
+                    fetched = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Combines the figures of a node into one number where lower is better:
+     * the sessions on the node, weighted up by the system load per processor
+     * and by how full the heap is.
+     */
+    protected static double score(NodeLoad load) {
+        double cpu = 0;
+        if (load.processors > 0 && load.systemLoad > 0) {
+            cpu = load.systemLoad / load.processors;
+        }
+        double heap = 0;
+        if (load.heapMax > 0) {
+            heap = (double) load.heapUsed / load.heapMax;
+        }
+        return (load.activeSessions + 1) * (1 + cpu)
+                / Math.max(0.05, 1 - heap);
+    }
+
+    private synchronized void forget(String uuid) {
+        if (loads != null && uuid != null) {
+            loads.remove(uuid);
+        }
     }
 
     /**
@@ -69,12 +203,13 @@ public class ScaleRedirector extends AbstractRedirector {
     }
 
     /**
-     * Nothing needs to be done on shutdown, since the Ring implementation will
-     * properly disable the {@link Node} table queried during the next call to
+     * Forgets the load of the node so that no sessions are sent to it. The
+     * Ring implementation will also properly disable the {@link Node} table
+     * queried during the next call to
      * {@link #getProxyOrNull(Context, String, Glacier2.SessionControlPrx, Ice.Current)}
      */
     public void handleRingShutdown(Context context, String uuid) {
-
+        forget(uuid);
     }
 
-}
\ No newline at end of file
+}
@@ -20,8 +20,12 @@ package ome.services.blitz.repo;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 import org.perf4j.StopWatch;
@@ -44,6 +48,7 @@ import ome.services.blitz.util.ServiceFactoryAware;
 import ome.services.util.Executor;
 import ome.system.Login;
 import omero.RString;
+import omero.RType;
 import omero.ServerError;
 import omero.api.IQueryPrx;
 import omero.api.RawFileStorePrx;
@@ -76,8 +81,6 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
 
     static class UploadState {
         final RawFileStorePrx prx;
-        /** Next byte which should be written */
-        long offset = 0;
 
         UploadState(RawFileStorePrx prx) {
             if (prx == null) {
@@ -85,9 +88,46 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
             }
             this.prx = prx;
         }
+    }
+
+    /**
+     * Tracks the written extents of a single used file so that the upload
+     * offset only ever covers a contiguous prefix of the file, even when
+     * clients keep several writes in flight which may complete out of order.
+     */
+    static class UploadOffset {
+        /** Next byte which should be written */
+        long offset = 0;
+
+        /** Extents beyond {@link #offset}, keyed by start, valued by end. */
+        final NavigableMap<Long, Long> extents = new TreeMap<Long, Long>();
 
-        void setOffset(long offset) {
+        synchronized void setOffset(long offset) {
             this.offset = offset;
+            extents.clear();
+        }
+
+        synchronized void written(long position, long length) {
+            final long end = position + length;
+            if (end <= offset) {
+                return;
+            } else if (position > offset) {
+                final Long known = extents.get(position);
+                if (known == null || known < end) {
+                    extents.put(position, end);
+                }
+                return;
+            }
+            offset = end;
+            Map.Entry<Long, Long> next;
+            while ((next = extents.firstEntry()) != null && next.getKey() <= offset) {
+                extents.pollFirstEntry();
+                offset = Math.max(offset, next.getValue());
+            }
+        }
+
+        synchronized long getOffset() {
+            return offset;
         }
     }
 
@@ -141,6 +181,14 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
      */
     private final Cache<Integer, UploadState> uploaders = CacheBuilder.newBuilder().build();
 
+    /**
+     * Offsets of the used files which have been written to. Unlike
+     * {@link #uploaders}, these survive the closing of the uploader so that
+     * a client which reattaches to this process can resume its upload.
+     */
+    private final ConcurrentMap<Integer, UploadOffset> offsets =
+            new ConcurrentHashMap<Integer, UploadOffset>();
+
     /**
      * Handle which is the initial first step of import.
      */
@@ -304,7 +352,7 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
 
             @Override
             public void onWrite(byte[] buf, long position, long length) {
-                proc.setOffset(idx, position+length);
+                proc.written(idx, position, length);
             }
 
             /**
@@ -337,25 +385,31 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
             Map<Integer, String> failingChecksums = new HashMap<Integer, String>();
             final Map<String, String> allGroupsContext = ImmutableMap.of(Login.OMERO_GROUP, "-1");
             final IQueryPrx iQuery = sf.getQueryService(__current);
-            final String hql = "SELECT originalFile.hash FROM FilesetEntry "
-                    + "WHERE fileset.id = :id AND originalFile.path || originalFile.name = :usedfile";
+            final String hql = "SELECT originalFile.path, originalFile.name, originalFile.hash FROM FilesetEntry "
+                    + "WHERE fileset.id = :id";
+            final StopWatch sw1 = new Slf4JStopWatch();
+            final Parameters params = new ParametersI().addId(fs.getId());
+            final Map<String, String> serverHashes = new HashMap<String, String>(size * 2);
+            for (final List<RType> row : iQuery.projection(hql, params, allGroupsContext)) {
+                final RString hash = (RString) row.get(2);
+                if (row.get(0) != null && row.get(1) != null && hash != null) {
+                    serverHashes.put(((RString) row.get(0)).getValue() + ((RString) row.get(1)).getValue(),
+                            hash.getValue());
+                }
+            }
             for (int i = 0; i < size; i++) {
-                StopWatch sw1 = new Slf4JStopWatch();
                 String usedFile = location.sharedPath + FsFile.separatorChar + location.usedFiles.get(i);
-                final Parameters params = new ParametersI().addId(fs.getId()).add("usedfile", omero.rtypes.rstring(usedFile));
                 final String clientHash = hashes.get(i);
-                String serverHash = "";
-                try {
-                    final RString result = (RString) iQuery.projection(hql, params, allGroupsContext).get(0).get(0);
-                    serverHash = result.getValue();
-                } catch (IndexOutOfBoundsException | NullPointerException e) {
-                    log.error("no server checksum on uploaded file {}", usedFile, e);
+                String serverHash = serverHashes.get(usedFile);
+                if (serverHash == null) {
+                    log.error("no server checksum on uploaded file {}", usedFile);
+                    serverHash = "";
                 }
                 if (serverHash.isEmpty() || !clientHash.equals(serverHash)) {
                     failingChecksums.put(i, serverHash);
                 }
-                sw1.stop("omero.import.process.checksum");
             }
+            sw1.stop("omero.import.process.checksum", size + " files");
 
             if (!failingChecksums.isEmpty()) {
                 throw new omero.ChecksumValidationException(null,
@@ -406,11 +460,11 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
     //
 
     public long getUploadOffset(int idx, Current ignore) throws ServerError {
-        final UploadState state = uploaders.getIfPresent(idx);
-        if (state == null) {
+        final UploadOffset offset = offsets.get(idx);
+        if (offset == null) {
             return 0;
         }
-        return state.offset;
+        return offset.getOffset();
     }
 
     public HandlePrx getHandle(Ice.Current ignore) {
@@ -421,16 +475,44 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
     // OTHER LOCAL INVOCATIONS
     //
 
+    private UploadOffset getOffset(int idx) {
+        UploadOffset offset = offsets.get(idx);
+        if (offset == null) {
+            final UploadOffset created = new UploadOffset();
+            offset = offsets.putIfAbsent(idx, created);
+            if (offset == null) {
+                offset = created;
+            }
+        }
+        return offset;
+    }
+
     public void setOffset(int idx, long offset) {
         final UploadState state = uploaders.getIfPresent(idx);
         if (state == null) {
             log.warn(String.format("setOffset(%s, %s) - no such object", idx, offset));
         } else {
-            state.setOffset(offset);
+            getOffset(idx).setOffset(offset);
             log.debug(String.format("setOffset(%s, %s) successfully", idx, offset));
         }
     }
 
+    /**
+     * Record that the given extent of a used file has been written.
+     * @param idx the index of the used file
+     * @param position the position of the write
+     * @param length the length of the write
+     */
+    public void written(int idx, long position, long length) {
+        final UploadState state = uploaders.getIfPresent(idx);
+        if (state == null) {
+            log.warn(String.format("written(%s, %s, %s) - no such object", idx, position, length));
+        } else {
+            getOffset(idx).written(position, length);
+            log.debug(String.format("written(%s, %s, %s) successfully", idx, position, length));
+        }
+    }
+
     public void closeCalled(int idx) {
         final UploadState state = uploaders.getIfPresent(idx);
         if (state == null) {
@@ -24,6 +24,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import loci.formats.FormatException;
 import loci.formats.FormatReader;
@@ -131,6 +132,18 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
 
     private OMEROWrapper reader = null;
 
+    /** Creates additional, unopened readers for parallel pixel parsing. */
+    private Callable<OMEROWrapper> readerFactory = null;
+
+    /** How many readers may parse pixel data concurrently. */
+    private int parallelReaders = 1;
+
+    /** How many bytes of planes parallel parsing may hold at once. */
+    private long parallelBufferBytes = 256L * 1024 * 1024;
+
+    /** How many metadata batches may be in flight while saving. */
+    private int saveBatchesInFlight = 1;
+
     private CheckedPath file = null;
 
     private IObject userSpecifiedTarget = null; // TODO: remove?
@@ -192,6 +205,36 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
         this.resources = resources;
     }
 
+    /**
+     * Late injection to allow pixel data to be parsed with several readers
+     * at once. Has no effect unless the count is greater than one.
+     * @param parallelReaders how many readers may parse pixel data concurrently
+     * @param readerFactory creates additional, unopened readers
+     */
+    public void setParallelReaders(int parallelReaders,
+            Callable<OMEROWrapper> readerFactory) {
+        this.parallelReaders = parallelReaders;
+        this.readerFactory = readerFactory;
+    }
+
+    /**
+     * Late injection to bound the memory used by parallel pixel parsing.
+     * @param parallelBufferBytes how many bytes of planes may be held at
+     * once while parsing pixel data with several readers
+     */
+    public void setParallelBufferBytes(long parallelBufferBytes) {
+        this.parallelBufferBytes = parallelBufferBytes;
+    }
+
+    /**
+     * Late injection to allow the metadata to be streamed to the database.
+     * @param saveBatchesInFlight how many metadata batches may be in flight
+     * @see OMEROMetadataStoreClient#setSaveBatchesInFlight(int)
+     */
+    public void setSaveBatchesInFlight(int saveBatchesInFlight) {
+        this.saveBatchesInFlight = saveBatchesInFlight;
+    }
+
     /**
      * @param callContext the call context to set
      */
@@ -232,6 +275,7 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
             sf = reg.getInternalServiceFactory(
                     sessionUuid, ec.getCurrentGroupId(), 3, 1, clientUuid);
             store = new OMEROMetadataStoreClient();
+            store.setSaveBatchesInFlight(saveBatchesInFlight);
             store.setCurrentLogFile(logFilename, token);
             store.setGroup(ec.getCurrentGroupId());
             store.initialize(sf);
@@ -665,7 +709,12 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
     public Object pixelData(PixelDataJob pdj) throws Throwable {
         StopWatch sw = new Slf4JStopWatch();
 
-        if (!reader.isMinMaxSet() && !noStatsInfo)
+        if (!reader.isMinMaxSet() && !noStatsInfo && parallelReaders > 1
+                && readerFactory != null)
+        {
+            parseDataInParallel();
+        }
+        else if (!reader.isMinMaxSet() && !noStatsInfo)
         {
             // Parse the binary data to generate min/max values
             int seriesCount = reader.getSeriesCount();
@@ -812,6 +861,49 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
     }
 
 
+    /**
+     * Parse the binary data of every series with several readers at once to
+     * generate min/max values and the pixels checksums.
+     * @see ParallelPixelParser
+     */
+    private void parseDataInParallel() throws Throwable
+    {
+        final int seriesCount = reader.getSeriesCount();
+        final List<ImportSize> importSizes = new ArrayList<ImportSize>(seriesCount);
+        for (int series = 0; series < seriesCount; series++) {
+            importSizes.add(new ImportSize(fileName,
+                    pixList.get(series), reader.getDimensionOrder()));
+        }
+        final ParallelPixelParser parser = new ParallelPixelParser(
+                new Callable<OMEROWrapper>() {
+                    @Override
+                    public OMEROWrapper call() throws Exception {
+                        final OMEROWrapper parallelReader = readerFactory.call();
+                        file.bfSetId(parallelReader);
+                        return parallelReader;
+                    }
+                }, parallelReaders,
+                (long) sizes.getMaxPlaneWidth() * sizes.getMaxPlaneHeight(),
+                parallelBufferBytes,
+                new ParallelPixelParser.Progress() {
+                    @Override
+                    public void planeParsed(int planeNo, int series, int seriesCount) {
+                        // observers are not expected to be thread-safe
+                        synchronized (ManagedImportRequestI.this) {
+                            notifyObservers(new ImportEvent.IMPORT_STEP(
+                                    planeNo, series, seriesCount));
+                        }
+                    }
+                });
+        final MessageDigest[] mds = parser.parse(importSizes, store);
+        for (int series = 0; series < seriesCount; series++) {
+            if (mds[series] != null) {
+                final String s = Hex.encodeHexString(mds[series].digest());
+                pixList.get(series).setSha1(store.toRType(s));
+            }
+        }
+    }
+
     /**
      * Read a plane and update the pixels checksum
      *
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.DoubleBinaryOperator;
+
+import loci.formats.FormatTools;
+import loci.formats.meta.IMinMaxStore;
+import ome.formats.importer.ImportSize;
+import ome.formats.importer.OMEROWrapper;
+import ome.util.PixelData;
+import omero.model.PixelsType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses the binary data of an import with several independently opened
+ * readers to generate the channel min/max values and the pixels checksums.
+ * Work is split by series or, if there is only one series, by plane. Either
+ * way, the checksum of each series is calculated over the same bytes in the
+ * same order as by
+ * {@link ManagedImportRequestI#parseData(String, int, ImportSize)}.
+ * The planes read but not yet digested are bounded in bytes as well as in
+ * number.
+ *
+ * @since 5.5.7
+ */
+class ParallelPixelParser {
+
+    private final static Logger log = LoggerFactory.getLogger(ParallelPixelParser.class);
+
+    private final static DoubleBinaryOperator MIN = new DoubleBinaryOperator() {
+        @Override
+        public double applyAsDouble(double left, double right) {
+            return right < left ? right : left;
+        }
+    };
+
+    private final static DoubleBinaryOperator MAX = new DoubleBinaryOperator() {
+        @Override
+        public double applyAsDouble(double left, double right) {
+            return right > left ? right : left;
+        }
+    };
+
+    /**
+     * Running global min/max of one channel, updated by all workers.
+     */
+    static class ChannelMinMax {
+
+        final DoubleAccumulator min = new DoubleAccumulator(MIN, Double.POSITIVE_INFINITY);
+
+        final DoubleAccumulator max = new DoubleAccumulator(MAX, Double.NEGATIVE_INFINITY);
+
+        void update(double tileMin, double tileMax) {
+            min.accumulate(tileMin);
+            max.accumulate(tileMax);
+        }
+
+        boolean isSet() {
+            return min.get() <= max.get();
+        }
+    }
+
+    /**
+     * Notified as the planes are parsed, possibly from several threads.
+     */
+    interface Progress {
+
+        /**
+         * @param planeNo the plane of the series just parsed, counted from 1
+         * in the same order as the serial parse
+         * @param series the series of the plane
+         * @param seriesCount the number of series
+         */
+        void planeParsed(int planeNo, int series, int seriesCount);
+
+    }
+
+    private final Callable<OMEROWrapper> readerFactory;
+
+    private final int readerCount;
+
+    private final long maxPlaneSize;
+
+    private final long maxBufferedBytes;
+
+    private final Progress progress;
+
+    /** Every reader opened by the workers so that they may be closed. */
+    private final List<OMEROWrapper> opened =
+            Collections.synchronizedList(new ArrayList<OMEROWrapper>());
+
+    /** Each worker thread keeps its own reader. */
+    private final ThreadLocal<OMEROWrapper> readers = new ThreadLocal<OMEROWrapper>();
+
+    /**
+     * @param readerFactory opens a new reader on the fileset's target file
+     * @param readerCount how many readers, and so threads, may be used
+     * @param maxPlaneSize planes with more pixels than this are not parsed
+     * @param maxBufferedBytes how many bytes of planes may be held at once
+     * by the readers and the digests; a single plane is read even if it is
+     * larger
+     * @param progress notified of each plane once it is parsed
+     */
+    ParallelPixelParser(Callable<OMEROWrapper> readerFactory, int readerCount,
+            long maxPlaneSize, long maxBufferedBytes, Progress progress) {
+        this.readerFactory = readerFactory;
+        this.readerCount = readerCount;
+        this.maxPlaneSize = maxPlaneSize;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.progress = progress;
+    }
+
+    /**
+     * Parse the binary data of every series, passing the min/max values to
+     * the given store.
+     * @param sizes the sizes of each series, in series order
+     * @param store the store for the channel min/max values
+     * @return the SHA-1 message digest of each series, {@code null} for any
+     * series whose planes are too large to be parsed
+     * @throws Throwable if reading the pixel data failed
+     */
+    MessageDigest[] parse(List<ImportSize> sizes, IMinMaxStore store)
+            throws Throwable {
+        final int seriesCount = sizes.size();
+        final MessageDigest[] digests = new MessageDigest[seriesCount];
+        final ChannelMinMax[][] minMax = new ChannelMinMax[seriesCount][];
+        final Semaphore buffer = new Semaphore(permits(maxBufferedBytes), true);
+        final ExecutorService executor = Executors.newFixedThreadPool(readerCount);
+        try {
+            final List<Future<MessageDigest>> futures = new ArrayList<Future<MessageDigest>>(seriesCount);
+            for (int series = 0; series < seriesCount; series++) {
+                final ImportSize size = sizes.get(series);
+                if ((long) size.sizeX * (long) size.sizeY > maxPlaneSize) {
+                    futures.add(null);
+                    continue;
+                }
+                minMax[series] = new ChannelMinMax[size.sizeC];
+                for (int c = 0; c < size.sizeC; c++) {
+                    minMax[series][c] = new ChannelMinMax();
+                }
+                if (seriesCount == 1) {
+                    digests[series] = parsePlanes(executor, buffer, series,
+                            seriesCount, size, minMax[series]);
+                    futures.add(null);
+                } else {
+                    final int s = series;
+                    futures.add(executor.submit(new Callable<MessageDigest>() {
+                        @Override
+                        public MessageDigest call() throws Exception {
+                            return parseSeries(buffer, s, seriesCount, size, minMax[s]);
+                        }
+                    }));
+                }
+            }
+            for (int series = 0; series < seriesCount; series++) {
+                final Future<MessageDigest> future = futures.get(series);
+                if (future != null) {
+                    digests[series] = future.get();
+                }
+            }
+        } catch (ExecutionException ee) {
+            throw ee.getCause();
+        } finally {
+            executor.shutdownNow();
+            // readers must not be closed beneath running workers
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            closeReaders();
+        }
+
+        for (int series = 0; series < seriesCount; series++) {
+            if (minMax[series] == null) {
+                continue;
+            }
+            for (int c = 0; c < minMax[series].length; c++) {
+                final ChannelMinMax channel = minMax[series][c];
+                if (channel.isSet()) {
+                    store.setChannelGlobalMinMax(c, channel.min.get(), channel.max.get(), series);
+                }
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Parse a whole series on the current thread.
+     */
+    private MessageDigest parseSeries(Semaphore buffer, int series,
+            int seriesCount, ImportSize size, ChannelMinMax[] minMax)
+            throws Exception {
+        final MessageDigest md = newDigest();
+        final int permits = planePermits(size);
+        int planeNo = 1;
+        for (int t = 0; t < size.sizeT; t++) {
+            for (int c = 0; c < size.sizeC; c++) {
+                for (int z = 0; z < size.sizeZ; z++) {
+                    buffer.acquire(permits);
+                    try {
+                        update(md, parsePlane(series, size, z, c, t, minMax[c]));
+                    } finally {
+                        buffer.release(permits);
+                    }
+                    progress.planeParsed(planeNo++, series, seriesCount);
+                }
+            }
+        }
+        return md;
+    }
+
+    /**
+     * Parse the planes of a single series concurrently, feeding the digest
+     * in plane order. At most two planes per reader, and no more than fit
+     * in the buffer, are held in memory.
+     */
+    private MessageDigest parsePlanes(ExecutorService executor,
+            Semaphore buffer, final int series, int seriesCount,
+            final ImportSize size, final ChannelMinMax[] minMax)
+            throws Exception {
+        final MessageDigest md = newDigest();
+        final int permits = planePermits(size);
+        int planeNo = 1;
+        final int window = readerCount * 2;
+        final Deque<Future<List<byte[]>>> pending = new ArrayDeque<Future<List<byte[]>>>(window);
+        try {
+            for (int t = 0; t < size.sizeT; t++) {
+                for (int c = 0; c < size.sizeC; c++) {
+                    for (int z = 0; z < size.sizeZ; z++) {
+                        // only digesting frees the buffer, so never wait
+                        // for it while planes are pending
+                        while (!buffer.tryAcquire(permits)) {
+                            update(md, pending.removeFirst().get());
+                            buffer.release(permits);
+                            progress.planeParsed(planeNo++, series, seriesCount);
+                        }
+                        final int zFinal = z, cFinal = c, tFinal = t;
+                        pending.addLast(executor.submit(new Callable<List<byte[]>>() {
+                            @Override
+                            public List<byte[]> call() throws Exception {
+                                return parsePlane(series, size, zFinal, cFinal, tFinal, minMax[cFinal]);
+                            }
+                        }));
+                        if (pending.size() >= window) {
+                            update(md, pending.removeFirst().get());
+                            buffer.release(permits);
+                            progress.planeParsed(planeNo++, series, seriesCount);
+                        }
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                update(md, pending.removeFirst().get());
+                buffer.release(permits);
+                progress.planeParsed(planeNo++, series, seriesCount);
+            }
+        } finally {
+            for (final Future<List<byte[]>> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return md;
+    }
+
+    /**
+     * Read every tile of a plane with this thread's reader, noting the
+     * min/max of the plane's channel.
+     * @return the tiles in the order that they should be digested
+     */
+    private List<byte[]> parsePlane(int series, ImportSize size,
+            int z, int c, int t, ChannelMinMax minMax)
+        throws Exception
+    {
+        final OMEROWrapper reader = getReader();
+        if (reader.getSeries() != series) {
+            reader.setSeries(series);
+        }
+        final int tileHeight = reader.getOptimalTileHeight();
+        final int tileWidth = reader.getOptimalTileWidth();
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+        final String pixelType = FormatTools.getPixelTypeString(reader.getPixelType());
+        final ByteOrder order = reader.isLittleEndian() ?
+                ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        final int planeNumber = reader.getIndex(z, c, t);
+        final List<byte[]> tiles = new ArrayList<byte[]>();
+        double planeMin = Double.POSITIVE_INFINITY;
+        double planeMax = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y < size.sizeY; y += tileHeight) {
+            for (int x = 0; x < size.sizeX; x += tileWidth) {
+                final int w = Math.min(tileWidth, size.sizeX - x);
+                final int h = Math.min(tileHeight, size.sizeY - y);
+                final byte[] tile = reader.openBytes(planeNumber,
+                        new byte[w * h * bytesPerPixel], x, y, w, h);
+                final PixelData pixels = new PixelData(pixelType,
+                        ByteBuffer.wrap(tile).order(order));
+                for (int i = 0; i < pixels.size(); i++) {
+                    final double value = pixels.getPixelValue(i);
+                    if (value < planeMin) {
+                        planeMin = value;
+                    }
+                    if (value > planeMax) {
+                        planeMax = value;
+                    }
+                }
+                tiles.add(tile);
+            }
+        }
+        minMax.update(planeMin, planeMax);
+        return tiles;
+    }
+
+    private OMEROWrapper getReader() throws Exception {
+        OMEROWrapper reader = readers.get();
+        if (reader == null) {
+            reader = readerFactory.call();
+            // min/max are calculated by this parser, so the reader's own
+            // MinMaxCalculator is disabled; see OMEROWrapper#minMaxSet
+            reader.minMaxSet = true;
+            opened.add(reader);
+            readers.set(reader);
+        }
+        return reader;
+    }
+
+    private void closeReaders() {
+        synchronized (opened) {
+            for (final OMEROWrapper reader : opened) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close reader", e);
+                }
+            }
+            opened.clear();
+        }
+    }
+
+    /**
+     * @return the permits of {@link #parse(List, IMinMaxStore)}'s buffer
+     * for the given bytes, one per started kibibyte
+     */
+    private static int permits(long bytes) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024));
+    }
+
+    /**
+     * @return the permits of the buffer needed to hold a plane of the given
+     * series, no more than the whole buffer so that a plane can always be
+     * read once the others are digested
+     */
+    private int planePermits(ImportSize size) {
+        final long bytes = (long) size.sizeX * size.sizeY * bytesPerPixel(size);
+        return Math.min(permits(maxBufferedBytes), permits(bytes));
+    }
+
+    /**
+     * @return the bytes per pixel of the series, or the most of any pixel
+     * type if the series' type is not known
+     */
+    private static int bytesPerPixel(ImportSize size) {
+        final PixelsType type = size.pixels == null ? null : size.pixels.getPixelsType();
+        if (type == null || !type.isLoaded() || type.getValue() == null) {
+            return 8;
+        }
+        return FormatTools.getBytesPerPixel(
+                FormatTools.pixelTypeFromString(type.getValue().getValue()));
+    }
+
+    private static void update(MessageDigest md, List<byte[]> tiles) {
+        for (final byte[] tile : tiles) {
+            md.update(tile);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(
+                "Required SHA-1 message digest algorithm unavailable.");
+        }
+    }
+}
@@ -19,6 +19,7 @@ package ome.services.blitz.repo;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
@@ -57,6 +58,12 @@ public class RequestObjectFactoryRegistry extends
 
     private final ReaderSecurityCheck readerSecurityCheck;
 
+    private final int parallelReaders;
+
+    private int saveBatchesInFlight = 1;
+
+    private long parallelBufferBytes = 256L * 1024 * 1024;
+
     private/* final */OmeroContext ctx;
 
     @Deprecated
@@ -78,9 +85,17 @@ public class RequestObjectFactoryRegistry extends
         });
     }
 
+    @Deprecated
     public RequestObjectFactoryRegistry(Registry reg, TileSizes sizes,
             RepositoryDao repositoryDao, Ring ring,
             PixelsService pixels, Resources resources, ReaderSecurityCheck readerSecurityCheck) {
+        this(reg, sizes, repositoryDao, ring, pixels, resources, readerSecurityCheck, 1);
+    }
+
+    public RequestObjectFactoryRegistry(Registry reg, TileSizes sizes,
+            RepositoryDao repositoryDao, Ring ring,
+            PixelsService pixels, Resources resources, ReaderSecurityCheck readerSecurityCheck,
+            int parallelReaders) {
         this.reg = reg;
         this.sizes = sizes;
         this.dao = repositoryDao;
@@ -88,6 +103,23 @@ public class RequestObjectFactoryRegistry extends
         this.pixels = pixels;
         this.resources = resources;
         this.readerSecurityCheck = readerSecurityCheck;
+        this.parallelReaders = parallelReaders;
+    }
+
+    /**
+     * @param saveBatchesInFlight how many metadata batches each import may
+     * have in flight while saving to the database
+     */
+    public void setSaveBatchesInFlight(int saveBatchesInFlight) {
+        this.saveBatchesInFlight = saveBatchesInFlight;
+    }
+
+    /**
+     * @param parallelBufferBytes how many bytes of planes each import may
+     * hold at once while parsing pixel data with several readers
+     */
+    public void setParallelBufferBytes(long parallelBufferBytes) {
+        this.parallelBufferBytes = parallelBufferBytes;
     }
 
     public void setApplicationContext(ApplicationContext ctx)
@@ -102,13 +134,16 @@ public class RequestObjectFactoryRegistry extends
             @Override
             public Ice.Object create(String name) {
                 ManagedImportRequestI mir = new ManagedImportRequestI(reg, sizes, dao,
-                        new OMEROWrapper(
-                                new ImportConfig(),
-                                pixels.getMemoizerWait(),
-                                pixels.getMemoizerDirectory(),
-                                readerSecurityCheck),
-                        ring.uuid);
+                        createWrapper(), ring.uuid);
                 mir.setResources(resources);
+                mir.setSaveBatchesInFlight(saveBatchesInFlight);
+                mir.setParallelBufferBytes(parallelBufferBytes);
+                mir.setParallelReaders(parallelReaders, new Callable<OMEROWrapper>() {
+                    @Override
+                    public OMEROWrapper call() {
+                        return createWrapper();
+                    }
+                });
                 return mir;
             }
 
@@ -124,4 +159,12 @@ public class RequestObjectFactoryRegistry extends
         return factories;
     }
 
+    private OMEROWrapper createWrapper() {
+        return new OMEROWrapper(
+                new ImportConfig(),
+                pixels.getMemoizerWait(),
+                pixels.getMemoizerDirectory(),
+                readerSecurityCheck);
+    }
+
 }
@@ -8,6 +8,7 @@ package ome.services.blitz.util;
 import java.net.URL;
 
 import ome.security.SecuritySystem;
+import ome.services.blitz.fire.CachedRegistry;
 import ome.services.blitz.fire.PermissionsVerifierI;
 import ome.services.blitz.fire.Registry;
 import ome.services.blitz.fire.Ring;
@@ -48,7 +49,7 @@ public class BlitzConfiguration {
 
     private final PermissionsVerifier blitzVerifier;
 
-    private final Registry registry;
+    private final CachedRegistry registry;
     
     private final TopicManager topicManager;
 
@@ -112,7 +113,7 @@ public class BlitzConfiguration {
         try {
 
             // This component is inert, and so can be created early.
-            registry = new Registry.Impl(this.communicator);
+            registry = new CachedRegistry(new Registry.Impl(this.communicator));
             topicManager = new TopicManager.Impl(this.communicator);
             blitzAdapter = createAdapter();
             blitzManager = createAndRegisterManager(sessionManager,
@@ -125,6 +126,7 @@ public class BlitzConfiguration {
             // When using adapter methods from within the ring, it is necessary
             // to start the adapter first.
             blitzRing.setRegistry(registry);
+            blitzRing.setSessionManager(blitzManager);
             blitzRing.init(blitzAdapter, communicator
                     .proxyToString(getDirectProxy()));
         } catch (RuntimeException e) {
@@ -291,6 +293,9 @@ public class BlitzConfiguration {
                     blitzAdapter));
             blitzAdapter.deactivate();
         }
+        if (registry != null) {
+            registry.destroy();
+        }
         communicator.destroy();
     }
 
@@ -6,9 +6,20 @@
 package ome.services.blitz.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.services.blitz.fire.Registry;
 import ome.services.blitz.fire.TopicManager;
 import ome.services.util.Executor;
 import ome.tools.spring.OnContextRefreshedEventListener;
@@ -30,6 +41,13 @@ import Ice.Current;
 import Ice.ObjectAdapter;
 
 /**
+ * Closes the jobs which were left open by processors that are no longer
+ * running them, e.g. after a restart. On startup all processors are asked
+ * which jobs they are running; their replies are collected as they arrive
+ * and all other open jobs are closed once every processor known to the
+ * {@link Registry} has replied, or otherwise when the maximum wait has
+ * passed. If the number of processors is not known then the full wait is
+ * kept, since a slow processor's jobs would otherwise be closed under it.
  *
  * @author Josh Moore, josh at glencoesoftware.com
  * @since Beta4.2
@@ -44,20 +62,62 @@ public class CheckAllJobs extends OnContextRefreshedEventListener {
 
     private final TopicManager tm;
 
+    private final Registry registry;
+
     private final Ice.Identity id;
 
     private final long waitMs;
 
+    /**
+     * Ids of the jobs which processors reported as running.
+     */
+    private final Set<Long> openJobs =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private final AtomicInteger replies = new AtomicInteger();
+
+    private final AtomicBoolean synchronizing = new AtomicBoolean();
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "check-all-jobs");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * How many processors are expected to reply, or {@code -1} if not known.
+     */
+    private volatile int expected = -1;
+
+    private volatile long started;
+
     public CheckAllJobs(Executor ex, ObjectAdapter oa, TopicManager tm) {
         this(ex, oa, tm, 10000);
     }
 
     public CheckAllJobs(Executor ex, ObjectAdapter oa, TopicManager tm,
             long waitMs) {
+        this(ex, oa, tm, null, waitMs);
+    }
+
+    /**
+     * @param ex the executor for closing jobs
+     * @param oa the adapter on which to receive the processors' replies
+     * @param tm the topic manager through which to ask the processors
+     * @param registry for counting the processors, may be {@code null}
+     * @param waitMs the longest time to wait for replies
+     */
+    public CheckAllJobs(Executor ex, ObjectAdapter oa, TopicManager tm,
+            Registry registry, long waitMs) {
         this.waitMs = waitMs;
         this.ex = ex;
         this.oa = oa;
         this.tm = tm;
+        this.registry = registry;
         this.id = new Ice.Identity(UUID.randomUUID().toString(),
                 PROCESSORCALLBACK.value);
     }
@@ -68,6 +128,9 @@ public class CheckAllJobs extends OnContextRefreshedEventListener {
     }
 
     public void run() {
+        expected = countProcessors();
+        started = System.currentTimeMillis();
+
         Callback cb = new Callback();
         Ice.ObjectPrx prx = oa.add(cb, id); // OK ADAPTER USAGE
         ProcessorCallbackPrx cbPrx = ProcessorCallbackPrxHelper.uncheckedCast(prx);
@@ -75,30 +138,67 @@ public class CheckAllJobs extends OnContextRefreshedEventListener {
                 PROCESSORACCEPTS.value, new ProcessorPrxHelper(),
                 "requestRunning", cbPrx));
 
-        new Thread() {
-            @Override
-            public void run() {
-                log.info("Waiting " + waitMs / 1000 + " secs. for callbacks");
-                long start = System.currentTimeMillis();
-                while (System.currentTimeMillis() < (start + waitMs)) {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        // ok
-                    }
-                }
-                synchronizeJobs();
+        log.info("Waiting up to " + waitMs / 1000 + " secs. for callbacks from "
+                + (expected < 0 ? "unknown number of" : Integer.toString(expected))
+                + " processor(s)");
+        schedule(waitMs);
+    }
+
+    /**
+     * @return the number of processors in the registry, or {@code -1} if
+     * the registry cannot be asked or knows of none, since they may not
+     * have started yet
+     */
+    private int countProcessors() {
+        if (registry == null) {
+            return -1;
+        }
+        try {
+            final ProcessorPrx[] processors = registry.lookupProcessors();
+            if (processors == null || processors.length == 0) {
+                return -1;
             }
-        }.start();
+            return processors.length;
+        } catch (Exception e) {
+            log.warn("Could not count processors: " + e);
+            return -1;
+        }
+    }
+
+    private void schedule(long delayMs) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // already synchronized
+        }
+    }
+
+    /**
+     * Synchronizes the jobs if the replies have settled.
+     */
+    private void check() {
+        final long now = System.currentTimeMillis();
+        final int count = replies.get();
+        if ((expected > 0 && count >= expected) || now - started >= waitMs) {
+            log.info("Received callbacks from " + count + " processor(s) after "
+                    + (now - started) + " ms.");
+            synchronizeJobs();
+        }
     }
 
     public void synchronizeJobs() {
 
-        final Callback cb = (Callback) oa.find(id);
-        final List<Long> ids = new ArrayList<Long>();
-        synchronized (cb.openJobs) {
-            ids.addAll(cb.openJobs);
+        if (!synchronizing.compareAndSet(false, true)) {
+            return; // Only once
         }
+        scheduler.shutdown();
+
+        final List<Long> ids = new ArrayList<Long>(openJobs);
 
         try {
             ex.executeSql(new Executor.SimpleSqlWork(this,
@@ -122,8 +222,6 @@ public class CheckAllJobs extends OnContextRefreshedEventListener {
 
     private class Callback extends _ProcessorCallbackDisp {
 
-        private final List<Long> openJobs = new ArrayList<Long>();
-
         public void isAccepted(boolean accepted, String sessionUuid,
                 String proxyConn, Current __current) {
             log.error("isAccepted should not have been called");
@@ -135,14 +233,15 @@ public class CheckAllJobs extends OnContextRefreshedEventListener {
         }
 
         public void responseRunning(List<Long> jobIds, Current __current) {
-            synchronized (openJobs) {
-                if (jobIds != null) {
-                    log.info("Received " + jobIds.size() + " job(s)");
-                    openJobs.addAll(jobIds);
-                } else {
-                    log.warn("Null jobIds list sent.");
-                }
+            if (jobIds != null) {
+                log.info("Received " + jobIds.size() + " job(s)");
+                openJobs.addAll(jobIds);
+            } else {
+                log.warn("Null jobIds list sent.");
             }
+            replies.incrementAndGet();
+            // Check now in case this was the last expected reply.
+            schedule(0);
         }
 
     }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+import omero.util.TempFileManager;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed cache of generated export files, shared by all sessions. Files
+ * are named by the SHA-1 of a key which must identify their content, so that
+ * a later request for the same content is served from the existing file and
+ * concurrent requests share a single generation, which they may wait for
+ * outside of any transaction. Files are generated under a
+ * temporary name and then moved into place so a file of the cache is always
+ * complete. Once the files exceed the maximum size, the least recently used
+ * ones which are not in use are deleted.
+ *
+ * @since 5.5.7
+ */
+public class ExportCache {
+
+    private final static Logger log = LoggerFactory.getLogger(ExportCache.class);
+
+    private final static String PARTIAL = ".part";
+
+    /**
+     * Writes the content for a key.
+     */
+    public interface Generator {
+
+        /**
+         * @param target the file to write, which already exists
+         * @throws Exception if the content could not be generated
+         */
+        void generate(File target) throws Exception;
+
+    }
+
+    /**
+     * A file of the cache which is in use until {@link #release()}.
+     */
+    public final class Entry {
+
+        private final String name;
+
+        private final File file;
+
+        private final long size;
+
+        /** Guarded by the cache. */
+        private int users;
+
+        private Entry(String name, File file) {
+            this.name = name;
+            this.file = file;
+            this.size = file.length();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Ends this use of the file, which may then be deleted.
+         */
+        public void release() {
+            synchronized (ExportCache.this) {
+                users--;
+            }
+            evict();
+        }
+    }
+
+    private final ChecksumProviderFactory cpf = new ChecksumProviderFactoryImpl();
+
+    private final File dir;
+
+    private final long maxSize;
+
+    /** By file name, the least recently used first. Guarded by this. */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Guarded by this. */
+    private long size;
+
+    /** The files being generated, by name. Guarded by this. */
+    private final Map<String, Generation> generating = new HashMap<String, Generation>();
+
+    /**
+     * The generation of a file, with the count of the other threads which
+     * will use its entry.
+     */
+    private static final class Generation extends FutureTask<Entry> {
+
+        /** Guarded by the cache. */
+        private int waiters;
+
+        private Generation(Callable<Entry> generate) {
+            super(generate);
+        }
+    }
+
+    /**
+     * @param dir the directory for the files, or empty for a new temporary
+     * directory. Files already in the directory are reused.
+     * @param maxSize the bytes which the files may use, beyond those in use
+     * @throws IOException if the directory cannot be created
+     */
+    public ExportCache(String dir, long maxSize) throws IOException {
+        this.maxSize = maxSize;
+        if (StringUtils.isBlank(dir)) {
+            this.dir = TempFileManager.create_path("__omero_export_cache__", "", true);
+        } else {
+            this.dir = new File(dir);
+            if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+                throw new IOException("Cannot create export cache " + dir);
+            }
+        }
+        load();
+    }
+
+    /**
+     * Deletes partial files and adds the others, the oldest first.
+     */
+    private void load() {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                return Long.compare(left.lastModified(), right.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (final File file : files) {
+                if (file.getName().endsWith(PARTIAL)) {
+                    file.delete();
+                } else if (file.isFile()) {
+                    final Entry entry = new Entry(file.getName(), file);
+                    entries.put(entry.name, entry);
+                    size += entry.size;
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Provides the file for a key, generating it if it is not yet cached or
+     * waiting for its generation if that is already in progress. The entry
+     * must be released when the file is no longer read.
+     * @param key identifies the content of the file
+     * @param suffix the suffix for the file name
+     * @param generator writes the file if needed
+     * @return the cached file
+     * @throws Exception the failure of the generator
+     * @see #acquireAsync(String, String, Generator)
+     */
+    public Entry acquire(String key, String suffix, Generator generator)
+            throws Exception {
+        return await(acquireAsync(key, suffix, generator));
+    }
+
+    /**
+     * Provides the file for a key like
+     * {@link #acquire(String, String, Generator)} but without waiting for a
+     * generation by another thread, so that the caller may first release any
+     * resources which the generator does not need, e.g. a transaction. If
+     * this thread generates the file then it does so before returning. The
+     * entry is reserved for the caller, who must {@link #await(Future)} it
+     * and then release it.
+     * @param key identifies the content of the file
+     * @param suffix the suffix for the file name
+     * @param generator writes the file if needed
+     * @return the cached file once it is generated
+     */
+    public Future<Entry> acquireAsync(String key, String suffix,
+            final Generator generator) {
+        final String name = cpf.getProvider(ChecksumType.SHA1)
+                .putBytes(key.getBytes(StandardCharsets.UTF_8))
+                .checksumAsString() + suffix;
+        final Generation task;
+        synchronized (this) {
+            final Entry entry = entries.get(name);
+            if (entry != null) {
+                entry.users++;
+                return CompletableFuture.completedFuture(entry);
+            }
+            final Generation running = generating.get(name);
+            if (running != null) {
+                running.waiters++;
+                return running;
+            }
+            task = new Generation(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    return generate(name, generator);
+                }
+            });
+            generating.put(name, task);
+        }
+        try {
+            task.run();
+        } finally {
+            synchronized (this) {
+                generating.remove(name);
+            }
+        }
+        evict();
+        return task;
+    }
+
+    /**
+     * Waits for an entry from {@link #acquireAsync(String, String, Generator)}.
+     * @param pending the entry being generated
+     * @return the entry, to be released by the caller
+     * @throws Exception the failure of the generator
+     */
+    public static Entry await(Future<Entry> pending) throws Exception {
+        try {
+            return pending.get();
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private Entry generate(String name, Generator generator) throws Exception {
+        final File partial = File.createTempFile(name, PARTIAL, dir);
+        try {
+            final long start = System.currentTimeMillis();
+            generator.generate(partial);
+            final File file = new File(dir, name);
+            Files.move(partial.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            final Entry entry = new Entry(name, file);
+            log.info("Cached export {} ({} bytes) in {} ms.", name,
+                    entry.size, System.currentTimeMillis() - start);
+            synchronized (this) {
+                // the waiters use the entry too, so it cannot be evicted first
+                entry.users = 1 + generating.get(name).waiters;
+                entries.put(name, entry);
+                size += entry.size;
+            }
+            return entry;
+        } finally {
+            partial.delete();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files not in use until the rest fit.
+     */
+    private synchronized void evict() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.users > 0) {
+                continue;
+            }
+            it.remove();
+            size -= entry.size;
+            if (!entry.file.delete()) {
+                log.warn("Failed to delete cached export {}", entry.file);
+            }
+        }
+    }
+}
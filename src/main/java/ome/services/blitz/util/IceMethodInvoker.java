@@ -5,11 +5,22 @@
 
 package ome.services.blitz.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ome.api.ServiceInterface;
+import ome.api.StatefulServiceInterface;
 import ome.system.OmeroContext;
 import omero.ServerError;
 import omero.util.IceMapper;
@@ -22,7 +33,10 @@ import org.springframework.util.Assert;
  * {@link Method}-cache primed either with an {@link ServiceInterface} instance
  * or with a {@link Class} with generic type {@link ServiceInterface}. Actual
  * invocation happens via
- * {@link #invoke(Object, Ice.Current, IceMapper, Object[])}
+ * {@link #invoke(Object, Ice.Current, IceMapper, Object[])} through a
+ * {@link MethodHandle} prepared for each method when the class is first
+ * seen. The latency and errors of every call are recorded per method and
+ * are available from {@link #getStatistics()}.
  * 
  * No reference is held to the initial priming argument in
  * {@link IceMethodInvoker#IceMethodInvoker(ServiceInterface, OmeroContext)}
@@ -53,20 +67,31 @@ public class IceMethodInvoker {
 
     private static Logger log = LoggerFactory.getLogger(IceMethodInvoker.class);
 
+    /** The type of every {@link Info#handle}: receiver and arguments. */
+    private final static MethodType DISPATCH = MethodType.methodType(
+            Object.class, Object.class, Object[].class);
+
     static class Info {
         Method method;
 
+        /** Null if the method is not accessible as a handle. */
+        MethodHandle handle;
+
         Class<?>[] params;
 
         Class<?> retType;
 
         int[] switches;
+
+        final OperationStats stats = new OperationStats();
     }
 
-    private final static Map<Class<?>, Map<String, Info>> staticmap = new HashMap<Class<?>, Map<String, Info>>();
+    private final static Map<Class<?>, Map<String, Info>> staticmap = new ConcurrentHashMap<Class<?>, Map<String, Info>>();
 
     private final Class<?> serviceClass;
 
+    private final Map<String, Info> infos;
+
     private OmeroContext ctx;
 
     /**
@@ -109,18 +134,94 @@ public class IceMethodInvoker {
                     for (Method m : ms) {
                         Info i = new Info();
                         i.method = m;
+                        i.handle = handle(m);
                         i.params = m.getParameterTypes();
                         i.retType = m.getReturnType();
                         map.put(m.getName(), i);
                     }
-                    staticmap.put(this.serviceClass, map);
+                    staticmap.put(this.serviceClass, Collections.unmodifiableMap(map));
                 }
             }
         }
+        this.infos = staticmap.get(this.serviceClass);
+    }
+
+    /**
+     * Adapts the method to {@link #DISPATCH} so that it can be called with
+     * {@link MethodHandle#invokeExact(Object...)}.
+     * @return the handle, or {@code null} if the method must be called
+     * reflectively
+     */
+    private static MethodHandle handle(Method m) {
+        try {
+            MethodHandle mh = MethodHandles.publicLookup().unreflect(m).asFixedArity();
+            if (Modifier.isStatic(m.getModifiers())) {
+                mh = MethodHandles.dropArguments(mh, 0, Object.class);
+            }
+            return mh.asSpreader(Object[].class, m.getParameterTypes().length)
+                    .asType(DISPATCH);
+        } catch (IllegalAccessException iae) {
+            log.debug("Using reflection for {}", m, iae);
+            return null;
+        }
     }
 
     Map<String, Info> map() {
-        return staticmap.get(serviceClass);
+        return infos;
+    }
+
+    /**
+     * Retrieves the call statistics of every method of every service class
+     * which has had an invoker.
+     * @return the statistics of each method by name, by service. Services
+     * are named after the {@link ServiceInterface} that they implement.
+     */
+    public static Map<String, Map<String, OperationStats>> getStatistics() {
+        final Map<String, Map<String, OperationStats>> services =
+                new TreeMap<String, Map<String, OperationStats>>();
+        // interfaces first so that they keep their plain names
+        final List<Map.Entry<Class<?>, Map<String, Info>>> entries =
+                new ArrayList<Map.Entry<Class<?>, Map<String, Info>>>(staticmap.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Class<?>, Map<String, Info>>>() {
+            @Override
+            public int compare(Map.Entry<Class<?>, Map<String, Info>> a,
+                    Map.Entry<Class<?>, Map<String, Info>> b) {
+                final Class<?> ka = a.getKey(), kb = b.getKey();
+                if (ka.isInterface() != kb.isInterface()) {
+                    return ka.isInterface() ? -1 : 1;
+                }
+                return ka.getName().compareTo(kb.getName());
+            }
+        });
+        for (final Map.Entry<Class<?>, Map<String, Info>> service : entries) {
+            final Map<String, OperationStats> methods = new TreeMap<String, OperationStats>();
+            for (final Map.Entry<String, Info> method : service.getValue().entrySet()) {
+                methods.put(method.getKey(), method.getValue().stats);
+            }
+            String name = serviceName(service.getKey());
+            if (services.containsKey(name)) {
+                name += " (" + service.getKey().getName() + ")";
+            }
+            services.put(name, methods);
+        }
+        return services;
+    }
+
+    /**
+     * @return the simple name of the service interface implemented by the
+     * class, which may be a proxy, or else of the class or interface itself
+     */
+    private static String serviceName(Class<?> k) {
+        if (!k.isInterface()) {
+            for (final Class<?> iface : k.getInterfaces()) {
+                if (ServiceInterface.class.isAssignableFrom(iface)
+                        && iface != ServiceInterface.class
+                        && iface != StatefulServiceInterface.class) {
+                    return iface.getSimpleName();
+                }
+            }
+        }
+        return k.getSimpleName();
     }
 
     /**
@@ -165,11 +266,29 @@ public class IceMethodInvoker {
                     + current.operation);
         }
 
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Object retVal = dispatch(obj, current, mapper, info, args);
+            failed = false;
+            return retVal;
+        } finally {
+            info.stats.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    private Object dispatch(Object obj, Ice.Current current, IceMapper mapper,
+            Info info, Object... args) throws Ice.UserException {
+
         final Object[] objs = arguments(current, mapper, info, args);
 
         Object retVal = null;
         try {
-            retVal = info.method.invoke(obj, objs);
+            if (info.handle != null) {
+                retVal = (Object) info.handle.invokeExact(obj, objs);
+            } else {
+                retVal = info.method.invoke(obj, objs);
+            }
         } catch (Throwable t) {
             throw mapper.handleException(t, ctx);
         }
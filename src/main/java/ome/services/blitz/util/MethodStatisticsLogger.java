@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically logs the call statistics gathered by
+ * {@link IceMethodInvoker} for each method called since the previous run.
+ * Enabled by setting this class' logger to {@code INFO}.
+ *
+ * @since 5.5.7
+ * @see IceMethodInvoker#getStatistics()
+ */
+public class MethodStatisticsLogger {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodStatisticsLogger.class);
+
+    /** The number of calls of each method at the previous run. */
+    private final Map<String, Long> previousCalls = new HashMap<String, Long>();
+
+    /**
+     * @return the percentile in milliseconds, no more than the longest call
+     */
+    private static double percentile(long[] histogram, double fraction, long max) {
+        return Math.min(OperationStats.percentileNanos(histogram, fraction), max) / 1e6;
+    }
+
+    /**
+     * Logs one line for each method which has been called since the last
+     * run, with its totals since the server started. The percentiles are
+     * the upper bounds of the histogram buckets which hold them.
+     */
+    public synchronized void logStatistics() {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        for (final Map.Entry<String, Map<String, OperationStats>> service :
+                IceMethodInvoker.getStatistics().entrySet()) {
+            for (final Map.Entry<String, OperationStats> method :
+                    service.getValue().entrySet()) {
+                final OperationStats stats = method.getValue();
+                final long calls = stats.getCalls();
+                final String name = service.getKey() + "." + method.getKey();
+                final Long previous = previousCalls.put(name, calls);
+                if (calls == 0 || previous != null && previous == calls) {
+                    continue;
+                }
+                final long[] histogram = stats.getHistogram();
+                final long max = stats.getMaxNanos();
+                log.info(String.format(
+                        "%s: calls=%d errors=%d mean=%.3fms p50<=%.3fms "
+                        + "p90<=%.3fms p99<=%.3fms max=%.3fms",
+                        name, calls, stats.getErrors(),
+                        stats.getTotalNanos() / (calls * 1e6),
+                        percentile(histogram, 0.5, max),
+                        percentile(histogram, 0.9, max),
+                        percentile(histogram, 0.99, max),
+                        max / 1e6));
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Call counts and a latency histogram for one operation, updated without
+ * locking. Bucket {@code i} of the histogram counts calls which took at
+ * least 2<sup>i</sup> and less than 2<sup>i+1</sup> nanoseconds; the last
+ * bucket also counts all longer calls.
+ *
+ * @since 5.5.7
+ * @see IceMethodInvoker#getStatistics()
+ */
+public class OperationStats {
+
+    /** Enough buckets for calls of up to about nine minutes. */
+    public static final int BUCKETS = 40;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return right > left ? right : left;
+        }
+    };
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Notes a completed call.
+     * @param nanos how long the call took
+     * @param failed if the call threw an exception
+     */
+    public void record(long nanos, boolean failed) {
+        calls.increment();
+        if (failed) {
+            errors.increment();
+        }
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        final int bucket = 63 - Long.numberOfLeadingZeros(nanos);
+        histogram.incrementAndGet(Math.max(0, Math.min(BUCKETS - 1, bucket)));
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of calls which threw an exception
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the summed duration of all calls
+     */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @return the duration of the longest call
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return a copy of the latency histogram, see above
+     */
+    public long[] getHistogram() {
+        final long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = histogram.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Estimates a percentile of the call durations from a histogram as
+     * returned by {@link #getHistogram()}.
+     * @param histogram the latency histogram
+     * @param fraction the fraction of calls which took no longer than the
+     * percentile, e.g. {@code 0.99}
+     * @return the upper bound of the bucket which holds the percentile, or
+     * {@code 0} if the histogram is empty
+     */
+    public static long percentileNanos(long[] histogram, double fraction) {
+        long total = 0;
+        for (final long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        int bucket = 0;
+        while (bucket < histogram.length - 1) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                break;
+            }
+            bucket++;
+        }
+        return 1L << (bucket + 1);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import ome.api.RawFileStore;
+import ome.api.RawPixelsStore;
+import ome.api.ServiceInterface;
+import ome.api.StatefulServiceInterface;
+import ome.api.ThumbnailStore;
+import ome.conditions.TryAgain;
+import ome.security.basic.CurrentDetails;
+import ome.services.blitz.util.IceMethodInvoker;
+import omeis.providers.re.RenderingEngine;
+import omero.util.IceMapper;
+
+import Ice.Current;
+
+/**
+ * Throttling implementation which runs each call on one of several bounded
+ * pools of worker threads rather than on the Ice dispatch thread, so that
+ * calls which saturate one resource do not hold up calls which need
+ * another. The pool is chosen from {@link Callback#ioIntensive()} and
+ * {@link Callback#dbIntensive()}, which are set here according to the kind
+ * of service being called:
+ * <ul>
+ * <li>I/O: {@link RawPixelsStore}, {@link RawFileStore} and
+ * {@link ThumbnailStore}</li>
+ * <li>CPU: {@link RenderingEngine}</li>
+ * <li>database: all other stateless services, e.g. {@code IQuery}</li>
+ * <li>unknown: other stateful services and all blitz-only calls</li>
+ * </ul>
+ * Within each pool, sessions take turns: a free worker always takes the
+ * oldest queued call of the session after the one it last served, so a
+ * session with many queued calls cannot starve the others. Sessions are
+ * keyed by the category of the servant's identity. The calls of one session
+ * run concurrently, up to a limit per session so that a few sessions cannot
+ * occupy every worker. Once a pool has its limit of queued calls, further
+ * calls are rejected immediately with {@link TryAgain} rather than waiting.
+ *
+ * @since 5.5.7
+ */
+public class ResourceThrottlingStrategy extends AbstractThrottlingStrategy {
+
+    /** How long clients are told to wait before retrying a rejected call. */
+    private final static long BACK_OFF = 1000L;
+
+    private final CurrentDetails cd;
+
+    private final Lane io, db, cpu, unknown;
+
+    /**
+     * @param cd the per-thread context to set for each call
+     * @param ioThreads how many I/O-intensive calls may run at once
+     * @param dbThreads how many database-intensive calls may run at once
+     * @param cpuThreads how many CPU-intensive calls may run at once
+     * @param unknownThreads how many other calls may run at once
+     * @param maxQueued how many calls may wait in each pool before further
+     * calls are rejected
+     */
+    public ResourceThrottlingStrategy(CurrentDetails cd, int ioThreads,
+            int dbThreads, int cpuThreads, int unknownThreads, int maxQueued) {
+        this(cd, ioThreads, dbThreads, cpuThreads, unknownThreads, maxQueued,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param cd the per-thread context to set for each call
+     * @param ioThreads how many I/O-intensive calls may run at once
+     * @param dbThreads how many database-intensive calls may run at once
+     * @param cpuThreads how many CPU-intensive calls may run at once
+     * @param unknownThreads how many other calls may run at once
+     * @param maxQueued how many calls may wait in each pool before further
+     * calls are rejected
+     * @param maxPerSession how many calls of one session may run at once in
+     * each pool
+     */
+    public ResourceThrottlingStrategy(CurrentDetails cd, int ioThreads,
+            int dbThreads, int cpuThreads, int unknownThreads, int maxQueued,
+            int maxPerSession) {
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("maxQueued must be positive");
+        }
+        if (maxPerSession < 1) {
+            throw new IllegalArgumentException("maxPerSession must be positive");
+        }
+        this.cd = cd;
+        this.io = new Lane("io", ioThreads, maxQueued, maxPerSession);
+        this.db = new Lane("db", dbThreads, maxQueued, maxPerSession);
+        this.cpu = new Lane("cpu", cpuThreads, maxQueued, maxPerSession);
+        this.unknown = new Lane("unknown", unknownThreads, maxQueued, maxPerSession);
+    }
+
+    public void callInvokerOnRawArgs(ServiceInterface service,
+            IceMethodInvoker invoker, Object __cb, Ice.Current __current,
+            Object... args) {
+        submit(callback(service, invoker, new IceMapper(), __cb, __current, args));
+    }
+
+    public void callInvokerWithMappedArgs(ServiceInterface service,
+            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
+            Current __current, Object... args) {
+        submit(callback(service, invoker, mapper, __cb, __current, args));
+    }
+
+    public <R> void safeRunnableCall(Current __current, Object __cb, boolean isVoid, Callable<R> callable) {
+        submit(new Callback2<R>(__current, __cb, isVoid, callable));
+    }
+
+    public void runnableCall(Current __current, Task runnable) {
+        submit(runnable);
+    }
+
+    /**
+     * Stops the workers once their current calls are done. Queued calls
+     * are rejected.
+     */
+    public void destroy() {
+        io.destroy();
+        db.destroy();
+        cpu.destroy();
+        unknown.destroy();
+    }
+
+    private Callback callback(ServiceInterface service,
+            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
+            Current __current, Object... args) {
+        Boolean isIO = null;
+        Boolean isDB = null;
+        if (service instanceof RawPixelsStore || service instanceof RawFileStore
+                || service instanceof ThumbnailStore) {
+            isIO = Boolean.TRUE;
+            isDB = Boolean.FALSE;
+        } else if (service instanceof RenderingEngine) {
+            isIO = Boolean.FALSE;
+            isDB = Boolean.FALSE;
+        } else if (!(service instanceof StatefulServiceInterface)) {
+            isIO = Boolean.FALSE;
+            isDB = Boolean.TRUE;
+        }
+        return new Callback(isIO, isDB, service, invoker, __cb, mapper,
+                __current, args);
+    }
+
+    private void submit(Task task) {
+        Lane lane = unknown;
+        if (task instanceof Callback) {
+            final Callback cb = (Callback) task;
+            if (Boolean.TRUE.equals(cb.ioIntensive())) {
+                lane = io;
+            } else if (Boolean.TRUE.equals(cb.dbIntensive())) {
+                lane = db;
+            } else if (Boolean.FALSE.equals(cb.ioIntensive())
+                    && Boolean.FALSE.equals(cb.dbIntensive())) {
+                lane = cpu;
+            }
+        }
+        final Object session = task.current == null || task.current.id == null
+                ? new Object() : task.current.id.category;
+        if (!lane.offer(session, task)) {
+            reject(task, "Too many " + lane.name + " calls queued on server");
+        }
+    }
+
+    private void run(Task task) {
+        if (task.current != null) {
+            cd.setContext(task.current.ctx);
+        }
+        try {
+            task.run(ctx);
+        } catch (Throwable t) {
+            log.error("Exception during throttled call", t);
+        } finally {
+            cd.setContext(null);
+        }
+    }
+
+    private void reject(Task task, String message) {
+        if (task.cb == null) {
+            log.warn("{}: dropping {}", message, task);
+            return;
+        }
+        try {
+            task.exception(new TryAgain(message, BACK_OFF), ctx);
+        } catch (RuntimeException e) {
+            log.warn("Failed to reject {}", task, e);
+        }
+    }
+
+    /**
+     * A call taken by a worker together with the session which it is for.
+     */
+    private static final class Turn {
+
+        final Object session;
+
+        final Task task;
+
+        Turn(Object session, Task task) {
+            this.session = session;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A bounded pool of workers with a queue per session. Sessions with
+     * queued calls and fewer than {@link #maxPerSession} running wait their
+     * turn in {@link #ready}.
+     */
+    private final class Lane {
+
+        final String name;
+
+        private final int maxQueued;
+
+        private final int maxPerSession;
+
+        /** Sessions with queued or running calls. */
+        private final Map<Object, Deque<Task>> bySession = new HashMap<Object, Deque<Task>>();
+
+        /** Sessions which may run their next call, each at most once. */
+        private final Deque<Object> ready = new ArrayDeque<Object>();
+
+        /** How many calls of each session are running. */
+        private final Map<Object, Integer> running = new HashMap<Object, Integer>();
+
+        private final List<Thread> workers;
+
+        private int queued;
+
+        private boolean done;
+
+        Lane(String name, int threads, int maxQueued, int maxPerSession) {
+            if (threads < 1) {
+                throw new IllegalArgumentException(
+                        "need at least one " + name + " thread, not " + threads);
+            }
+            this.name = name;
+            this.maxQueued = maxQueued;
+            this.maxPerSession = maxPerSession;
+            this.workers = new ArrayList<Thread>(threads);
+            for (int i = 1; i <= threads; i++) {
+                final Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "throttling-" + name + "-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        private int running(Object session) {
+            final Integer count = running.get(session);
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * @return if the task was queued
+         */
+        synchronized boolean offer(Object session, Task task) {
+            if (done || queued >= maxQueued) {
+                return false;
+            }
+            Deque<Task> tasks = bySession.get(session);
+            if (tasks == null) {
+                tasks = new ArrayDeque<Task>();
+                bySession.put(session, tasks);
+            }
+            if (tasks.isEmpty() && running(session) < maxPerSession) {
+                ready.addLast(session);
+                notify();
+            }
+            tasks.addLast(task);
+            queued++;
+            return true;
+        }
+
+        /**
+         * Takes the next call of the next session in turn. The session goes
+         * to the back of {@link #ready} if it may run another call.
+         */
+        private synchronized Turn take() throws InterruptedException {
+            while (ready.isEmpty()) {
+                if (done) {
+                    return null;
+                }
+                wait();
+            }
+            final Object session = ready.removeFirst();
+            final Deque<Task> tasks = bySession.get(session);
+            final Task task = tasks.removeFirst();
+            final int count = running(session) + 1;
+            running.put(session, count);
+            queued--;
+            if (!tasks.isEmpty() && count < maxPerSession) {
+                ready.addLast(session);
+                notify();
+            }
+            return new Turn(session, task);
+        }
+
+        /**
+         * Ends one of the session's running calls, queueing the session for
+         * its next turn if it was at its limit and has further calls.
+         */
+        private synchronized void finished(Object session) {
+            final int count = running(session) - 1;
+            if (count == 0) {
+                running.remove(session);
+            } else {
+                running.put(session, count);
+            }
+            final Deque<Task> tasks = bySession.get(session);
+            if (tasks == null) {
+                return; // destroyed
+            }
+            if (tasks.isEmpty()) {
+                if (count == 0) {
+                    bySession.remove(session);
+                }
+            } else if (count == maxPerSession - 1) {
+                ready.addLast(session);
+                notify();
+            }
+        }
+
+        private void work() {
+            try {
+                Turn turn;
+                while ((turn = take()) != null) {
+                    try {
+                        run(turn.task);
+                    } finally {
+                        finished(turn.session);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                log.debug("Throttling worker interrupted", ie);
+            }
+        }
+
+        void destroy() {
+            final List<Task> unrun = new ArrayList<Task>();
+            synchronized (this) {
+                done = true;
+                for (final Deque<Task> tasks : bySession.values()) {
+                    unrun.addAll(tasks);
+                }
+                bySession.clear();
+                ready.clear();
+                queued = 0;
+                notifyAll();
+            }
+            for (final Task task : unrun) {
+                reject(task, "Server shutting down");
+            }
+        }
+    }
+}
@@ -23,17 +23,20 @@ import static omero.rtypes.rstring;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -43,6 +46,7 @@ import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import ome.util.Utils;
+import ome.util.checksum.ChecksumProvider;
 import ome.util.checksum.ChecksumProviderFactory;
 import ome.util.checksum.ChecksumProviderFactoryImpl;
 import ome.util.checksum.ChecksumType;
@@ -63,6 +67,12 @@ import omero.model.ChecksumAlgorithm;
 import omero.model.ChecksumAlgorithmI;
 import omero.model.OriginalFile;
 import omero.model.OriginalFileI;
+import omero.model.enums.ChecksumAlgorithmAdler32;
+import omero.model.enums.ChecksumAlgorithmCRC32;
+import omero.model.enums.ChecksumAlgorithmFileSize64;
+import omero.model.enums.ChecksumAlgorithmMD5128;
+import omero.model.enums.ChecksumAlgorithmMurmur3128;
+import omero.model.enums.ChecksumAlgorithmMurmur332;
 import omero.model.enums.ChecksumAlgorithmSHA1160;
 import omero.util.ModelObjectFactoryRegistry;
 import omero.util.Resources;
@@ -1143,10 +1153,11 @@ public class client {
 
         fileObject.setSize(rlong(size));
 
+        // The server calculates the hash on save, checked against our own
         final ChecksumAlgorithm hasher = new ChecksumAlgorithmI();
         hasher.setValue(rstring(ChecksumAlgorithmSHA1160.value));
         fileObject.setHasher(hasher);
-        fileObject.setHash(rstring(sha1(file)));
+        fileObject.setHash(null);
 
         if (fileObject.getName() == null) {
             fileObject.setName(rstring(file.getName()));
@@ -1175,6 +1186,8 @@ public class client {
         fileObject = (OriginalFile) up.saveAndReturnObject(fileObject);
 
         byte[] buf = new byte[blockSize];
+        final ChecksumProvider cp = new ChecksumProviderFactoryImpl()
+                .getProvider(ChecksumType.SHA1);
         RawFileStorePrx rfs = sf.createRawFileStore();
         FileInputStream stream = null;
         try {
@@ -1182,14 +1195,19 @@ public class client {
             stream = new FileInputStream(file);
             long pos = 0;
             int rlen;
-            ByteBuffer bbuf;
             while ((rlen = stream.read(buf)) > 0) {
                 rfs.write(buf, pos, rlen);
+                cp.putBytes(buf, 0, rlen);
                 pos += rlen;
-                bbuf = ByteBuffer.wrap(buf);
-                bbuf.limit(rlen);
             }
-            return rfs.save();
+            final OriginalFile saved = rfs.save();
+            final String hash = cp.checksumAsString();
+            if (saved.getHash() != null
+                    && !hash.equalsIgnoreCase(saved.getHash().getValue())) {
+                throw new ClientError("Uploaded file has hash "
+                        + saved.getHash().getValue() + " not " + hash);
+            }
+            return saved;
         } finally {
             Utils.closeQuietly(stream);
             if (rfs != null) {
@@ -1203,27 +1221,170 @@ public class client {
     }
 
     public void download(long fileId, File file, int blockSize) throws ServerError, IOException  {
+        download(fileId, file, blockSize, 1, false);
+    }
+
+    /**
+     * Utility method to download a file from the server with several
+     * {@link RawFileStorePrx} instances at once. The file is read in blocks
+     * which are assigned to the stores in turn, with up to two reads in
+     * flight per store, and written in order so that the local file is
+     * always a complete prefix of the remote one. If the remote file has a
+     * hash then the hash of the local file is calculated as it is written
+     * and checked at the end.
+     *
+     * @param fileId
+     *            The ID of the original file.
+     * @param file
+     *            The local file to write.
+     * @param blockSize
+     *            The bytes to read per call.
+     * @param streams
+     *            How many stores to read from at once.
+     * @param resume
+     *            If a local file shorter than the remote one is continued
+     *            rather than written afresh. If its hash then does not match,
+     *            the whole file is downloaded again.
+     */
+    public void download(long fileId, File file, int blockSize, int streams,
+            boolean resume) throws ServerError, IOException {
         final ServiceFactoryPrx sf = getSession();
-        final OriginalFile obj = (OriginalFile) sf.getQueryService().get("OriginalFile", fileId);
-        final RawFileStorePrx store = sf.createRawFileStore();
-        final FileOutputStream stream = new FileOutputStream(file);
+        final omero.sys.ParametersI params = new omero.sys.ParametersI();
+        params.addId(fileId);
+        final OriginalFile obj = (OriginalFile) sf.getQueryService().findByQuery(
+                "select f from OriginalFile f left outer join fetch f.hasher " +
+                "where f.id = :id", params);
+        if (obj == null) {
+            throw new ClientError("No such file: " + fileId);
+        }
 
         final long size = obj.getSize().getValue();
+        ChecksumType type = null;
+        String expected = null;
+        if (obj.getHash() != null && obj.getHasher() != null) {
+            type = checksumType(obj.getHasher());
+            expected = obj.getHash().getValue();
+        }
 
-        long offset = 0;
-
-        store.setFileId(fileId);
+        final List<RawFileStorePrx> stores = new ArrayList<RawFileStorePrx>();
+        final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
         try {
-            for (offset = 0; (offset+blockSize) < size;) {
-                stream.write(store.read(offset, blockSize));
-                offset += blockSize;
+            for (int i = 0; i < Math.max(1, streams); i++) {
+                final RawFileStorePrx store = sf.createRawFileStore();
+                stores.add(store);
+                store.setFileId(fileId);
+            }
+            final long start = resume && channel.size() <= size ? channel.size() : 0;
+            if (!download(stores, channel, start, size, blockSize, type, expected)
+                    && (start == 0
+                    || !download(stores, channel, 0, size, blockSize, type, expected))) {
+                throw new ClientError("Downloaded file " + fileId
+                        + " does not have hash " + expected);
             }
-            stream.write(store.read(offset, (int) (size-offset)));
         } finally {
-            Utils.closeQuietly(stream);
-            store.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            for (final RawFileStorePrx store : stores) {
+                try {
+                    store.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
         }
+    }
 
+    /**
+     * Maps a hasher to its checksum type without the server-side
+     * {@code ChecksumAlgorithmMapper}.
+     * @return the checksum type, or {@code null} if the hasher is unknown
+     * so that the download is not checked
+     */
+    private static ChecksumType checksumType(ChecksumAlgorithm hasher) {
+        if (!hasher.isLoaded() || hasher.getValue() == null) {
+            return null;
+        }
+        final String value = hasher.getValue().getValue();
+        if (ChecksumAlgorithmAdler32.value.equals(value)) {
+            return ChecksumType.ADLER32;
+        } else if (ChecksumAlgorithmCRC32.value.equals(value)) {
+            return ChecksumType.CRC32;
+        } else if (ChecksumAlgorithmMD5128.value.equals(value)) {
+            return ChecksumType.MD5;
+        } else if (ChecksumAlgorithmMurmur332.value.equals(value)) {
+            return ChecksumType.MURMUR32;
+        } else if (ChecksumAlgorithmMurmur3128.value.equals(value)) {
+            return ChecksumType.MURMUR128;
+        } else if (ChecksumAlgorithmSHA1160.value.equals(value)) {
+            return ChecksumType.SHA1;
+        } else if (ChecksumAlgorithmFileSize64.value.equals(value)) {
+            return ChecksumType.FILE_SIZE;
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the remote file from the given offset into the local file.
+     * @return if the hash of the local file matches the expected one, or
+     * {@code true} if there is no hash to check
+     */
+    private boolean download(List<RawFileStorePrx> stores, FileChannel channel,
+            long start, long size, int blockSize, ChecksumType type,
+            String expected) throws ServerError, IOException {
+        channel.truncate(start);
+        final ChecksumProvider cp = type == null ? null
+                : new ChecksumProviderFactoryImpl().getProvider(type);
+        if (cp != null && start > 0) {
+            // the hash must include the bytes already present
+            final ByteBuffer buf = ByteBuffer.allocate(blockSize);
+            long pos = 0;
+            while (pos < start) {
+                buf.clear();
+                buf.limit((int) Math.min(blockSize, start - pos));
+                final int rlen = channel.read(buf, pos);
+                if (rlen < 0) {
+                    break;
+                }
+                cp.putBytes(buf.array(), 0, rlen);
+                pos += rlen;
+            }
+        }
+
+        final int window = 2 * stores.size();
+        final Deque<Ice.AsyncResult> reads = new ArrayDeque<Ice.AsyncResult>();
+        final Deque<RawFileStorePrx> readers = new ArrayDeque<RawFileStorePrx>();
+        final Deque<long[]> ranges = new ArrayDeque<long[]>();
+        long next = start;
+        int block = 0;
+        while (next < size || !reads.isEmpty()) {
+            while (next < size && reads.size() < window) {
+                final int rlen = (int) Math.min(blockSize, size - next);
+                final RawFileStorePrx store = stores.get(block++ % stores.size());
+                reads.addLast(store.begin_read(next, rlen));
+                readers.addLast(store);
+                ranges.addLast(new long[] {next, rlen});
+                next += rlen;
+            }
+            final byte[] data = readers.removeFirst().end_read(reads.removeFirst());
+            final long[] range = ranges.removeFirst();
+            if (data.length != range[1]) {
+                throw new ClientError("Read " + data.length + " bytes at "
+                        + range[0] + " instead of " + range[1]);
+            }
+            final ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                channel.write(buf, range[0] + buf.position());
+            }
+            if (cp != null) {
+                cp.putBytes(data);
+            }
+        }
+        return cp == null || cp.checksumAsString().equalsIgnoreCase(expected);
     }
 
     // Environment methods
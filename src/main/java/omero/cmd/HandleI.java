@@ -9,6 +9,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -63,6 +69,27 @@ public class HandleI implements _HandleOperations, IHandle,
 
     private static final MapMaker mapMaker = new MapMaker();
 
+    /**
+     * Least time in milliseconds between two
+     * {@link CmdCallbackPrx#step(int, int)} notifications of one handle.
+     * Steps completed in between are reported together by the next one.
+     */
+    private static final long STEP_INTERVAL_MS = 250;
+
+    /**
+     * Sends the delayed step notifications of all handles so that running
+     * requests never wait on clients.
+     */
+    private static final ScheduledExecutorService notifier =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "cmd-callback-notifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final ReadOnlyStatus readOnly;
 
     /**
@@ -81,6 +108,22 @@ public class HandleI implements _HandleOperations, IHandle,
      */
     private final AtomicReference<State> state = new AtomicReference<State>();
 
+    /**
+     * Notified whenever {@link #state} reaches {@code CANCELLED} or
+     * {@code FINISHED} so that {@link #cancel(Current)} need not poll.
+     */
+    private final Object stateChanged = new Object();
+
+    /**
+     * If a step notification is waiting to be sent by the {@link #notifier}.
+     */
+    private final AtomicBoolean stepScheduled = new AtomicBoolean();
+
+    /**
+     * When the last step notification was sent.
+     */
+    private volatile long lastStepSent;
+
     /**
      * Final response. If this value is non-null, then clients will assume that
      * processing is finished.
@@ -172,7 +215,7 @@ public class HandleI implements _HandleOperations, IHandle,
         Ice.Identity id = cb.ice_getIdentity();
         String key = Ice.Util.identityToString(id);
         helper.info("Add callback: %s", key);
-        cb = CmdCallbackPrxHelper.checkedCast(cb.ice_oneway());
+        cb = CmdCallbackPrxHelper.uncheckedCast(cb.ice_oneway());
         callbacks.put(key, cb);
     }
 
@@ -180,7 +223,6 @@ public class HandleI implements _HandleOperations, IHandle,
         Ice.Identity id = cb.ice_getIdentity();
         String key = Ice.Util.identityToString(id);
         helper.info("Remove callback: %s", key);
-        cb = CmdCallbackPrxHelper.checkedCast(cb.ice_oneway());
         callbacks.remove(key);
     }
 
@@ -188,33 +230,92 @@ public class HandleI implements _HandleOperations, IHandle,
      * Calls the proper notification on all callbacks based on the current
      * position in the state diagram. If that is anything other than
      * {@code CANCELLED} or {@code FINISHED} then
-     * {@link CmdCallbackPrx#step(int, int)} is called.
+     * {@link CmdCallbackPrx#step(int, int)} is called, at most once per
+     * {@link #STEP_INTERVAL_MS}. All notifications are asynchronous one-way
+     * calls which do not wait on the client; callbacks whose calls fail
+     * are removed.
      */
     public void notifyCallbacks() {
         final State state = this.state.get();
         final boolean finished = state.equals(State.FINISHED);
         final boolean cancelled = state.equals(State.CANCELLED);
-        for (final CmdCallbackPrx prx : callbacks.values()) {
+        if (finished || cancelled) {
+            Response rsp = this.rsp.get();
+            if (cancelled) {
+                helper.info("notify cancelled: %s/%s", rsp, status);
+            } else {
+                helper.info("notify finished: %s/%s", rsp, status);
+            }
+            for (final Map.Entry<String, CmdCallbackPrx> entry : callbacks.entrySet()) {
+                try {
+                    entry.getValue().begin_finished(rsp, status,
+                            new Failure(entry.getKey()));
+                } catch (Exception e) {
+                    sess.handleCallbackException(e);
+                }
+            }
+        } else if (!callbacks.isEmpty() && stepScheduled.compareAndSet(false, true)) {
+            final long delay = Math.max(0,
+                    lastStepSent + STEP_INTERVAL_MS - System.currentTimeMillis());
             try {
-                Response rsp = this.rsp.get();
-                if (finished || cancelled) {
-                    if (cancelled) {
-                        helper.info("notify cancelled: %s/%s", rsp, status);
-                    } else {
-                        helper.info("notify finished: %s/%s", rsp, status);
+                notifier.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        stepScheduled.set(false);
+                        notifyStep();
                     }
-                    prx.finished(rsp, status);
-                } else {
-                    int step = currentStep.get();
-                    helper.info("notify step %s of %s", step, status.steps);
-                    prx.step(step, status.steps);
-                }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                stepScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Sends the latest step to all callbacks unless the request has
+     * already ended, in which case {@link #notifyCallbacks()} has sent
+     * {@link CmdCallbackPrx#finished(Response, Status)} instead.
+     */
+    private void notifyStep() {
+        final State state = this.state.get();
+        if (state.equals(State.FINISHED) || state.equals(State.CANCELLED)) {
+            return;
+        }
+        lastStepSent = System.currentTimeMillis();
+        final int step = currentStep.get();
+        helper.info("notify step %s of %s", step, status.steps);
+        for (final Map.Entry<String, CmdCallbackPrx> entry : callbacks.entrySet()) {
+            try {
+                entry.getValue().begin_step(step, status.steps,
+                        new Failure(entry.getKey()));
             } catch (Exception e) {
                 sess.handleCallbackException(e);
             }
         }
     }
 
+    /**
+     * Removes a callback whose notification could not be sent.
+     */
+    private final class Failure extends Ice.Callback {
+
+        private final String key;
+
+        Failure(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void completed(Ice.AsyncResult r) {
+            try {
+                r.throwLocalException();
+            } catch (Exception e) {
+                callbacks.remove(key);
+                sess.handleCallbackException(e);
+            }
+        }
+    }
+
     //
     // GETTERS
     //
@@ -266,37 +367,45 @@ public class HandleI implements _HandleOperations, IHandle,
             return true;
         }
 
-        long start = System.currentTimeMillis();
-        while (cancelTimeoutMs >= (System.currentTimeMillis() - start)) {
-
-            // This is the most important case. If things are running, then
-            // we want to set "CANCELLING" as quickly as possible.
-            if (state.compareAndSet(State.RUNNING, State.CANCELLING)
-                    || state.compareAndSet(State.READY, State.CANCELLING)
-                    || state.compareAndSet(State.CANCELLING, State.CANCELLING)) {
-
-                try {
-                    Thread.sleep(cancelTimeoutMs / 10);
-                } catch (InterruptedException e) {
-                    // Igoring the interruption since the while block
-                    // will properly handle another iteration.
+        // If things are running, then we want to set "CANCELLING" as
+        // quickly as possible. Between steps the state may briefly be
+        // READY, so retry until it is CANCELLING or has ended.
+        final long deadline = System.currentTimeMillis() + cancelTimeoutMs;
+        synchronized (stateChanged) {
+            while (true) {
+                if (state.compareAndSet(State.RUNNING, State.CANCELLING)
+                        || state.compareAndSet(State.READY, State.CANCELLING)
+                        || state.compareAndSet(State.CANCELLING, State.CANCELLING)) {
+                    // The request notices at its next step and then ends.
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        stateChanged.wait(remaining);
+                    } catch (InterruptedException e) {
+                        // Igoring the interruption since the while block
+                        // will properly handle another iteration.
+                    }
                 }
 
-            }
+                // These are end states, so we'll just return.
+                // See the transition states in the class javadoc
+                if (state.compareAndSet(State.CANCELLED, State.CANCELLED)) {
+                    return true;
 
-            // These are end states, so we'll just return.
-            // See the transition states in the class javadoc
-            if (state.compareAndSet(State.CANCELLED, State.CANCELLED)) {
-                return true;
+                } else if (state.compareAndSet(State.FINISHED, State.FINISHED)) {
+                    return false;
+                }
 
-            } else if (state.compareAndSet(State.FINISHED, State.FINISHED)) {
-                return false;
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
             }
-
         }
 
-        // The only time that state gets set to CANCELLING is in the try
-        // block above. If we've exited the while without switching to CANCELLED
+        // The only time that state gets set to CANCELLING is in the loop
+        // above. If we've exited the while without switching to CANCELLED
         // then we've failed, and the value should be rolled back.
         //
         // If #run() noticed this before hand, then it would already have
@@ -366,24 +475,34 @@ public class HandleI implements _HandleOperations, IHandle,
         StopWatch sw = new Slf4JStopWatch();
         try {
             Map<String, String> merged = mergeContexts();
-            final List<Object> rv;
-            if (req instanceof ReadOnlyStatus.IsAware && ((ReadOnlyStatus.IsAware) req).isReadOnly(readOnly)) {
-                rv = (List<Object>) executor.execute(merged, principal,
-                        new RunSteps(this, "run (ro)", Ice.Util.identityToString(id), req) {
-                    @Transactional(readOnly = true)
-                    public List<Object> doWork(Session session, ServiceFactory sf) {
-                        return innerWork(session, sf);
-                    }
-                });
-            } else {
-                rv = (List<Object>) executor.execute(merged, principal,
-                        new RunSteps(this, "run (rw)", Ice.Util.identityToString(id), req) {
-                    @Transactional(readOnly = false)
-                    public List<Object> doWork(Session session, ServiceFactory sf) {
-                        return innerWork(session, sf);
-                    }
-                });
-            }
+            final boolean isReadOnly = req instanceof ReadOnlyStatus.IsAware
+                    && ((ReadOnlyStatus.IsAware) req).isReadOnly(readOnly);
+            final List<Object> rv = new ArrayList<Object>();
+            // Each pass is one transaction. Only an ISegmentedRequest
+            // may end a transaction before all its steps have run.
+            do {
+                final int first = currentStep.get();
+                if (isReadOnly) {
+                    rv.addAll((List<Object>) executor.execute(merged, principal,
+                            new RunSteps(this, "run (ro)", first, Ice.Util.identityToString(id), req) {
+                        @Transactional(readOnly = true)
+                        public List<Object> doWork(Session session, ServiceFactory sf) {
+                            return innerWork(session, sf);
+                        }
+                    }));
+                } else {
+                    rv.addAll((List<Object>) executor.execute(merged, principal,
+                            new RunSteps(this, "run (rw)", first, Ice.Util.identityToString(id), req) {
+                        @Transactional(readOnly = false)
+                        public List<Object> doWork(Session session, ServiceFactory sf) {
+                            return innerWork(session, sf);
+                        }
+                    }));
+                }
+                if (!State.FINISHED.equals(state.get())) {
+                    committed(currentStep.get());
+                }
+            } while (!State.FINISHED.equals(state.get()));
 
             // Post-process
             for (int step = 0; step < status.steps; step++) {
@@ -427,6 +546,20 @@ public class HandleI implements _HandleOperations, IHandle,
     }
 
     public List<Object> steps(SqlAction sql, Session session, ServiceFactory sf) throws Cancel {
+        return steps(sql, session, sf, 0);
+    }
+
+    /**
+     * Runs steps from the given one until all are done, in which case
+     * {@link IRequest#finish()} is also called, or until an
+     * {@link ISegmentedRequest} accepts a commit point.
+     *
+     * @param first the first step to run; if not {@code 0} then the request
+     * must be an {@link ISegmentedRequest}
+     * @return the results of the steps which were run
+     */
+    private List<Object> steps(SqlAction sql, Session session, ServiceFactory sf,
+            int first) throws Cancel {
         StopWatch swWhole = new Slf4JStopWatch();
         try {
 
@@ -435,9 +568,13 @@ public class HandleI implements _HandleOperations, IHandle,
             StopWatch swEach = null;
             // Now that we're in the transaction, replace the helper.
             helper = new Helper((Request)req, status, sql, session, sf);
-            req.init(helper);
+            if (first == 0) {
+                req.init(helper);
+            } else {
+                ((ISegmentedRequest) req).resume(helper);
+            }
 
-            int j = 0;
+            int j = first;
             while (j < status.steps) {
                 swEach = new Slf4JStopWatch();
                 try {
@@ -459,20 +596,13 @@ public class HandleI implements _HandleOperations, IHandle,
 
                 j = currentStep.incrementAndGet(); // SOLE INCREMENT
 
-                // The following would probably be better handled by a
-                // background thread, or via the heartbeat mechanism. For
-                // the moment, though we'll notify callbacks per decile.
-
-                int numOfCallbacks = 10; // TODO: configurable
-                int mod = 1;
+                // Cheap: notifications are coalesced and sent in the
+                // background at a limited rate.
+                notifyCallbacks();
 
-                // status.steps == 0 can't happen
-                if (status.steps > numOfCallbacks) {
-                    mod = (status.steps / numOfCallbacks);
-                }
-
-                if ((j % mod) == 0) {
-                    notifyCallbacks();
+                if (j < status.steps && req instanceof ISegmentedRequest
+                        && ((ISegmentedRequest) req).isCommitPoint(j)) {
+                    return rv; // Commit, and continue in a new transaction
                 }
 
             }
@@ -486,12 +616,37 @@ public class HandleI implements _HandleOperations, IHandle,
             throw helper.cancel(new ERR(), t, "steps-cancel");
         } finally {
             swWhole.stop("omero.request");
-            status.startTime = swWhole.getStartTime();
+            if (first == 0) {
+                status.startTime = swWhole.getStartTime();
+            }
             status.stopTime = swWhole.getStartTime() + swWhole.getElapsedTime();
         }
 
     }
 
+    /**
+     * Records in the {@link Status} that the given number of steps of an
+     * {@link ISegmentedRequest} have been committed.
+     */
+    private void committed(int steps) {
+        if (status.parameters == null) {
+            status.parameters = new HashMap<String, String>();
+        }
+        status.parameters.put("committed-steps", Integer.toString(steps));
+        helper.info("Committed %s of %s steps", steps, status.steps);
+    }
+
+    /**
+     * Moves to {@code CANCELLED} or {@code FINISHED} and wakes any thread
+     * waiting in {@link #cancel(Current)}.
+     */
+    private void setEndState(State end) {
+        synchronized (stateChanged) {
+            state.set(end);
+            stateChanged.notifyAll();
+        }
+    }
+
     /**
      * Base class for the workers of {@link HandleI#run()} that run the steps of a request.
      * Perhaps could be refactored away in Java 8.
@@ -500,19 +655,27 @@ public class HandleI implements _HandleOperations, IHandle,
      */
     private abstract class RunSteps extends Executor.SimpleWork {
 
-        private RunSteps(Object string, String action, Object... params) {
+        /**
+         * The first step to run in this transaction.
+         */
+        private final int first;
+
+        private RunSteps(Object string, String action, int first, Object... params) {
             super(string, action, params);
+            this.first = first;
         }
 
         protected List<Object> innerWork(Session session, ServiceFactory sf) {
             try {
-                final List<Object> rv = steps(getSqlAction(), session, sf);
-                state.set(State.FINISHED); // Regardless of current
+                final List<Object> rv = steps(getSqlAction(), session, sf, first);
+                if (currentStep.get() >= status.steps) {
+                    setEndState(State.FINISHED); // Regardless of current
+                }
                 return rv;
             } catch (Cancel c) {
                 // TODO: Perhaps remove local State enum and use solely
                 // the slice-defined one.
-                state.set(State.CANCELLED);
+                setEndState(State.CANCELLED);
                 throw c; // Exception intended to rollback transaction
             }
         }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import omero.cmd.HandleI.Cancel;
+
+/**
+ * An {@link IRequest} whose steps need not all run in one transaction.
+ * {@link HandleI} commits the work done so far before each step that
+ * {@link #isCommitPoint(int)} accepts and runs the following steps in a
+ * new transaction with a new Hibernate session, so that long requests
+ * neither hold database locks nor accumulate session state for their whole
+ * life. If a later segment fails then only that segment is rolled back;
+ * the {@code committed-steps} parameter of the {@link Status} tells how
+ * many steps had been committed.
+ *
+ * {@link IRequest#init(Helper)} is called in the first transaction and
+ * {@link IRequest#finish()} in the last. Implementations must not keep
+ * model objects loaded in one segment for use in a later one.
+ *
+ * @since 5.5.7
+ */
+public interface ISegmentedRequest extends IRequest {
+
+    /**
+     * Called before each step after the first.
+     *
+     * @param step the step which is about to run
+     * @return if the work of all previous steps may be committed first
+     */
+    boolean isCommitPoint(int step);
+
+    /**
+     * Called within each new transaction after the first, before the next
+     * step runs. The {@link Helper} instance passed in replaces that passed
+     * to {@link IRequest#init(Helper)} and should be used from now on.
+     *
+     * @param helper the helper for the new transaction
+     * @throws Cancel if this request is cancelled
+     */
+    void resume(Helper helper) throws Cancel;
+
+}
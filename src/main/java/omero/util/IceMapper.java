@@ -23,6 +23,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,6 +32,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import ome.conditions.InternalException;
 import ome.model.IObject;
@@ -155,7 +160,7 @@ public class IceMapper extends ome.util.ModelMapper implements
             if (coll == null) {
                 return null;
             } else {
-                List rv = new ArrayList();
+                List rv = new ArrayList(coll.size());
                 for (Filterable f : coll) {
                     rv.add(mapper.map(f));
                 }
@@ -173,13 +178,7 @@ public class IceMapper extends ome.util.ModelMapper implements
                 return null;
             }
 
-            Object[] objArr = (Object[]) value;
-            List<RType> rv = new ArrayList<RType>();
-            for (Object obj : objArr) {
-                rv.add((RType) OBJECT_TO_RTYPE.mapReturnValue(mapper, obj));
-            }
-
-            return rv;
+            return mapper.toRTypes((Object[]) value);
         }
     };
 
@@ -193,9 +192,9 @@ public class IceMapper extends ome.util.ModelMapper implements
             }
 
             List<Object[]> listObjArr = (List<Object[]>) value;
-            List<List<RType>> rv = new ArrayList<List<RType>>();
+            List<List<RType>> rv = new ArrayList<List<RType>>(listObjArr.size());
             for (Object[] objs : listObjArr) {
-                rv.add((List<RType>)OBJECTARRAY_TO_RTYPESEQ.mapReturnValue(mapper, objs));
+                rv.add(mapper.toRTypes(objs));
             }
 
             return rv;
@@ -372,8 +371,50 @@ public class IceMapper extends ome.util.ModelMapper implements
         return k;
     }
 
-    public static Class<? extends IObject> omeroClass(String className,
-            boolean strict) throws ApiUsageException {
+    /** Stands for names which do not resolve in {@link #RESOLVED}. */
+    private final static Object UNRESOLVED = new Object();
+
+    /**
+     * How many unresolvable names to remember. Names which resolve are
+     * always cached since there are only as many as there are model types.
+     */
+    public final static int MAX_UNRESOLVED = 10000;
+
+    /** Results of {@link #resolve(String)} by the given class name. */
+    private final static ConcurrentMap<String, Object> RESOLVED = new ConcurrentHashMap<String, Object>();
+
+    private final static AtomicInteger unresolvedCount = new AtomicInteger();
+
+    private final static LongAdder resolvedHits = new LongAdder();
+
+    private final static LongAdder resolvedMisses = new LongAdder();
+
+    static {
+        // Both the short and the qualified names of every model type, so
+        // that lookups of valid names never need Class.forName.
+        final Set<String> names = new HashSet<String>();
+        for (final Object entry : IceMap.OMEtoOMERO.entrySet()) {
+            for (final Object k : new Object[] {
+                    ((Map.Entry) entry).getKey(), ((Map.Entry) entry).getValue() }) {
+                if (k instanceof Class) {
+                    names.add(((Class) k).getName());
+                    names.add(((Class) k).getSimpleName());
+                }
+            }
+        }
+        for (final String name : names) {
+            final Class k = resolve(name);
+            if (k != null) {
+                RESOLVED.put(name, k);
+            }
+        }
+    }
+
+    /**
+     * Resolves a class name as described for {@link #omeroClass(String, boolean)}
+     * without caching.
+     */
+    private static Class<? extends IObject> resolve(String className) {
 
         Class k = _class(className);
 
@@ -391,6 +432,38 @@ public class IceMapper extends ome.util.ModelMapper implements
                 k = IceMap.OMEROtoOME.get(k);
             }
         }
+        return k;
+    }
+
+    /**
+     * Finds the {@code ome.model} class named by the given fully qualified
+     * {@code ome.model} or {@code omero.model} class name, or by the short
+     * {@code omero.model} name. Results are cached.
+     *
+     * @param className the name of a model class
+     * @param strict if to throw rather than return {@code null} if the name
+     * is not valid
+     * @return the class, or {@code null} if not found and not strict
+     * @throws ApiUsageException if strict and the name is not valid
+     */
+    public static Class<? extends IObject> omeroClass(String className,
+            boolean strict) throws ApiUsageException {
+
+        Class k;
+        final Object cached = className == null ? UNRESOLVED : RESOLVED.get(className);
+        if (cached != null) {
+            resolvedHits.increment();
+            k = cached == UNRESOLVED ? null : (Class) cached;
+        } else {
+            resolvedMisses.increment();
+            k = resolve(className);
+            if (k != null) {
+                RESOLVED.put(className, k);
+            } else if (unresolvedCount.get() < MAX_UNRESOLVED
+                    && RESOLVED.putIfAbsent(className, UNRESOLVED) == null) {
+                unresolvedCount.incrementAndGet();
+            }
+        }
 
         // For whatever reason, it's not valid. Log it.
         if (k == null) {
@@ -409,12 +482,105 @@ public class IceMapper extends ome.util.ModelMapper implements
         return k;
     }
 
+    /**
+     * @return how many calls to {@link #omeroClass(String, boolean)} were
+     * answered from the cache
+     */
+    public static long getClassCacheHits() {
+        return resolvedHits.sum();
+    }
+
+    /**
+     * @return how many calls to {@link #omeroClass(String, boolean)} had to
+     * look up the class
+     */
+    public static long getClassCacheMisses() {
+        return resolvedMisses.sum();
+    }
+
     // Conversions
     // =========================================================================
 
+    /**
+     * Wraps a value of one exact class without the {@code instanceof} tests
+     * of {@link #toRType(Object)}.
+     */
+    private interface Converter {
+        RType convert(Object o);
+    }
+
+    /**
+     * Converters for the classes which make up nearly all projection
+     * results, looked up by the value's exact class.
+     */
+    private final static Map<Class<?>, Converter> CONVERTERS;
+
+    static {
+        final Map<Class<?>, Converter> converters = new HashMap<Class<?>, Converter>();
+        converters.put(Boolean.class, new Converter() {
+            public RType convert(Object o) {
+                return rbool(((Boolean) o).booleanValue());
+            }
+        });
+        converters.put(Integer.class, new Converter() {
+            public RType convert(Object o) {
+                return rint(((Integer) o).intValue());
+            }
+        });
+        converters.put(Long.class, new Converter() {
+            public RType convert(Object o) {
+                return rlong(((Long) o).longValue());
+            }
+        });
+        converters.put(Float.class, new Converter() {
+            public RType convert(Object o) {
+                return rfloat(((Float) o).floatValue());
+            }
+        });
+        converters.put(Double.class, new Converter() {
+            public RType convert(Object o) {
+                return rdouble(((Double) o).doubleValue());
+            }
+        });
+        converters.put(String.class, new Converter() {
+            public RType convert(Object o) {
+                return rstring((String) o);
+            }
+        });
+        final Converter time = new Converter() {
+            public RType convert(Object o) {
+                return rtime(((Date) o).getTime());
+            }
+        };
+        converters.put(Date.class, time);
+        converters.put(Timestamp.class, time);
+        CONVERTERS = Collections.unmodifiableMap(converters);
+    }
+
+    /**
+     * Converts each element of a projection row with {@link #toRType(Object)}.
+     * @param row the values to wrap, may be {@code null}
+     * @return the wrapped values, or {@code null} if {@code row} was
+     * @throws omero.ApiUsageException if a value cannot be converted
+     */
+    public List<RType> toRTypes(Object[] row) throws omero.ApiUsageException {
+        if (row == null) {
+            return null;
+        }
+        final List<RType> rv = new ArrayList<RType>(row.length);
+        for (Object o : row) {
+            rv.add(toRType(o));
+        }
+        return rv;
+    }
+
     public RType toRType(Object o) throws omero.ApiUsageException {
         if (o == null) {
             return null;
+        }
+        final Converter converter = CONVERTERS.get(o.getClass());
+        if (converter != null) {
+            return converter.convert(o);
         } else if (o instanceof RType) {
             return (RType) o;
         } else if (o instanceof Boolean) {
@@ -847,7 +1013,7 @@ public class IceMapper extends ome.util.ModelMapper implements
 
         Collection target = (Collection) model2target.get(source);
         if (null == target) {
-            target = new ArrayList();
+            target = new ArrayList(source.size());
             model2target.put(source, target);
         }
         return target;
@@ -870,7 +1036,21 @@ public class IceMapper extends ome.util.ModelMapper implements
     // ~ For Reversing (omero->ome). Copied from ReverseModelMapper.
     // =========================================================================
 
-    protected Map<Object, Object> target2model = new IdentityHashMap<Object, Object>();
+    /**
+     * Created on first use by {@link #reversed()}: most mappers only map
+     * return values and never need it.
+     */
+    protected Map<Object, Object> target2model;
+
+    /**
+     * @return the map of reversed instances, created if necessary
+     */
+    protected Map<Object, Object> reversed() {
+        if (target2model == null) {
+            target2model = new IdentityHashMap<Object, Object>();
+        }
+        return target2model;
+    }
 
     public static omero.model.Permissions convert(ome.model.internal.Permissions p) {
         if (p == null) {
@@ -947,7 +1127,7 @@ public class IceMapper extends ome.util.ModelMapper implements
             return null;
         }
 
-        Collection target = (Collection) target2model.get(source);
+        Collection target = (Collection) reversed().get(source);
         if (null == target) {
             if (Set.class.isAssignableFrom(targetType)) {
                 target = new HashSet();
@@ -960,7 +1140,7 @@ public class IceMapper extends ome.util.ModelMapper implements
                 throw new InternalException("Unknown collection type "
                         + targetType);
             }
-            target2model.put(source, target);
+            reversed().put(source, target);
             try {
                 for (Object object : source) {
                     target.add(reverse(object));
@@ -1011,12 +1191,12 @@ public class IceMapper extends ome.util.ModelMapper implements
             return null;
         }
 
-        if (target2model.containsKey(map)) {
-            return (Map) target2model.get(map);
+        if (reversed().containsKey(map)) {
+            return (Map) reversed().get(map);
         }
 
         Map<Object, Object> target = new HashMap<Object, Object>();
-        target2model.put(map, target);
+        reversed().put(map, target);
 
         try {
             for (Object key : map.keySet()) {
@@ -1040,13 +1220,13 @@ public class IceMapper extends ome.util.ModelMapper implements
 
             return null;
 
-        } else if (target2model.containsKey(source)) {
+        } else if (reversed().containsKey(source)) {
 
-            return (Filterable) target2model.get(source);
+            return (Filterable) reversed().get(source);
 
         } else {
             Filterable object = source.fillObject(this);
-            target2model.put(source, object);
+            reversed().put(source, object);
             return object;
 
         }
@@ -1092,7 +1272,7 @@ public class IceMapper extends ome.util.ModelMapper implements
     }
 
     public void store(Object source, Object target) {
-        target2model.put(source, target);
+        reversed().put(source, target);
     }
 
     // ~ For ome->omero parsing
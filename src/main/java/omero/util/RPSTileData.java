@@ -6,6 +6,11 @@
  */
 package omero.util;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
 import omero.ServerError;
 import omero.api.RawPixelsStorePrx;
 import omero.model.Pixels;
@@ -13,6 +18,12 @@ import omero.model.Pixels;
 /**
  * Access strategy which can be implemented by diverse resources
  *
+ * Up to {@link #inFlight} calls to {@link #setTile} may be sent
+ * asynchronously before waiting for any of them to complete. If
+ * {@link #ordered} then the oldest call is always the next waited for,
+ * otherwise whichever completes first frees a slot. All outstanding
+ * calls are waited for before {@link #getTile} and {@link #close()} so that
+ * the values read and the {@link Pixels} saved reflect every tile set.
  */
 public class RPSTileData implements TileData
 {
@@ -21,13 +32,45 @@ public class RPSTileData implements TileData
 
     final protected RPSTileLoop loop;
 
+    final protected int inFlight;
+
+    final protected boolean ordered;
+
+    final protected boolean save;
+
+    /** Outstanding calls if {@link #ordered}, the oldest first. */
+    private final Deque<Ice.AsyncResult> pending = new ArrayDeque<Ice.AsyncResult>();
+
+    /** Free slots for outstanding calls if not {@link #ordered}. */
+    private final Semaphore slots;
+
+    /** The first failure of a call if not {@link #ordered}. */
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
     public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps) {
+        this(loop, rps, 1, true, true);
+    }
+
+    /**
+     * @param loop the loop whose {@link Pixels} are updated on save
+     * @param rps the store for the loop's pixels
+     * @param inFlight how many tiles may be being set at once
+     * @param ordered if the calls to set tiles are completed in order
+     * @param save if the store should be saved on {@link #close()}
+     */
+    public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps,
+            int inFlight, boolean ordered, boolean save) {
         this.loop = loop;
         this.rps = rps;
+        this.inFlight = Math.max(1, inFlight);
+        this.ordered = ordered;
+        this.save = save;
+        this.slots = new Semaphore(this.inFlight);
     }
 
     public byte[] getTile(int z, int c, int t, int x, int y, int w, int h) {
         try {
+            drain();
             return rps.getTile(z, c, t, x, y, w, h);
         } catch (ServerError se) {
             throw new RuntimeException(se);
@@ -36,17 +79,77 @@ public class RPSTileData implements TileData
 
     public void setTile(byte[] buffer, int z, int c, int t, int x, int y, int w, int h) {
         try {
-            rps.setTile(buffer, z, c, t, x, y, w, h);
+            if (inFlight == 1) {
+                rps.setTile(buffer, z, c, t, x, y, w, h);
+            } else if (ordered) {
+                if (pending.size() >= inFlight) {
+                    rps.end_setTile(pending.removeFirst());
+                }
+                pending.addLast(rps.begin_setTile(buffer, z, c, t, x, y, w, h));
+            } else {
+                checkFailure();
+                slots.acquireUninterruptibly();
+                try {
+                    rps.begin_setTile(buffer, z, c, t, x, y, w, h, new Ice.Callback() {
+                        @Override
+                        public void completed(Ice.AsyncResult r) {
+                            try {
+                                rps.end_setTile(r);
+                            } catch (Exception e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                slots.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException re) {
+                    slots.release();
+                    throw re;
+                }
+            }
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
     }
 
+    /**
+     * Waits for all outstanding calls to set tiles.
+     * @throws ServerError if any of them failed
+     */
+    protected void drain() throws ServerError {
+        if (ordered) {
+            while (!pending.isEmpty()) {
+                rps.end_setTile(pending.removeFirst());
+            }
+        } else {
+            slots.acquireUninterruptibly(inFlight);
+            slots.release(inFlight);
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() throws ServerError {
+        final Exception e = failure.getAndSet(null);
+        if (e instanceof ServerError) {
+            throw (ServerError) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void close() {
         try {
-            Pixels pixels = rps.save();
-            loop.setPixels(pixels);
-            rps.close();
+            try {
+                drain();
+                if (save) {
+                    Pixels pixels = rps.save();
+                    loop.setPixels(pixels);
+                }
+            } finally {
+                rps.close();
+            }
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
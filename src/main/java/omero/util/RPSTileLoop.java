@@ -28,9 +28,34 @@ public class RPSTileLoop extends TileLoop {
      */
     protected volatile Pixels pixels;
 
+    /**
+     * How many tiles each {@link RPSTileData} may be setting at once.
+     */
+    protected final int inFlight;
+
+    /**
+     * If the calls to set tiles are completed in the order sent.
+     */
+    protected final boolean ordered;
+
     public RPSTileLoop(ServiceFactoryPrx session, Pixels pixels) {
+        this(session, pixels, 1, true);
+    }
+
+    /**
+     * @param session the session in which to create the stores
+     * @param pixels the managed pixels instance
+     * @param inFlight how many tiles each store may be setting at once;
+     * if more than one, calls to set tiles are sent asynchronously
+     * @param ordered if the calls to set tiles are completed in the order sent
+     * @see RPSTileData
+     */
+    public RPSTileLoop(ServiceFactoryPrx session, Pixels pixels,
+            int inFlight, boolean ordered) {
         this.session = session;
         this.pixels = pixels;
+        this.inFlight = inFlight;
+        this.ordered = ordered;
 
         if (pixels == null || pixels.getId() == null) {
             throw new ClientError("pixels instance must be managed!");
@@ -61,10 +86,23 @@ public class RPSTileLoop extends TileLoop {
     }
 
     public TileData createData() {
+        return createData(true);
+    }
+
+    /**
+     * Only the store of the first worker saves the {@link Pixels}, after
+     * all other stores have been closed.
+     */
+    @Override
+    protected TileData createWorkerData() {
+        return createData(false);
+    }
+
+    private TileData createData(boolean save) {
         try {
             RawPixelsStorePrx rps = getSession().createRawPixelsStore();
             rps.setPixelsId(getPixels().getId().getValue(), false); // 'false' is ignored here.
-            return new RPSTileData(this, rps);
+            return new RPSTileData(this, rps, inFlight, ordered, save);
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
@@ -83,6 +121,22 @@ public class RPSTileLoop extends TileLoop {
      */
     public int forEachTile(int tileWidth, int tileHeight,
                            TileLoopIteration iteration) throws ClientError, ServerError {
+        return forEachTile(tileWidth, tileHeight, 1, iteration);
+    }
+
+    /**
+     * Iterates over every tile as {@link #forEachTile(int, int, TileLoopIteration)}
+     * but with several workers, each with its own {@link RawPixelsStorePrx}.
+     * @param tileWidth <b>Maximum</b> width of the tile requested.
+     * @param tileHeight <b>Maximum</b> height of the tile requested.
+     * @param workers how many threads to use; the iteration must be safe to
+     * call from all of them at once
+     * @param iteration Invoker to call for each tile.
+     * @return The total number of tiles iterated over.
+     * @see TileLoop#forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)
+     */
+    public int forEachTile(int tileWidth, int tileHeight, int workers,
+                           TileLoopIteration iteration) throws ClientError, ServerError {
 
         if (!pixels.isLoaded()) {
             try {
@@ -98,7 +152,8 @@ public class RPSTileLoop extends TileLoop {
         final int sizeC = pixels.getSizeC().getValue();
         final int sizeT = pixels.getSizeT().getValue();
 
-        return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight, iteration);
+        return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight,
+                workers, iteration);
 
     }
 }
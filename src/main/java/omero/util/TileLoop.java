@@ -4,6 +4,17 @@
  */
 package omero.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 4.3.0
@@ -18,6 +29,19 @@ public abstract class TileLoop {
      */
     public abstract TileData createData();
 
+    /**
+     * Provides the {@link TileData} for each additional worker of
+     * {@link #forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)}.
+     * The instances are closed before that returned by {@link #createData()}
+     * which the first worker uses, so that any work which should happen only
+     * once, e.g. saving, may be left to the latter.
+     * By default this simply calls {@link #createData()}.
+     * @return the new instance
+     */
+    protected TileData createWorkerData() {
+        return createData();
+    }
+
     /**
      * Iterates over every tile in a given pixel based on the
      * over arching dimensions and a requested maximum tile width and height.
@@ -87,4 +111,146 @@ public abstract class TileLoop {
 
         }
     }
+
+    /**
+     * Iterates over every tile as
+     * {@link #forEachTile(int, int, int, int, int, int, int, TileLoopIteration)}
+     * but with several threads, each with its own {@link TileData}. Worker
+     * {@code i} of {@code n} handles the tiles whose count is {@code i},
+     * {@code i + n}, {@code i + 2n}, etc. so the tiles are still finished
+     * roughly in order. The iteration must therefore be safe to call from
+     * multiple threads at once. If any iteration fails then the workers stop
+     * and, once all of their {@link TileData} are closed, the failure is
+     * rethrown.
+     * @param sizeX the size of the plane's X dimension
+     * @param sizeY the size of the plane's Y dimension
+     * @param sizeZ the size of the plane's Z dimension
+     * @param sizeC the size of the plane's C dimension
+     * @param sizeT the size of the plane's T dimension
+     * @param tileWidth <b>Maximum</b> width of the tile requested.
+     * @param tileHeight <b>Maximum</b> height of the tile requested.
+     * @param workers how many threads to use, at most one per tile
+     * @param iteration Invoker to call for each tile.
+     * @return The total number of tiles iterated over.
+     */
+    public int forEachTile(final int sizeX, final int sizeY,
+                           final int sizeZ, final int sizeC, int sizeT,
+                           final int tileWidth, final int tileHeight,
+                           int workers, final TileLoopIteration iteration) {
+
+        final int tilesX = (sizeX + tileWidth - 1) / tileWidth;
+        final int tilesY = (sizeY + tileHeight - 1) / tileHeight;
+        final int total = tilesX * tilesY * sizeZ * sizeC * sizeT;
+        final int n = Math.min(workers, total);
+        if (n <= 1) {
+            return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT,
+                    tileWidth, tileHeight, iteration);
+        }
+
+        final TileData[] data = new TileData[n];
+        final AtomicBoolean failed = new AtomicBoolean();
+        final ExecutorService pool = Executors.newFixedThreadPool(n,
+                new ThreadFactory() {
+                    private int count = 0;
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "tile-loop-" + (++count));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        RuntimeException failure = null;
+        try {
+            data[0] = createData();
+            for (int i = 1; i < n; i++) {
+                data[i] = createWorkerData();
+            }
+
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(n);
+            for (int i = 0; i < n; i++) {
+                final int first = i;
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            for (int tile = first; tile < total && !failed.get(); tile += n) {
+                                int rest = tile;
+                                final int x = (rest % tilesX) * tileWidth;
+                                rest /= tilesX;
+                                final int y = (rest % tilesY) * tileHeight;
+                                rest /= tilesY;
+                                final int z = rest % sizeZ;
+                                rest /= sizeZ;
+                                final int c = rest % sizeC;
+                                final int t = rest / sizeC;
+                                final int w = Math.min(tileWidth, sizeX - x);
+                                final int h = Math.min(tileHeight, sizeY - y);
+                                iteration.run(data[first], z, c, t, x, y, w, h, tile);
+                            }
+                        } catch (RuntimeException | Error e) {
+                            // stop the other workers now rather than once
+                            // the futures before this one are done
+                            failed.set(true);
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    failed.set(true);
+                    if (failure == null) {
+                        final Throwable cause = ee.getCause();
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        failure = cause instanceof RuntimeException
+                                ? (RuntimeException) cause
+                                : new RuntimeException(cause);
+                    }
+                } catch (InterruptedException ie) {
+                    failed.set(true);
+                    Thread.currentThread().interrupt();
+                    if (failure == null) {
+                        failure = new RuntimeException(ie);
+                    }
+                }
+            }
+        } finally {
+            failed.set(true);
+            pool.shutdown();
+            boolean interrupted = false;
+            while (!pool.isTerminated()) {
+                try {
+                    pool.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                if (data[i] != null) {
+                    try {
+                        data[i].close();
+                    } catch (RuntimeException re) {
+                        if (failure == null) {
+                            failure = re;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return total;
+    }
 }
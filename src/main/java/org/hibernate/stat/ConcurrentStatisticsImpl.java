@@ -23,9 +23,15 @@
  */
 package org.hibernate.stat;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +47,12 @@ import com.google.common.cache.CacheBuilder;
  * Implementation of {@link Statistics}, as well as {@link StatisticsImplementor}, based on the
  * {@code java.util.concurrent} package introduced in Java 5.
  *
+ * Counters are striped {@link LongAdder}s so that concurrent sessions do not contend on them.
+ * Statistics are kept for at most {@link #MAX_QUERIES} distinct queries, each with a latency
+ * histogram from which percentiles may be read, and the {@link #SLOW_QUERIES} slowest queries
+ * are remembered. Only one in {@link #QUERY_LOG_SAMPLE} queries is logged unless debug logging
+ * is enabled for {@link Statistics}.
+ *
  * @author Alex Snaps
  */
 public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplementor {
@@ -48,6 +60,21 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	private static final Logger log = LoggerFactory.getLogger( ConcurrentStatisticsImpl.class );
 	private static final Logger PERF_LOG = LoggerFactory.getLogger( Statistics.class );
 
+	/**
+	 * how many distinct query strings have statistics kept, least recently used first evicted
+	 */
+	public static final int MAX_QUERIES = 1000;
+
+	/**
+	 * how many of the slowest queries are remembered
+	 */
+	public static final int SLOW_QUERIES = 20;
+
+	/**
+	 * one in how many queries is logged at info level
+	 */
+	public static final int QUERY_LOG_SAMPLE = 1000;
+
         static {
             log.info("OMERO-specific ConcurrentStatisticsImpl");
         }
@@ -56,40 +83,40 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 
 	private volatile boolean isStatisticsEnabled;
 	private volatile long startTime;
-	private AtomicLong sessionOpenCount = new AtomicLong();
-	private AtomicLong sessionCloseCount = new AtomicLong();
-	private AtomicLong flushCount = new AtomicLong();
-	private AtomicLong connectCount = new AtomicLong();
-
-	private AtomicLong prepareStatementCount = new AtomicLong();
-	private AtomicLong closeStatementCount = new AtomicLong();
-
-	private AtomicLong entityLoadCount = new AtomicLong();
-	private AtomicLong entityUpdateCount = new AtomicLong();
-	private AtomicLong entityInsertCount = new AtomicLong();
-	private AtomicLong entityDeleteCount = new AtomicLong();
-	private AtomicLong entityFetchCount = new AtomicLong();
-	private AtomicLong collectionLoadCount = new AtomicLong();
-	private AtomicLong collectionUpdateCount = new AtomicLong();
-	private AtomicLong collectionRemoveCount = new AtomicLong();
-	private AtomicLong collectionRecreateCount = new AtomicLong();
-	private AtomicLong collectionFetchCount = new AtomicLong();
-
-	private AtomicLong secondLevelCacheHitCount = new AtomicLong();
-	private AtomicLong secondLevelCacheMissCount = new AtomicLong();
-	private AtomicLong secondLevelCachePutCount = new AtomicLong();
-
-	private AtomicLong queryExecutionCount = new AtomicLong();
+	private final LongAdder sessionOpenCount = new LongAdder();
+	private final LongAdder sessionCloseCount = new LongAdder();
+	private final LongAdder flushCount = new LongAdder();
+	private final LongAdder connectCount = new LongAdder();
+
+	private final LongAdder prepareStatementCount = new LongAdder();
+	private final LongAdder closeStatementCount = new LongAdder();
+
+	private final LongAdder entityLoadCount = new LongAdder();
+	private final LongAdder entityUpdateCount = new LongAdder();
+	private final LongAdder entityInsertCount = new LongAdder();
+	private final LongAdder entityDeleteCount = new LongAdder();
+	private final LongAdder entityFetchCount = new LongAdder();
+	private final LongAdder collectionLoadCount = new LongAdder();
+	private final LongAdder collectionUpdateCount = new LongAdder();
+	private final LongAdder collectionRemoveCount = new LongAdder();
+	private final LongAdder collectionRecreateCount = new LongAdder();
+	private final LongAdder collectionFetchCount = new LongAdder();
+
+	private final LongAdder secondLevelCacheHitCount = new LongAdder();
+	private final LongAdder secondLevelCacheMissCount = new LongAdder();
+	private final LongAdder secondLevelCachePutCount = new LongAdder();
+
+	private final LongAdder queryExecutionCount = new LongAdder();
 	private AtomicLong queryExecutionMaxTime = new AtomicLong();
 	private volatile String queryExecutionMaxTimeQueryString;
-	private AtomicLong queryCacheHitCount = new AtomicLong();
-	private AtomicLong queryCacheMissCount = new AtomicLong();
-	private AtomicLong queryCachePutCount = new AtomicLong();
+	private final LongAdder queryCacheHitCount = new LongAdder();
+	private final LongAdder queryCacheMissCount = new LongAdder();
+	private final LongAdder queryCachePutCount = new LongAdder();
 
-	private AtomicLong committedTransactionCount = new AtomicLong();
-	private AtomicLong transactionCount = new AtomicLong();
+	private final LongAdder committedTransactionCount = new LongAdder();
+	private final LongAdder transactionCount = new LongAdder();
 
-	private AtomicLong optimisticFailureCount = new AtomicLong();
+	private final LongAdder optimisticFailureCount = new LongAdder();
 
 	/**
 	 * second level cache statistics per region
@@ -107,7 +134,25 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	/**
 	 * entity statistics per query string (HQL or SQL)
 	 */
-	private final Cache<String, ConcurrentQueryStatisticsImpl> queryStatistics = null;
+	private final Cache<String, ConcurrentQueryStatisticsImpl> queryStatistics =
+	        CacheBuilder.newBuilder().maximumSize( MAX_QUERIES ).build();
+	/**
+	 * execution time histogram per query string (HQL or SQL)
+	 */
+	private final Cache<String, LatencyHistogram> queryLatencies =
+	        CacheBuilder.newBuilder().maximumSize( MAX_QUERIES ).build();
+	/**
+	 * execution time histogram of all queries
+	 */
+	private volatile LatencyHistogram queryLatency = new LatencyHistogram();
+	/**
+	 * the slowest queries, fastest first, guarded by itself
+	 */
+	private final List<SlowQuery> slowQueries = new ArrayList<SlowQuery>( SLOW_QUERIES + 1 );
+	/**
+	 * the time a query must exceed to join {@link #slowQueries}
+	 */
+	private volatile long slowQueryThreshold;
 
 	public ConcurrentStatisticsImpl() {
 		clear();
@@ -122,73 +167,79 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	 * reset all statistics
 	 */
 	public void clear() {
-		secondLevelCacheHitCount.set( 0 );
-		secondLevelCacheMissCount.set( 0 );
-		secondLevelCachePutCount.set( 0 );
-
-		sessionCloseCount.set( 0 );
-		sessionOpenCount.set( 0 );
-		flushCount.set( 0 );
-		connectCount.set( 0 );
-
-		prepareStatementCount.set( 0 );
-		closeStatementCount.set( 0 );
-
-		entityDeleteCount.set( 0 );
-		entityInsertCount.set( 0 );
-		entityUpdateCount.set( 0 );
-		entityLoadCount.set( 0 );
-		entityFetchCount.set( 0 );
-
-		collectionRemoveCount.set( 0 );
-		collectionUpdateCount.set( 0 );
-		collectionRecreateCount.set( 0 );
-		collectionLoadCount.set( 0 );
-		collectionFetchCount.set( 0 );
-
-		queryExecutionCount.set( 0 );
-		queryCacheHitCount.set( 0 );
+		secondLevelCacheHitCount.reset();
+		secondLevelCacheMissCount.reset();
+		secondLevelCachePutCount.reset();
+
+		sessionCloseCount.reset();
+		sessionOpenCount.reset();
+		flushCount.reset();
+		connectCount.reset();
+
+		prepareStatementCount.reset();
+		closeStatementCount.reset();
+
+		entityDeleteCount.reset();
+		entityInsertCount.reset();
+		entityUpdateCount.reset();
+		entityLoadCount.reset();
+		entityFetchCount.reset();
+
+		collectionRemoveCount.reset();
+		collectionUpdateCount.reset();
+		collectionRecreateCount.reset();
+		collectionLoadCount.reset();
+		collectionFetchCount.reset();
+
+		queryExecutionCount.reset();
+		queryCacheHitCount.reset();
 		queryExecutionMaxTime.set( 0 );
 		queryExecutionMaxTimeQueryString = null;
-		queryCacheMissCount.set( 0 );
-		queryCachePutCount.set( 0 );
+		queryCacheMissCount.reset();
+		queryCachePutCount.reset();
 
-		transactionCount.set( 0 );
-		committedTransactionCount.set( 0 );
+		transactionCount.reset();
+		committedTransactionCount.reset();
 
-		optimisticFailureCount.set( 0 );
+		optimisticFailureCount.reset();
 
 		secondLevelCacheStatistics.invalidateAll();
 		entityStatistics.invalidateAll();
 		collectionStatistics.invalidateAll();
-		// queryStatistics.clear();
+		queryStatistics.invalidateAll();
+		queryLatencies.invalidateAll();
+		queryLatency = new LatencyHistogram();
+		synchronized ( slowQueries ) {
+			slowQueries.clear();
+			slowQueryThreshold = 0;
+		}
 
 		startTime = System.currentTimeMillis();
 	}
 
 	public void openSession() {
-		sessionOpenCount.getAndIncrement();
+		sessionOpenCount.increment();
 	}
 
 	public void closeSession() {
-		sessionCloseCount.getAndIncrement();
+		sessionCloseCount.increment();
 	}
 
 	public void flush() {
-		flushCount.getAndIncrement();
+		flushCount.increment();
 	}
 
 	public void connect() {
-		connectCount.getAndIncrement();
+		connectCount.increment();
 	}
 
 	public void loadEntity(String entityName) {
-		entityLoadCount.getAndIncrement();
+		entityLoadCount.increment();
 		( (ConcurrentEntityStatisticsImpl) getEntityStatistics( entityName ) ).incrementLoadCount();
 	}
 
 	public void fetchEntity(String entityName) {
-		entityFetchCount.getAndIncrement();
+		entityFetchCount.increment();
 		( (ConcurrentEntityStatisticsImpl) getEntityStatistics( entityName ) ).incrementFetchCount();
 	}
 
@@ -214,19 +265,19 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	}
 
 	public void updateEntity(String entityName) {
-		entityUpdateCount.getAndIncrement();
+		entityUpdateCount.increment();
 		ConcurrentEntityStatisticsImpl es = (ConcurrentEntityStatisticsImpl) getEntityStatistics( entityName );
 		es.incrementUpdateCount();
 	}
 
 	public void insertEntity(String entityName) {
-		entityInsertCount.getAndIncrement();
+		entityInsertCount.increment();
 		ConcurrentEntityStatisticsImpl es = (ConcurrentEntityStatisticsImpl) getEntityStatistics( entityName );
 		es.incrementInsertCount();
 	}
 
 	public void deleteEntity(String entityName) {
-		entityDeleteCount.getAndIncrement();
+		entityDeleteCount.increment();
 		ConcurrentEntityStatisticsImpl es = (ConcurrentEntityStatisticsImpl) getEntityStatistics( entityName );
 		es.incrementDeleteCount();
 	}
@@ -253,27 +304,27 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	}
 
 	public void loadCollection(String role) {
-		collectionLoadCount.getAndIncrement();
+		collectionLoadCount.increment();
 		( (ConcurrentCollectionStatisticsImpl) getCollectionStatistics( role ) ).incrementLoadCount();
 	}
 
 	public void fetchCollection(String role) {
-		collectionFetchCount.getAndIncrement();
+		collectionFetchCount.increment();
 		( (ConcurrentCollectionStatisticsImpl) getCollectionStatistics( role ) ).incrementFetchCount();
 	}
 
 	public void updateCollection(String role) {
-		collectionUpdateCount.getAndIncrement();
+		collectionUpdateCount.increment();
 		( (ConcurrentCollectionStatisticsImpl) getCollectionStatistics( role ) ).incrementUpdateCount();
 	}
 
 	public void recreateCollection(String role) {
-		collectionRecreateCount.getAndIncrement();
+		collectionRecreateCount.increment();
 		( (ConcurrentCollectionStatisticsImpl) getCollectionStatistics( role ) ).incrementRecreateCount();
 	}
 
 	public void removeCollection(String role) {
-		collectionRemoveCount.getAndIncrement();
+		collectionRemoveCount.increment();
 		( (ConcurrentCollectionStatisticsImpl) getCollectionStatistics( role ) ).incrementRemoveCount();
 	}
 
@@ -310,23 +361,30 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
     }
 
 	public void secondLevelCachePut(String regionName) {
-		secondLevelCachePutCount.getAndIncrement();
+		secondLevelCachePutCount.increment();
 		( (ConcurrentSecondLevelCacheStatisticsImpl) getSecondLevelCacheStatistics( regionName ) ).incrementPutCount();
 	}
 
 	public void secondLevelCacheHit(String regionName) {
-		secondLevelCacheHitCount.getAndIncrement();
+		secondLevelCacheHitCount.increment();
 		( (ConcurrentSecondLevelCacheStatisticsImpl) getSecondLevelCacheStatistics( regionName ) ).incrementHitCount();
 	}
 
 	public void secondLevelCacheMiss(String regionName) {
-		secondLevelCacheMissCount.getAndIncrement();
+		secondLevelCacheMissCount.increment();
 		( (ConcurrentSecondLevelCacheStatisticsImpl) getSecondLevelCacheStatistics( regionName ) ).incrementMissCount();
 	}
 
 	public void queryExecuted(String hql, int rows, long time) {
-		PERF_LOG.info( "HQL: {}, time: {}ms, rows: {}", new Object[] {hql, Long.valueOf( time ), Long.valueOf(rows)} );
-		queryExecutionCount.getAndIncrement();
+		if ( PERF_LOG.isDebugEnabled() ) {
+			PERF_LOG.debug( "HQL: {}, time: {}ms, rows: {}", new Object[] {hql, Long.valueOf( time ), Long.valueOf(rows)} );
+		}
+		else if ( ThreadLocalRandom.current().nextInt( QUERY_LOG_SAMPLE ) == 0 && PERF_LOG.isInfoEnabled() ) {
+			PERF_LOG.info( "HQL (sampled 1 in {}): {}, time: {}ms, rows: {}",
+					new Object[] {QUERY_LOG_SAMPLE, hql, Long.valueOf( time ), Long.valueOf(rows)} );
+		}
+		queryExecutionCount.increment();
+		queryLatency.record( time );
 		boolean isLongestQuery = false;
 		for ( long old = queryExecutionMaxTime.get();
 			  ( time > old ) && ( isLongestQuery = !queryExecutionMaxTime.compareAndSet( old, time ) );
@@ -339,11 +397,58 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 		if ( hql != null ) {
 			ConcurrentQueryStatisticsImpl qs = (ConcurrentQueryStatisticsImpl) getQueryStatistics( hql );
 			qs.executed( rows, time );
+			getQueryLatency( hql ).record( time );
+			if ( time > slowQueryThreshold ) {
+				recordSlowQuery( hql, rows, time );
+			}
+		}
+	}
+
+	/**
+	 * Note a query as one of the slowest, evicting the fastest if there are too many.
+	 * Each query string is listed at most once, with its slowest execution.
+	 */
+	private void recordSlowQuery(String hql, int rows, long time) {
+		synchronized ( slowQueries ) {
+			for ( int i = 0; i < slowQueries.size(); i++ ) {
+				if ( slowQueries.get( i ).getQueryString().equals( hql ) ) {
+					if ( slowQueries.get( i ).getTime() >= time ) {
+						return;
+					}
+					slowQueries.remove( i );
+					break;
+				}
+			}
+			int index = 0;
+			while ( index < slowQueries.size() && slowQueries.get( index ).getTime() < time ) {
+				index++;
+			}
+			slowQueries.add( index, new SlowQuery( hql, rows, time, System.currentTimeMillis() ) );
+			if ( slowQueries.size() > SLOW_QUERIES ) {
+				slowQueries.remove( 0 );
+			}
+			if ( slowQueries.size() == SLOW_QUERIES ) {
+				slowQueryThreshold = slowQueries.get( 0 ).getTime();
+			}
+		}
+	}
+
+	private LatencyHistogram getQueryLatency(String queryString) {
+		try {
+			return queryLatencies.get( queryString, new Callable<LatencyHistogram>() {
+				@Override
+				public LatencyHistogram call() {
+					return new LatencyHistogram();
+				}
+			});
+		} catch (ExecutionException e) {
+			/* constructor cannot fail */
+			return null;
 		}
 	}
 
 	public void queryCacheHit(String hql, String regionName) {
-		queryCacheHitCount.getAndIncrement();
+		queryCacheHitCount.increment();
 		if ( hql != null ) {
 			ConcurrentQueryStatisticsImpl qs = (ConcurrentQueryStatisticsImpl) getQueryStatistics( hql );
 			qs.incrementCacheHitCount();
@@ -355,7 +460,7 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	}
 
 	public void queryCacheMiss(String hql, String regionName) {
-		queryCacheMissCount.getAndIncrement();
+		queryCacheMissCount.increment();
 		if ( hql != null ) {
 			ConcurrentQueryStatisticsImpl qs = (ConcurrentQueryStatisticsImpl) getQueryStatistics( hql );
 			qs.incrementCacheMissCount();
@@ -367,7 +472,7 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	}
 
 	public void queryCachePut(String hql, String regionName) {
-		queryCachePutCount.getAndIncrement();
+		queryCachePutCount.increment();
 		if ( hql != null ) {
 			ConcurrentQueryStatisticsImpl qs = (ConcurrentQueryStatisticsImpl) getQueryStatistics( hql );
 			qs.incrementCachePutCount();
@@ -385,130 +490,176 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	 *
 	 * @return QueryStatistics
 	 */
-	public QueryStatistics getQueryStatistics(String queryString) {
-	    /* follow the pattern from other statistics getters should you wish to use a cache */
-	    return new ConcurrentQueryStatisticsImpl( queryString );
+	public QueryStatistics getQueryStatistics(final String queryString) {
+        try {
+            return queryStatistics.get(queryString, new Callable<ConcurrentQueryStatisticsImpl>() {
+                @Override
+                public ConcurrentQueryStatisticsImpl call() {
+                    return new ConcurrentQueryStatisticsImpl(queryString);
+                }
+            });
+        } catch (ExecutionException e) {
+            /* constructor cannot fail */
+            return null;
+        }
+	}
+
+	/**
+	 * Execution time percentile of all queries since the statistics were cleared.
+	 *
+	 * @param percentile between 0 and 100
+	 *
+	 * @return the time in ms within which that percentage of queries completed,
+	 *         to a precision of one eighth
+	 */
+	public long getQueryExecutionTimePercentile(double percentile) {
+		return queryLatency.percentile( percentile );
+	}
+
+	/**
+	 * Execution time percentile of one query, as for {@link #getQueryExecutionTimePercentile(double)}.
+	 *
+	 * @param queryString query string
+	 * @param percentile between 0 and 100
+	 *
+	 * @return the time in ms, or {@code -1} if no statistics are kept for the query
+	 */
+	public long getQueryExecutionTimePercentile(String queryString, double percentile) {
+		final LatencyHistogram histogram = queryLatencies.getIfPresent( queryString );
+		return histogram == null ? -1 : histogram.percentile( percentile );
+	}
+
+	/**
+	 * @return the slowest queries since the statistics were cleared, slowest first
+	 */
+	public List<SlowQuery> getSlowestQueries() {
+		final List<SlowQuery> slowest;
+		synchronized ( slowQueries ) {
+			slowest = new ArrayList<SlowQuery>( slowQueries );
+		}
+		Collections.reverse( slowest );
+		return slowest;
 	}
 
 	/**
 	 * @return entity deletion count
 	 */
 	public long getEntityDeleteCount() {
-		return entityDeleteCount.get();
+		return entityDeleteCount.sum();
 	}
 
 	/**
 	 * @return entity insertion count
 	 */
 	public long getEntityInsertCount() {
-		return entityInsertCount.get();
+		return entityInsertCount.sum();
 	}
 
 	/**
 	 * @return entity load (from DB)
 	 */
 	public long getEntityLoadCount() {
-		return entityLoadCount.get();
+		return entityLoadCount.sum();
 	}
 
 	/**
 	 * @return entity fetch (from DB)
 	 */
 	public long getEntityFetchCount() {
-		return entityFetchCount.get();
+		return entityFetchCount.sum();
 	}
 
 	/**
 	 * @return entity update
 	 */
 	public long getEntityUpdateCount() {
-		return entityUpdateCount.get();
+		return entityUpdateCount.sum();
 	}
 
 	public long getQueryExecutionCount() {
-		return queryExecutionCount.get();
+		return queryExecutionCount.sum();
 	}
 
 	public long getQueryCacheHitCount() {
-		return queryCacheHitCount.get();
+		return queryCacheHitCount.sum();
 	}
 
 	public long getQueryCacheMissCount() {
-		return queryCacheMissCount.get();
+		return queryCacheMissCount.sum();
 	}
 
 	public long getQueryCachePutCount() {
-		return queryCachePutCount.get();
+		return queryCachePutCount.sum();
 	}
 
 	/**
 	 * @return flush
 	 */
 	public long getFlushCount() {
-		return flushCount.get();
+		return flushCount.sum();
 	}
 
 	/**
 	 * @return session connect
 	 */
 	public long getConnectCount() {
-		return connectCount.get();
+		return connectCount.sum();
 	}
 
 	/**
 	 * @return second level cache hit
 	 */
 	public long getSecondLevelCacheHitCount() {
-		return secondLevelCacheHitCount.get();
+		return secondLevelCacheHitCount.sum();
 	}
 
 	/**
 	 * @return second level cache miss
 	 */
 	public long getSecondLevelCacheMissCount() {
-		return secondLevelCacheMissCount.get();
+		return secondLevelCacheMissCount.sum();
 	}
 
 	/**
 	 * @return second level cache put
 	 */
 	public long getSecondLevelCachePutCount() {
-		return secondLevelCachePutCount.get();
+		return secondLevelCachePutCount.sum();
 	}
 
 	/**
 	 * @return session closing
 	 */
 	public long getSessionCloseCount() {
-		return sessionCloseCount.get();
+		return sessionCloseCount.sum();
 	}
 
 	/**
 	 * @return session opening
 	 */
 	public long getSessionOpenCount() {
-		return sessionOpenCount.get();
+		return sessionOpenCount.sum();
 	}
 
 	/**
 	 * @return collection loading (from DB)
 	 */
 	public long getCollectionLoadCount() {
-		return collectionLoadCount.get();
+		return collectionLoadCount.sum();
 	}
 
 	/**
 	 * @return collection fetching (from DB)
 	 */
 	public long getCollectionFetchCount() {
-		return collectionFetchCount.get();
+		return collectionFetchCount.sum();
 	}
 
 	/**
 	 * @return collection update
 	 */
 	public long getCollectionUpdateCount() {
-		return collectionUpdateCount.get();
+		return collectionUpdateCount.sum();
 	}
 
 	/**
@@ -516,14 +667,14 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	 *         FIXME: even if isInverse="true"?
 	 */
 	public long getCollectionRemoveCount() {
-		return collectionRemoveCount.get();
+		return collectionRemoveCount.sum();
 	}
 
 	/**
 	 * @return collection recreation
 	 */
 	public long getCollectionRecreateCount() {
-		return collectionRecreateCount.get();
+		return collectionRecreateCount.sum();
 	}
 
 	/**
@@ -566,6 +717,11 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 		log.info( "query cache hits: " + queryCacheHitCount );
 		log.info( "query cache misses: " + queryCacheMissCount );
 		log.info( "max query time: " + queryExecutionMaxTime + "ms" );
+		log.info( "query time percentiles: 50% " + queryLatency.percentile( 50 ) + "ms, 90% "
+				+ queryLatency.percentile( 90 ) + "ms, 99% " + queryLatency.percentile( 99 ) + "ms" );
+		for ( SlowQuery slow : getSlowestQueries() ) {
+			log.info( "slow query: " + slow );
+		}
 	}
 
 	/**
@@ -594,7 +750,7 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	 * Get all executed query strings
 	 */
 	public String[] getQueries() {
-		return new String[]{}; // ArrayHelper.toStringArray( queryStatistics.keySet() );
+		return ArrayHelper.toStringArray( queryStatistics.asMap().keySet() );
 	}
 
 	/**
@@ -634,43 +790,43 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 	}
 
 	public void endTransaction(boolean success) {
-		transactionCount.getAndIncrement();
+		transactionCount.increment();
 		if ( success ) {
-			committedTransactionCount.getAndIncrement();
+			committedTransactionCount.increment();
 		}
 	}
 
 	public long getSuccessfulTransactionCount() {
-		return committedTransactionCount.get();
+		return committedTransactionCount.sum();
 	}
 
 	public long getTransactionCount() {
-		return transactionCount.get();
+		return transactionCount.sum();
 	}
 
 	public void closeStatement() {
-		closeStatementCount.getAndIncrement();
+		closeStatementCount.increment();
 	}
 
 	public void prepareStatement() {
-		prepareStatementCount.getAndIncrement();
+		prepareStatementCount.increment();
 	}
 
 	public long getCloseStatementCount() {
-		return closeStatementCount.get();
+		return closeStatementCount.sum();
 	}
 
 	public long getPrepareStatementCount() {
-		return prepareStatementCount.get();
+		return prepareStatementCount.sum();
 	}
 
 	public void optimisticFailure(String entityName) {
-		optimisticFailureCount.getAndIncrement();
+		optimisticFailureCount.increment();
 		( (ConcurrentEntityStatisticsImpl) getEntityStatistics( entityName ) ).incrementOptimisticFailureCount();
 	}
 
 	public long getOptimisticFailureCount() {
-		return optimisticFailureCount.get();
+		return optimisticFailureCount.sum();
 	}
 
 	public String toString() {
@@ -712,4 +868,111 @@ public class ConcurrentStatisticsImpl implements Statistics, StatisticsImplement
 		return queryExecutionMaxTimeQueryString;
 	}
 
+	/**
+	 * One execution of one of the slowest queries.
+	 */
+	public static final class SlowQuery {
+
+		private final String queryString;
+		private final int rows;
+		private final long time;
+		private final long timestamp;
+
+		SlowQuery(String queryString, int rows, long time, long timestamp) {
+			this.queryString = queryString;
+			this.rows = rows;
+			this.time = time;
+			this.timestamp = timestamp;
+		}
+
+		public String getQueryString() {
+			return queryString;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * @return the execution time in ms
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return when the query completed, as from {@link System#currentTimeMillis()}
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String toString() {
+			return queryString + " (" + time + "ms, " + rows + " rows)";
+		}
+	}
+
+	/**
+	 * Fixed-size histogram of non-negative times, updated without locking. Times below 8
+	 * are counted exactly; larger times are counted in eight sub-buckets per power of two,
+	 * so percentiles are reported to within one eighth of their value.
+	 */
+	static final class LatencyHistogram {
+
+		private static final int SUB_BUCKETS = 8;
+		private static final int SUB_BITS = 3;
+		/** powers of two from 2^3 to 2^30 */
+		private static final int MAGNITUDES = 28;
+
+		private final AtomicLongArray counts = new AtomicLongArray( SUB_BUCKETS * ( MAGNITUDES + 1 ) );
+
+		void record(long time) {
+			counts.incrementAndGet( index( Math.max( 0, time ) ) );
+		}
+
+		static int index(long value) {
+			if ( value < SUB_BUCKETS ) {
+				return (int) value;
+			}
+			final int magnitude = Math.min( 63 - Long.numberOfLeadingZeros( value ), SUB_BITS + MAGNITUDES - 1 );
+			final int shift = magnitude - SUB_BITS;
+			final int sub = (int) Math.min( ( value >> shift ) - SUB_BUCKETS, SUB_BUCKETS - 1 );
+			return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * @return the largest value counted in the bucket
+		 */
+		static long highest(int index) {
+			if ( index < SUB_BUCKETS ) {
+				return index;
+			}
+			final int shift = ( index - SUB_BUCKETS ) / SUB_BUCKETS;
+			final int sub = ( index - SUB_BUCKETS ) % SUB_BUCKETS;
+			return ( (long) ( SUB_BUCKETS + sub + 1 ) << shift ) - 1;
+		}
+
+		long percentile(double percentile) {
+			final int length = counts.length();
+			final long[] snapshot = new long[length];
+			long total = 0;
+			for ( int i = 0; i < length; i++ ) {
+				snapshot[i] = counts.get( i );
+				total += snapshot[i];
+			}
+			if ( total == 0 ) {
+				return 0;
+			}
+			final long target = Math.max( 1, (long) Math.ceil( total * Math.min( 100, percentile ) / 100 ) );
+			long seen = 0;
+			for ( int i = 0; i < length; i++ ) {
+				seen += snapshot[i];
+				if ( seen >= target ) {
+					return highest( i );
+				}
+			}
+			return highest( length - 1 );
+		}
+	}
+
 }
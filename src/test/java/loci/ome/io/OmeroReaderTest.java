@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package loci.ome.io;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.rstring;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.formats.CoreMetadata;
+import omero.api.RawPixelsStorePrx;
+import omero.api.ServiceFactoryPrx;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsTypeI;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the tile cache, the reading ahead and the reuse of pixels stores
+ * by {@link OmeroReader}, with stores which need no server.
+ * @since 5.5.7
+ */
+@SuppressWarnings("deprecation")
+@Test(groups = "unit")
+public class OmeroReaderTest {
+
+    /** Stores created. */
+    private final AtomicInteger created = new AtomicInteger();
+
+    /** Stores closed. */
+    private final AtomicInteger closed = new AtomicInteger();
+
+    /** Tiles fetched by {@code getTile}. */
+    private final AtomicInteger fetched = new AtomicInteger();
+
+    /** Tiles fetched by {@code begin_getTile}. */
+    private final AtomicInteger readAhead = new AtomicInteger();
+
+    /** Reads ahead not yet completed, if {@link #hold} is set. */
+    private final List<ReadAhead> held =
+            Collections.synchronizedList(new ArrayList<ReadAhead>());
+
+    /** If reads ahead are completed only by {@link ReadAhead#complete()}. */
+    private volatile boolean hold;
+
+    private OmeroReader reader;
+
+    /** A tile being read ahead; also the handler of its result. */
+    private static class ReadAhead implements InvocationHandler {
+
+        final Object[] args;
+
+        final Ice.AsyncResult result;
+
+        ReadAhead(Object[] args) {
+            this.args = args;
+            this.result = stub(Ice.AsyncResult.class, this);
+        }
+
+        void complete() {
+            ((Ice.Callback) args[args.length - 1]).completed(result);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return defaultValue(method);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> iface, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(OmeroReaderTest.class.getClassLoader(),
+                new Class<?>[] {iface}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    }
+
+    /**
+     * @return a uint8 tile whose every byte is its x offset
+     */
+    private static byte[] tile(Object[] args) {
+        final byte[] tile = new byte[(Integer) args[5] * (Integer) args[6]];
+        Arrays.fill(tile, ((Integer) args[3]).byteValue());
+        return tile;
+    }
+
+    private RawPixelsStorePrx store() {
+        created.incrementAndGet();
+        return stub(RawPixelsStorePrx.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("getTile")) {
+                    fetched.incrementAndGet();
+                    return tile(args);
+                } else if (name.equals("begin_getTile")) {
+                    readAhead.incrementAndGet();
+                    final ReadAhead read = new ReadAhead(args);
+                    if (hold) {
+                        held.add(read);
+                    } else {
+                        read.complete();
+                    }
+                    return read.result;
+                } else if (name.equals("end_getTile")) {
+                    return tile(((ReadAhead) Proxy.getInvocationHandler(args[0])).args);
+                } else if (name.equals("close")) {
+                    closed.incrementAndGet();
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        created.set(0);
+        closed.set(0);
+        fetched.set(0);
+        readAhead.set(0);
+        held.clear();
+        hold = false;
+        final ServiceFactoryPrx sf = stub(ServiceFactoryPrx.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("createRawPixelsStore")) {
+                    return store();
+                }
+                return defaultValue(method);
+            }
+        });
+        final Pixels pix = new PixelsI(1L, true);
+        pix.setSizeX(rint(20));
+        pix.setSizeY(rint(10));
+        pix.setSizeZ(rint(2));
+        pix.setSizeC(rint(1));
+        pix.setSizeT(rint(1));
+        final PixelsTypeI type = new PixelsTypeI();
+        type.setValue(rstring("uint8"));
+        pix.setPixelsType(type);
+        reader = new OmeroReader() {
+            {
+                currentId = "omero:iid=1";
+                core = new ArrayList<CoreMetadata>();
+                core.add(new CoreMetadata());
+            }
+        };
+        reader.initPixels(sf, pix);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        reader.close();
+    }
+
+    private byte[] open(int no, int x, int y) throws Exception {
+        return reader.openBytes(no, new byte[25], x, y, 5, 5);
+    }
+
+    /**
+     * Test that the least recently used tiles are dropped once the cache
+     * would exceed its size in bytes.
+     */
+    public void testTileCacheKeepsItsByteBound() throws Exception {
+        reader.setTileCacheSize(60);
+        open(0, 0, 0);
+        open(0, 5, 5);
+        open(0, 0, 0);
+        Assert.assertEquals(fetched.get(), 2);
+        open(0, 10, 5);
+        Assert.assertEquals(fetched.get(), 3);
+        open(0, 0, 0);
+        Assert.assertEquals(fetched.get(), 3);
+        open(0, 5, 5);
+        Assert.assertEquals(fetched.get(), 4);
+        Assert.assertEquals(readAhead.get(), 0);
+    }
+
+    /**
+     * Test that without a cache every tile is fetched, but through one
+     * store which is closed with the reader.
+     */
+    public void testStoreIsReused() throws Exception {
+        reader.setTileCacheSize(0);
+        open(0, 0, 0);
+        open(0, 5, 0);
+        open(0, 0, 0);
+        Assert.assertEquals(fetched.get(), 3);
+        Assert.assertEquals(readAhead.get(), 0);
+        Assert.assertEquals(created.get(), 1);
+        Assert.assertEquals(closed.get(), 0);
+        reader.close();
+        Assert.assertEquals(closed.get(), 1);
+    }
+
+    /**
+     * Test that the tile after two adjacent tiles is read ahead into the
+     * cache and then served from it.
+     */
+    public void testReadAheadIsServedFromCache() throws Exception {
+        open(0, 0, 0);
+        open(0, 5, 0);
+        Assert.assertEquals(readAhead.get(), 1);
+        final byte[] tile = open(0, 10, 0);
+        Assert.assertEquals(fetched.get(), 2);
+        Assert.assertEquals(tile[0], 10);
+        Assert.assertEquals(created.get(), 1);
+    }
+
+    /**
+     * Test that opening a tile which is still being read ahead waits for
+     * it rather than fetching it again.
+     */
+    public void testOpenWaitsForReadAhead() throws Exception {
+        hold = true;
+        open(0, 0, 0);
+        open(0, 5, 0);
+        Assert.assertEquals(held.size(), 1);
+        final byte[][] tile = new byte[1][];
+        final Thread opener = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    tile[0] = open(0, 10, 0);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        opener.start();
+        opener.join(100);
+        Assert.assertTrue(opener.isAlive());
+        hold = false;
+        held.remove(0).complete();
+        opener.join(500);
+        Assert.assertFalse(opener.isAlive());
+        Assert.assertEquals(tile[0][0], 10);
+        Assert.assertEquals(fetched.get(), 2);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.util.LSID;
+import ome.xml.model.primitives.PositiveInteger;
+import omero.api.MetadataStorePrx;
+import omero.api.ServiceFactoryPrx;
+import omero.metadatastore.IObjectContainer;
+import omero.model.Channel;
+import omero.model.IObject;
+import omero.model.Image;
+import omero.model.Pixels;
+
+import org.jmock.Mock;
+import org.jmock.core.stub.DefaultResultStub;
+import org.jmock.core.stub.ReturnStub;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link OMEROMetadataStoreClient} can still set the channel
+ * minima and maxima after streaming its caches to the server.
+ * @since 5.5.7
+ */
+@Test(groups = "unit")
+public class StreamedSaveTest {
+
+    /** The containers sent by the store. */
+    private final List<IObjectContainer> sent = new ArrayList<IObjectContainer>();
+
+    private OMEROMetadataStoreClient store;
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> iface, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StreamedSaveTest.class.getClassLoader(),
+                new Class<?>[] {iface}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    }
+
+    /**
+     * A metadata store service which accepts every batch at once.
+     */
+    private MetadataStorePrx delegate() {
+        final Ice.AsyncResult result = stub(Ice.AsyncResult.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method);
+            }
+        });
+        return stub(MetadataStorePrx.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("ice_context")) {
+                    return proxy;
+                } else if (name.equals("ice_getContext")) {
+                    return new HashMap<String, String>();
+                } else if (name.equals("begin_updateObjects")) {
+                    Collections.addAll(sent, (IObjectContainer[]) args[0]);
+                    return result;
+                } else if (name.equals("begin_updateReferences")) {
+                    return result;
+                } else if (name.equals("saveToDB")) {
+                    return Collections.singletonMap("Pixels", new ArrayList<IObject>());
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        sent.clear();
+        final Mock sf = new Mock(ServiceFactoryPrx.class);
+        sf.setDefaultStub(new DefaultResultStub());
+        sf.stubs().method("getByName").will(
+                new ReturnStub(delegate()));
+        store = new OMEROMetadataStoreClient();
+        store.initialize((ServiceFactoryPrx) sf.proxy());
+        store.setSaveBatchesInFlight(2);
+    }
+
+    /**
+     * Test that the Image and Pixels containers are kept after a streamed
+     * save so that the min/max pass which follows it can use them, while
+     * the other containers are released.
+     */
+    public void testMinMaxAfterStreamedSave() {
+        store.setImageName("image", 0);
+        store.setPixelsSizeC(new PositiveInteger(2), 0);
+        store.setChannelName("c0", 0, 0);
+        store.setChannelName("c1", 0, 1);
+        final int cached = store.getContainerCache().size();
+        final Map<String, List<IObject>> saved = store.saveToDB(null);
+        Assert.assertNotNull(saved);
+        Assert.assertEquals(sent.size(), cached);
+
+        Assert.assertNotNull(store.getSourceObject(new LSID(Image.class, 0)));
+        Assert.assertNotNull(store.getSourceObject(new LSID(Pixels.class, 0)));
+        Assert.assertNull(store.getSourceObject(new LSID(Channel.class, 0, 0)));
+        Assert.assertEquals(store.countCachedContainers(Image.class), 1);
+
+        store.setChannelGlobalMinMax(0, 1, 10, 0);
+        store.setChannelGlobalMinMax(1, 2, 20, 0);
+    }
+}
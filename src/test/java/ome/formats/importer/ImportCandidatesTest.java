@@ -26,6 +26,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -270,6 +271,50 @@ public class ImportCandidatesTest {
         FileUtils.deleteQuietly(fakeFolder);
     }
 
+    @Test
+    /**
+     * Tests that a parallel scan parses each file through an override of
+     * ImportCandidates#singleFile(File, ImportConfig)
+     */
+    public void testParallelScanUsesSingleFileOverride() throws Exception {
+        File fakeFolder = TempFileManager.create_path("ImportCandidatesTest_5",
+                "", true);
+
+        File f1 = new File(fakeFolder, "test1.fake");
+        echo("", f1);
+        File f2 = new File(fakeFolder, "test2.fake");
+        echo("", f2);
+
+        final Set<String> parsed = Collections.synchronizedSet(
+                new HashSet<String>());
+        ImportConfig config = new ImportConfig();
+        config.parallelScan.set(2);
+        OMEROWrapper w = new OMEROWrapper(config);
+        IObserver o = new IObserver() {
+            public void update(IObservable importLibrary, ImportEvent event) {
+                // nothing to do
+            }
+        };
+        String[] files = new String[] { fakeFolder.getAbsolutePath() };
+        List<ImportContainer> cons = new ImportCandidates(w, files, o) {
+            @Override
+            protected ImportContainer singleFile(File file, ImportConfig config) {
+                parsed.add(file.getName());
+                if (file.getName().startsWith("test2")) {
+                    return null;
+                }
+                return super.singleFile(file, config);
+            }
+        }.getContainers();
+
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertEquals(info(files, cons), 1, cons.size());
+        Assert.assertEquals(f1.getAbsolutePath(),
+                cons.get(0).getFile().getAbsolutePath());
+
+        FileUtils.deleteQuietly(fakeFolder);
+    }
+
     /**
      * Creates a ImportCandidates from the provided files and returns its
      * ImportContainers.
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link AdaptiveParallelism} keeps its pool within bounds and
+ * backs off on failures.
+ */
+public class AdaptiveParallelismTest {
+
+    private ThreadPoolExecutor pool;
+
+    @BeforeMethod
+    public void setUp() {
+        pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(8);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testStartsBetweenBounds() {
+        final AdaptiveParallelism controller = new AdaptiveParallelism("test", pool, 1, 8);
+        Assert.assertEquals(controller.getSize(), 5);
+        Assert.assertEquals(pool.getCorePoolSize(), 5);
+        Assert.assertEquals(pool.getMaximumPoolSize(), 5);
+    }
+
+    @Test
+    public void testFailuresShrinkToMinimum() {
+        final AdaptiveParallelism controller = new AdaptiveParallelism("test", pool, 2, 8);
+        for (int i = 0; i < 100; i++) {
+            controller.failed();
+        }
+        Assert.assertEquals(controller.getSize(), 2);
+        Assert.assertEquals(pool.getCorePoolSize(), 2);
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        final AdaptiveParallelism controller = new AdaptiveParallelism("test", pool, 1, 3);
+        for (int i = 0; i < 1000; i++) {
+            controller.succeeded(i * 1024);
+            Assert.assertTrue(controller.getSize() >= 1 && controller.getSize() <= 3);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRejectsEmptyBounds() {
+        new AdaptiveParallelism("test", pool, 0, 8);
+    }
+}
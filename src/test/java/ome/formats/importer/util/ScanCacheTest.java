@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link ScanCache} entries survive a reload and are invalidated
+ * by changes to any used file.
+ */
+public class ScanCacheTest {
+
+    private File dir, cacheFile, fake, companion;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ScanCacheTest").toFile();
+        cacheFile = new File(dir, "scan.cache");
+        fake = write(new File(dir, "a.fake"), "a");
+        companion = write(new File(dir, "a.ini"), "b");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static File write(File file, String content) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private ScanCache reload(String signature) throws IOException {
+        final ScanCache cache = new ScanCache(cacheFile, "1");
+        cache.store(fake, "loci.formats.in.FakeReader", new String[] {
+                fake.getAbsolutePath(), companion.getAbsolutePath() }, true);
+        cache.save(new String[] { dir.getAbsolutePath() });
+        return new ScanCache(cacheFile, signature);
+    }
+
+    @Test
+    public void testReloadedEntryIsFound() throws IOException {
+        final ScanCache.Entry entry = reload("1").lookup(fake);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(entry.reader, "loci.formats.in.FakeReader");
+        Assert.assertEquals(entry.usedFiles.length, 2);
+        Assert.assertTrue(entry.isSPW);
+    }
+
+    @Test
+    public void testOtherSignatureIsIgnored() throws IOException {
+        Assert.assertNull(reload("2").lookup(fake));
+    }
+
+    @Test
+    public void testChangedUsedFileInvalidates() throws IOException {
+        final ScanCache cache = reload("1");
+        write(companion, "changed");
+        Assert.assertNull(cache.lookup(fake));
+        Assert.assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void testUnseenEntriesBeneathScannedPathsAreDropped() throws IOException {
+        reload("1").save(new String[] { dir.getAbsolutePath() });
+        Assert.assertNull(new ScanCache(cacheFile, "1").lookup(fake));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.model;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import ome.util.LSID;
+import omero.metadatastore.IObjectContainer;
+import omero.model.Channel;
+import omero.model.Image;
+import omero.model.PlaneInfo;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class IObjectContainerCacheTest
+{
+    private IObjectContainerCache cache;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        cache = new IObjectContainerCache();
+        for (int image = 0; image < 2; image++)
+        {
+            add(new LSID(Image.class, image));
+            for (int channel = 0; channel < 3; channel++)
+            {
+                add(new LSID(Channel.class, image, channel));
+            }
+            for (int plane = 0; plane < 4; plane++)
+            {
+                add(new LSID(PlaneInfo.class, image, 0, plane));
+            }
+        }
+    }
+
+    private void add(LSID lsid)
+    {
+        IObjectContainer container = new IObjectContainer();
+        container.LSID = lsid.toString();
+        cache.put(lsid, container);
+    }
+
+    @Test
+    public void testGetContainers()
+    {
+        Assert.assertEquals(cache.getContainers(Image.class).size(), 2);
+        Assert.assertEquals(cache.getContainers(Channel.class).size(), 6);
+        Assert.assertEquals(cache.getContainers(PlaneInfo.class).size(), 8);
+        Assert.assertEquals(cache.getContainers(Channel.class).get(0).LSID,
+                new LSID(Channel.class, 0, 0).toString());
+    }
+
+    @Test
+    public void testCount()
+    {
+        Assert.assertEquals(cache.count(Channel.class, (int[]) null), 6);
+        Assert.assertEquals(cache.count(Channel.class), 6);
+        Assert.assertEquals(cache.count(Channel.class, 1), 3);
+        Assert.assertEquals(cache.count(Channel.class, 1, 2), 1);
+        Assert.assertEquals(cache.count(PlaneInfo.class, 0, 0), 4);
+        Assert.assertEquals(cache.count(PlaneInfo.class, 0, 1), 0);
+        // Longer indexes than the key are compared on the key's length
+        Assert.assertEquals(cache.count(Image.class, 1, 5), 1);
+    }
+
+    @Test
+    public void testRemoveThroughViews()
+    {
+        cache.remove(new LSID(Channel.class, 0, 0));
+        Assert.assertEquals(cache.count(Channel.class, 0), 2);
+        Iterator<Map.Entry<LSID, IObjectContainer>> it =
+            cache.entrySet().iterator();
+        while (it.hasNext())
+        {
+            if (it.next().getKey().getJavaClass() == PlaneInfo.class)
+            {
+                it.remove();
+            }
+        }
+        Assert.assertEquals(cache.count(PlaneInfo.class), 0);
+        Assert.assertTrue(cache.getContainers(PlaneInfo.class).isEmpty());
+        cache.keySet().remove(new LSID(Image.class, 1));
+        Assert.assertEquals(cache.count(Image.class), 1);
+        Assert.assertEquals(cache.size(), 1 + 5);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.fire;
+
+import omero.grid.TablesPrx;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link CachedRegistry} only queries its delegate when needed.
+ */
+public class CachedRegistryTest extends MockObjectTestCase {
+
+    Mock mockReg;
+
+    CachedRegistry cached;
+
+    @BeforeMethod
+    public void setupMethod() throws Exception {
+        mockReg = mock(Registry.class);
+        cached = new CachedRegistry((Registry) mockReg.proxy(), Long.MAX_VALUE);
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        cached.destroy();
+    }
+
+    @Test
+    public void testLookupIsReused() throws Exception {
+        final TablesPrx[] tables = new TablesPrx[0];
+        mockReg.expects(once()).method("lookupTables").will(returnValue(tables));
+        assertSame(tables, cached.lookupTables());
+        assertSame(tables, cached.lookupTables());
+        mockReg.verify();
+    }
+
+    @Test
+    public void testFailedFirstLookupIsRetried() throws Exception {
+        final TablesPrx[] tables = new TablesPrx[0];
+        mockReg.expects(once()).method("lookupTables").will(returnValue(null))
+                .id("first");
+        mockReg.expects(once()).method("lookupTables").after("first")
+                .will(returnValue(tables));
+        assertNull(cached.lookupTables());
+        assertSame(tables, cached.lookupTables());
+        mockReg.verify();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.redirect;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.system.Principal;
+import omero.grid.NodeLoad;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests how {@link ScaleRedirector} chooses the node for new sessions.
+ */
+public class ScaleRedirectorTest {
+
+    private static class Chooser extends ScaleRedirector {
+        Chooser() {
+            this(Long.MAX_VALUE);
+        }
+        Chooser(long refresh) {
+            super(null, refresh);
+        }
+        String choose(Redirector.Context ctx) {
+            return chooseNode(ctx);
+        }
+    }
+
+    private static NodeLoad load(int sessions) {
+        return new NodeLoad(sessions, 1.0, 4, 100, 1000);
+    }
+
+    private static Redirector.Context context(final Map<String, NodeLoad> loads) {
+        return new Redirector.Context() {
+            public String uuid() {
+                return "local";
+            }
+            public String getDirectProxy() {
+                return null;
+            }
+            public Principal principal() {
+                return null;
+            }
+            public Ice.Communicator getCommunicator() {
+                return null;
+            }
+            public Set<String> getManagerList(boolean activeOnly) {
+                return loads.keySet();
+            }
+            public Map<String, NodeLoad> getNodeLoads() {
+                return loads;
+            }
+        };
+    }
+
+    @Test
+    public void testStaysLocalWhenNotBusier() {
+        final Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+        loads.put("local", load(10));
+        loads.put("remote", load(9));
+        Assert.assertNull(new Chooser().choose(context(loads)));
+    }
+
+    @Test
+    public void testSpreadsSessionsOverIdleNode() {
+        final Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+        loads.put("local", load(20));
+        loads.put("remote", load(0));
+        final Chooser chooser = new Chooser();
+        final Redirector.Context ctx = context(loads);
+        int remote = 0;
+        for (int i = 0; i < 40; i++) {
+            if ("remote".equals(chooser.choose(ctx))) {
+                remote++;
+            }
+        }
+        // at first all go to the idle node, then they alternate
+        Assert.assertTrue(remote > 20 && remote < 40, "remote: " + remote);
+    }
+
+    @Test
+    public void testManagerListIsCachedWithLoads() {
+        final Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+        loads.put("local", load(20));
+        loads.put("remote", load(0));
+        final AtomicInteger managerLists = new AtomicInteger();
+        final Redirector.Context ctx = new DelegatingContext(context(loads)) {
+            @Override
+            public Set<String> getManagerList(boolean activeOnly) {
+                managerLists.incrementAndGet();
+                return super.getManagerList(activeOnly);
+            }
+        };
+        final Chooser chooser = new Chooser();
+        for (int i = 0; i < 10; i++) {
+            chooser.choose(ctx);
+        }
+        Assert.assertEquals(managerLists.get(), 1);
+    }
+
+    @Test(timeOut = 10000)
+    public void testLoginsDoNotWaitForRefresh() throws Exception {
+        final Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+        loads.put("local", load(20));
+        loads.put("remote", load(0));
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Redirector.Context loaded = context(loads);
+        final Chooser chooser = new Chooser(-1); // always due for a refresh
+        Assert.assertEquals(chooser.choose(loaded), "remote");
+        final Redirector.Context slow = new DelegatingContext(loaded) {
+            @Override
+            public Map<String, NodeLoad> getNodeLoads() {
+                fetching.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getNodeLoads();
+            }
+        };
+        final Thread refresher = new Thread() {
+            @Override
+            public void run() {
+                chooser.choose(slow);
+            }
+        };
+        refresher.start();
+        Assert.assertTrue(fetching.await(5, TimeUnit.SECONDS));
+        // served from the previous loads while the refresh is blocked
+        Assert.assertEquals(chooser.choose(slow), "remote");
+        release.countDown();
+        refresher.join();
+    }
+
+    /** Passes every call on to another context. */
+    private static class DelegatingContext implements Redirector.Context {
+        private final Redirector.Context delegate;
+        DelegatingContext(Redirector.Context delegate) {
+            this.delegate = delegate;
+        }
+        public String uuid() {
+            return delegate.uuid();
+        }
+        public String getDirectProxy() {
+            return delegate.getDirectProxy();
+        }
+        public Principal principal() {
+            return delegate.principal();
+        }
+        public Ice.Communicator getCommunicator() {
+            return delegate.getCommunicator();
+        }
+        public Set<String> getManagerList(boolean activeOnly) {
+            return delegate.getManagerList(activeOnly);
+        }
+        public Map<String, NodeLoad> getNodeLoads() {
+            return delegate.getNodeLoads();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.repo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import loci.formats.FormatTools;
+import loci.formats.Memoizer;
+import loci.formats.meta.IMinMaxStore;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportSize;
+import ome.formats.importer.OMEROWrapper;
+import ome.util.PixelData;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsTypeI;
+import omero.util.TempFileManager;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.rstring;
+
+/**
+ * Tests that {@link ParallelPixelParser} calculates the same checksums and
+ * min/max values as a serial parse, and reports every plane.
+ * @since 5.5.7
+ */
+@Test(timeOut = 30000)
+public class ParallelPixelParserTest {
+
+    /** Collects the values passed to the store, by series and channel. */
+    private static class Store implements IMinMaxStore {
+
+        final Map<String, double[]> minMax = new HashMap<String, double[]>();
+
+        @Override
+        public void setChannelGlobalMinMax(int channel, double minimum,
+                double maximum, int series) {
+            minMax.put(series + ":" + channel, new double[] {minimum, maximum});
+        }
+    }
+
+    private final List<File> files = new ArrayList<File>();
+
+    @AfterMethod
+    public void deleteFiles() throws Exception {
+        final Memoizer m = new Memoizer();
+        for (final File file : files) {
+            FileUtils.deleteQuietly(m.getMemoFile(file.getAbsolutePath()));
+            FileUtils.deleteQuietly(file);
+        }
+        m.close();
+        files.clear();
+    }
+
+    private File fake(String options) throws Exception {
+        final File fake = TempFileManager.create_path("parallelpixelparsertest.",
+                options + ".fake");
+        FileUtils.touch(fake);
+        files.add(fake);
+        return fake;
+    }
+
+    private static OMEROWrapper open(File fake) throws Exception {
+        final OMEROWrapper reader = new OMEROWrapper(new ImportConfig(), 0, null);
+        reader.setId(fake.getAbsolutePath());
+        return reader;
+    }
+
+    private static List<ImportSize> sizes(File fake) throws Exception {
+        final OMEROWrapper reader = open(fake);
+        try {
+            final List<ImportSize> sizes = new ArrayList<ImportSize>();
+            for (int series = 0; series < reader.getSeriesCount(); series++) {
+                reader.setSeries(series);
+                final Pixels pixels = new PixelsI();
+                pixels.setSizeX(rint(reader.getSizeX()));
+                pixels.setSizeY(rint(reader.getSizeY()));
+                pixels.setSizeZ(rint(reader.getSizeZ()));
+                pixels.setSizeC(rint(reader.getSizeC()));
+                pixels.setSizeT(rint(reader.getSizeT()));
+                final PixelsTypeI pixelsType = new PixelsTypeI();
+                pixelsType.setValue(rstring(
+                        FormatTools.getPixelTypeString(reader.getPixelType())));
+                pixels.setPixelsType(pixelsType);
+                sizes.add(new ImportSize(fake.getName(), pixels,
+                        reader.getDimensionOrder()));
+            }
+            return sizes;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse every series serially, tile by tile as
+     * {@link ManagedImportRequestI#parseData(String, int, ImportSize)} does.
+     * @return the checksum of each series
+     */
+    private static List<String> parseSerially(File fake, List<ImportSize> sizes,
+            Store store) throws Exception {
+        final List<String> checksums = new ArrayList<String>();
+        final OMEROWrapper reader = open(fake);
+        try {
+            for (int series = 0; series < sizes.size(); series++) {
+                final ImportSize size = sizes.get(series);
+                reader.setSeries(series);
+                final int tileWidth = reader.getOptimalTileWidth();
+                final int tileHeight = reader.getOptimalTileHeight();
+                final int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+                final String pixelType = FormatTools.getPixelTypeString(reader.getPixelType());
+                final ByteOrder order = reader.isLittleEndian() ?
+                        ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                final MessageDigest md = MessageDigest.getInstance("SHA-1");
+                final double[][] minMax = new double[size.sizeC][];
+                for (int t = 0; t < size.sizeT; t++) {
+                    for (int c = 0; c < size.sizeC; c++) {
+                        if (minMax[c] == null) {
+                            minMax[c] = new double[] {
+                                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                        }
+                        for (int z = 0; z < size.sizeZ; z++) {
+                            for (int y = 0; y < size.sizeY; y += tileHeight) {
+                                for (int x = 0; x < size.sizeX; x += tileWidth) {
+                                    final int w = Math.min(tileWidth, size.sizeX - x);
+                                    final int h = Math.min(tileHeight, size.sizeY - y);
+                                    final byte[] tile = reader.openBytes(
+                                            reader.getIndex(z, c, t),
+                                            new byte[w * h * bytesPerPixel], x, y, w, h);
+                                    md.update(tile);
+                                    final PixelData pixels = new PixelData(pixelType,
+                                            ByteBuffer.wrap(tile).order(order));
+                                    for (int i = 0; i < pixels.size(); i++) {
+                                        final double value = pixels.getPixelValue(i);
+                                        minMax[c][0] = Math.min(minMax[c][0], value);
+                                        minMax[c][1] = Math.max(minMax[c][1], value);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                for (int c = 0; c < size.sizeC; c++) {
+                    store.setChannelGlobalMinMax(c, minMax[c][0], minMax[c][1], series);
+                }
+                checksums.add(toString(md));
+            }
+        } finally {
+            reader.close();
+        }
+        return checksums;
+    }
+
+    private static String toString(MessageDigest md) {
+        return Arrays.toString(md.digest());
+    }
+
+    /**
+     * Parse in parallel, checking the result against a serial parse.
+     * @param options the options of the fake file name
+     * @param readerCount how many readers the parser may use
+     * @param bufferBytes how many bytes of planes the parser may hold
+     */
+    private void assertSameAsSerial(String options, int readerCount,
+            long bufferBytes) throws Throwable {
+        final File fake = fake(options);
+        final List<ImportSize> sizes = sizes(fake);
+        final Store serialStore = new Store();
+        final List<String> expected = parseSerially(fake, sizes, serialStore);
+
+        final List<String> steps = Collections.synchronizedList(new ArrayList<String>());
+        final ParallelPixelParser parser = new ParallelPixelParser(
+                new Callable<OMEROWrapper>() {
+                    @Override
+                    public OMEROWrapper call() throws Exception {
+                        return open(fake);
+                    }
+                }, readerCount, Long.MAX_VALUE, bufferBytes,
+                new ParallelPixelParser.Progress() {
+                    @Override
+                    public void planeParsed(int planeNo, int series, int seriesCount) {
+                        Assert.assertEquals(seriesCount, sizes.size());
+                        steps.add(series + ":" + planeNo);
+                    }
+                });
+        final Store parallelStore = new Store();
+        final MessageDigest[] mds = parser.parse(sizes, parallelStore);
+
+        Assert.assertEquals(mds.length, expected.size());
+        for (int series = 0; series < mds.length; series++) {
+            Assert.assertEquals(toString(mds[series]), expected.get(series));
+        }
+        Assert.assertEquals(parallelStore.minMax.keySet(), serialStore.minMax.keySet());
+        for (final Map.Entry<String, double[]> entry : serialStore.minMax.entrySet()) {
+            Assert.assertEquals(parallelStore.minMax.get(entry.getKey()), entry.getValue());
+        }
+        final List<String> expectedSteps = new ArrayList<String>();
+        for (int series = 0; series < sizes.size(); series++) {
+            for (int planeNo = 1; planeNo <= sizes.get(series).imageCount; planeNo++) {
+                expectedSteps.add(series + ":" + planeNo);
+            }
+        }
+        Assert.assertEqualsNoOrder(steps.toArray(), expectedSteps.toArray());
+    }
+
+    /**
+     * Test that a single series parsed plane by plane matches.
+     */
+    public void testSingleSeries() throws Throwable {
+        assertSameAsSerial("&sizeX=64&sizeY=48&sizeZ=3&sizeC=2&sizeT=2&pixelType=uint16",
+                3, Long.MAX_VALUE);
+    }
+
+    /**
+     * Test that a single series still matches if its buffer only holds
+     * one plane, or not even that.
+     */
+    public void testSingleSeriesSmallBuffer() throws Throwable {
+        final String options = "&sizeX=64&sizeY=48&sizeZ=3&sizeC=2&sizeT=2&pixelType=uint16";
+        assertSameAsSerial(options, 3, 64 * 48 * 2);
+        assertSameAsSerial(options, 3, 1);
+    }
+
+    /**
+     * Test that several series parsed series by series match.
+     */
+    public void testSeveralSeries() throws Throwable {
+        assertSameAsSerial("&sizeX=32&sizeY=32&sizeZ=2&sizeC=2&series=3",
+                2, Long.MAX_VALUE);
+    }
+
+    /**
+     * Test that several series still match if their buffer only holds one
+     * plane.
+     */
+    public void testSeveralSeriesSmallBuffer() throws Throwable {
+        assertSameAsSerial("&sizeX=32&sizeY=32&sizeZ=2&sizeC=2&series=3",
+                2, 32 * 32);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.repo;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link ManagedImportProcessI.UploadOffset} only reports the
+ * contiguous prefix of a file that has been written.
+ * @since 5.5.7
+ */
+@Test
+public class UploadOffsetTest {
+
+    /**
+     * Test that in-order writes advance the offset.
+     */
+    public void testInOrder() {
+        final ManagedImportProcessI.UploadOffset offset = new ManagedImportProcessI.UploadOffset();
+        offset.written(0, 0);
+        Assert.assertEquals(offset.getOffset(), 0);
+        offset.written(0, 10);
+        offset.written(10, 10);
+        Assert.assertEquals(offset.getOffset(), 20);
+    }
+
+    /**
+     * Test that a later write does not advance the offset past a hole.
+     */
+    public void testOutOfOrder() {
+        final ManagedImportProcessI.UploadOffset offset = new ManagedImportProcessI.UploadOffset();
+        offset.written(20, 10);
+        offset.written(10, 10);
+        Assert.assertEquals(offset.getOffset(), 0);
+        offset.written(0, 10);
+        Assert.assertEquals(offset.getOffset(), 30);
+    }
+
+    /**
+     * Test that rewriting an earlier extent does not move the offset back.
+     */
+    public void testRewrite() {
+        final ManagedImportProcessI.UploadOffset offset = new ManagedImportProcessI.UploadOffset();
+        offset.written(0, 30);
+        offset.written(5, 10);
+        Assert.assertEquals(offset.getOffset(), 30);
+    }
+
+    /**
+     * Test that an explicit offset discards any extents beyond the old one.
+     */
+    public void testSetOffset() {
+        final ManagedImportProcessI.UploadOffset offset = new ManagedImportProcessI.UploadOffset();
+        offset.written(20, 10);
+        offset.setOffset(5);
+        offset.written(5, 5);
+        Assert.assertEquals(offset.getOffset(), 10);
+    }
+}
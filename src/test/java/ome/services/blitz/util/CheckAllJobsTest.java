@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ome.services.blitz.fire.Registry;
+import ome.services.blitz.fire.TopicManager;
+import ome.services.util.Executor;
+import ome.util.SqlAction;
+import omero.grid.ProcessorPrx;
+import omero.grid._ProcessorCallbackDisp;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.Stub;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import Ice.ObjectAdapter;
+
+/**
+ * Tests when {@link CheckAllJobs} closes the jobs which no processor
+ * reported as running.
+ * @since 5.5.7
+ */
+public class CheckAllJobsTest extends MockObjectTestCase {
+
+    Mock mockEx, mockOa, mockTm, mockReg;
+
+    /** The callback added to the adapter. */
+    volatile _ProcessorCallbackDisp callback;
+
+    /** Counted down when the jobs are synchronized. */
+    CountDownLatch synchronized_;
+
+    /** The jobs left open when synchronizing. */
+    volatile List<Long> running;
+
+    @BeforeMethod
+    public void setupMethod() throws Exception {
+        synchronized_ = new CountDownLatch(1);
+        running = null;
+        mockEx = mock(Executor.class);
+        mockEx.expects(once()).method("executeSql").will(new Stub() {
+            public Object invoke(Invocation invocation) throws Throwable {
+                final Executor.SimpleSqlWork work =
+                        (Executor.SimpleSqlWork) invocation.parameterValues.get(0);
+                final Mock mockSql = mock(SqlAction.class);
+                mockSql.expects(once()).method("synchronizeJobs").will(new Stub() {
+                    @SuppressWarnings("unchecked")
+                    public Object invoke(Invocation invocation) throws Throwable {
+                        running = (List<Long>) invocation.parameterValues.get(0);
+                        return 0;
+                    }
+
+                    public StringBuffer describeTo(StringBuffer buffer) {
+                        return buffer.append("records the running jobs");
+                    }
+                });
+                work.doWork((SqlAction) mockSql.proxy());
+                synchronized_.countDown();
+                return null;
+            }
+
+            public StringBuffer describeTo(StringBuffer buffer) {
+                return buffer.append("synchronizes jobs");
+            }
+        });
+        mockOa = mock(ObjectAdapter.class);
+        mockOa.expects(once()).method("add").will(new Stub() {
+            public Object invoke(Invocation invocation) throws Throwable {
+                callback = (_ProcessorCallbackDisp) invocation.parameterValues.get(0);
+                return null;
+            }
+
+            public StringBuffer describeTo(StringBuffer buffer) {
+                return buffer.append("adds the callback");
+            }
+        });
+        mockOa.expects(once()).method("remove");
+        mockTm = mock(TopicManager.class);
+        mockTm.expects(once()).method("onApplicationEvent");
+        mockReg = mock(Registry.class);
+    }
+
+    private CheckAllJobs checker(int processors, long waitMs) {
+        mockReg.expects(once()).method("lookupProcessors")
+                .will(returnValue(new ProcessorPrx[processors]));
+        return new CheckAllJobs((Executor) mockEx.proxy(),
+                (ObjectAdapter) mockOa.proxy(), (TopicManager) mockTm.proxy(),
+                (Registry) mockReg.proxy(), waitMs);
+    }
+
+    /**
+     * Test that the jobs are synchronized as soon as every known processor
+     * has replied.
+     */
+    @Test(timeOut = 1000)
+    public void testKnownProcessorsAllReplied() throws Exception {
+        final CheckAllJobs checker = checker(2, 60000);
+        checker.run();
+        callback.responseRunning(Arrays.asList(1L), null);
+        assertFalse(synchronized_.await(50, TimeUnit.MILLISECONDS));
+        callback.responseRunning(Arrays.asList(2L), null);
+        assertTrue(synchronized_.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L)),
+                new HashSet<Long>(running));
+        mockEx.verify();
+        mockOa.verify();
+    }
+
+    /**
+     * Test that if the number of processors is not known then a reply does
+     * not end the wait early.
+     */
+    @Test(timeOut = 1000)
+    public void testUnknownProcessorsKeepTheFullWait() throws Exception {
+        final long waitMs = 300;
+        final CheckAllJobs checker = checker(0, waitMs);
+        final long start = System.currentTimeMillis();
+        checker.run();
+        callback.responseRunning(Arrays.asList(1L), null);
+        assertFalse(synchronized_.await(waitMs / 2, TimeUnit.MILLISECONDS));
+        assertTrue(synchronized_.await(600, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= waitMs);
+        assertEquals(Arrays.asList(1L), running);
+        mockEx.verify();
+        mockOa.verify();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.util;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link ExportCache} reuses generated files and evicts them.
+ */
+@Test(groups = "unit")
+public class ExportCacheTest {
+
+    private static class Counting implements ExportCache.Generator {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public void generate(File target) throws Exception {
+            calls.incrementAndGet();
+            FileUtils.writeStringToFile(target, "0123456789");
+        }
+    }
+
+    @Test
+    public void testSameKeyIsGeneratedOnce() throws Exception {
+        final ExportCache cache = new ExportCache("", 100);
+        final Counting generator = new Counting();
+        final ExportCache.Entry first = cache.acquire("a", ".txt", generator);
+        final ExportCache.Entry second = cache.acquire("a", ".txt", generator);
+        Assert.assertEquals(generator.calls.get(), 1);
+        Assert.assertEquals(second.getFile(), first.getFile());
+        Assert.assertEquals(first.getFile().length(), 10);
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void testFilesInUseAreNotEvicted() throws Exception {
+        final ExportCache cache = new ExportCache("", 15);
+        final Counting generator = new Counting();
+        final ExportCache.Entry a = cache.acquire("a", ".txt", generator);
+        final ExportCache.Entry b = cache.acquire("b", ".txt", generator);
+        Assert.assertTrue(a.getFile().exists());
+        Assert.assertTrue(b.getFile().exists());
+        a.release();
+        Assert.assertFalse(a.getFile().exists());
+        Assert.assertTrue(b.getFile().exists());
+        b.release();
+        Assert.assertTrue(b.getFile().exists());
+        cache.acquire("a", ".txt", generator).release();
+        Assert.assertEquals(generator.calls.get(), 3);
+    }
+
+    @Test(timeOut = 10000)
+    public void testWaitersDoNotBlockAndKeepTheFile() throws Exception {
+        final ExportCache cache = new ExportCache("", 0);
+        final CountDownLatch generating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Counting generator = new Counting() {
+            @Override
+            public void generate(File target) throws Exception {
+                generating.countDown();
+                release.await();
+                super.generate(target);
+            }
+        };
+        final ExportCache.Entry[] first = new ExportCache.Entry[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    first[0] = cache.acquire("a", ".txt", generator);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        Assert.assertTrue(generating.await(5, TimeUnit.SECONDS));
+        final Future<ExportCache.Entry> pending =
+                cache.acquireAsync("a", ".txt", generator);
+        Assert.assertFalse(pending.isDone());
+        release.countDown();
+        thread.join();
+        first[0].release();
+        final ExportCache.Entry second = ExportCache.await(pending);
+        Assert.assertTrue(second.getFile().exists());
+        Assert.assertEquals(generator.calls.get(), 1);
+        second.release();
+        Assert.assertFalse(second.getFile().exists());
+    }
+}
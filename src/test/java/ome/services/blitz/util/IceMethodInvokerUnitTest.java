@@ -3,7 +3,7 @@
  *   Use is subject to license terms supplied in LICENSE.txt
  */
 
-package ome.services.blitz.test.utests;
+package ome.services.blitz.util;
 
 import static omero.rtypes.rbool;
 import static omero.rtypes.rdouble;
@@ -51,8 +51,6 @@ import ome.model.roi.Roi;
 import ome.parameters.Parameters;
 import ome.parameters.QueryParameter;
 import ome.services.blitz.impl.RoiI;
-import ome.services.blitz.util.ConvertToBlitzExceptionMessage;
-import ome.services.blitz.util.IceMethodInvoker;
 import ome.services.messages.GlobalMulticaster;
 import ome.system.EventContext;
 import ome.system.OmeroContext;
@@ -139,6 +137,42 @@ public class IceMethodInvokerUnitTest extends MockObjectTestCase {
         assertTrue(tb.toString(), tb.closed == 1);
     }
 
+    @Test
+    void testCallsAreCountedPerMethod() throws Exception {
+        OperationStats stats = IceMethodInvoker.getStatistics()
+                .get("ThumbnailStore").get("close");
+        long calls = stats.getCalls();
+        long errors = stats.getErrors();
+        invoker.invoke(tb, current, mapper);
+        try {
+            invoker.invoke(new Object(), current, mapper);
+            fail("must throw");
+        } catch (Ice.UserException ue) {
+            // good
+        }
+        assertEquals(calls + 2, stats.getCalls());
+        assertEquals(errors + 1, stats.getErrors());
+        long histogram = 0;
+        for (long count : stats.getHistogram()) {
+            histogram += count;
+        }
+        assertEquals(stats.getCalls(), histogram);
+    }
+
+    @Test
+    void testPercentilesAreTakenFromHistogram() throws Exception {
+        long[] histogram = new long[OperationStats.BUCKETS];
+        assertEquals(0, OperationStats.percentileNanos(histogram, 0.5));
+        histogram[3] = 50;
+        histogram[10] = 49;
+        histogram[OperationStats.BUCKETS - 1] = 1;
+        assertEquals(1L << 4, OperationStats.percentileNanos(histogram, 0.5));
+        assertEquals(1L << 11, OperationStats.percentileNanos(histogram, 0.9));
+        assertEquals(1L << 11, OperationStats.percentileNanos(histogram, 0.99));
+        assertEquals(1L << OperationStats.BUCKETS,
+                OperationStats.percentileNanos(histogram, 1.0));
+    }
+
     public static class Destroyable implements ThumbnailStore {
 
         @Override
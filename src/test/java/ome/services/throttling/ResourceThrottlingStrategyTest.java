@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.security.basic.CurrentDetails;
+import ome.system.OmeroContext;
+import omero.api.AMD_StatefulServiceInterface_close;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the ordering, fairness and rejection of calls by
+ * {@link ResourceThrottlingStrategy}.
+ * @since 5.5.7
+ */
+@Test(groups = "unit", timeOut = 10000)
+public class ResourceThrottlingStrategyTest {
+
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    private ResourceThrottlingStrategy strategy;
+
+    /** Records the exception passed back to the client. */
+    private static class Client implements AMD_StatefulServiceInterface_close {
+
+        volatile Exception exception;
+
+        public void ice_response() {
+        }
+
+        public void ice_exception(Exception ex) {
+            exception = ex;
+        }
+    }
+
+    /** A call which records that it ran, optionally waiting first. */
+    private class Call extends Task {
+
+        final String name;
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        CountDownLatch release;
+
+        CountDownLatch finished;
+
+        Call(String session, String name, Client client) {
+            super(client, current(session), true);
+            this.name = name;
+        }
+
+        @Override
+        public void run(OmeroContext ctx) {
+            started.countDown();
+            try {
+                if (release != null) {
+                    release.await();
+                }
+                ran.add(name);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (finished != null) {
+                    finished.countDown();
+                }
+            }
+        }
+    }
+
+    private static Ice.Current current(String session) {
+        final Ice.Current current = new Ice.Current();
+        current.id = new Ice.Identity("servant", session);
+        return current;
+    }
+
+    private ResourceThrottlingStrategy strategy(int threads, int maxQueued) {
+        return strategy(threads, maxQueued, Integer.MAX_VALUE);
+    }
+
+    private ResourceThrottlingStrategy strategy(int threads, int maxQueued,
+            int maxPerSession) {
+        strategy = new ResourceThrottlingStrategy(new CurrentDetails(),
+                1, 1, 1, threads, maxQueued, maxPerSession);
+        return strategy;
+    }
+
+    /**
+     * Submits a call which holds the only worker until released.
+     */
+    private CountDownLatch block() throws InterruptedException {
+        final Call blocker = new Call("blocker", "blocker", null);
+        blocker.release = new CountDownLatch(1);
+        strategy.runnableCall(blocker.current, blocker);
+        Assert.assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        return blocker.release;
+    }
+
+    @AfterMethod
+    public void destroy() {
+        if (strategy != null) {
+            strategy.destroy();
+            strategy = null;
+        }
+        ran.clear();
+    }
+
+    /**
+     * Test that the calls of a session run concurrently, but no more of
+     * them at once than the limit per session.
+     */
+    public void testSessionCallsRunConcurrentlyUpToLimit() throws Exception {
+        strategy(4, 100, 2);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            final Call call = new Call("a", Integer.toString(i), null) {
+                @Override
+                public void run(OmeroContext ctx) {
+                    final int now = active.incrementAndGet();
+                    int max;
+                    while ((max = maxActive.get()) < now
+                            && !maxActive.compareAndSet(max, now)) {
+                        // retry
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    active.decrementAndGet();
+                    super.run(ctx);
+                }
+            };
+            call.finished = finished;
+            strategy.runnableCall(call.current, call);
+        }
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(maxActive.get(), 2);
+        Assert.assertEquals(ran.size(), 20);
+    }
+
+    /**
+     * Test that a long call of a session does not hold up its other calls.
+     */
+    public void testLongCallDoesNotBlockSession() throws Exception {
+        strategy(2, 100);
+        final Call slow = new Call("a", "slow", null);
+        slow.release = new CountDownLatch(1);
+        strategy.runnableCall(slow.current, slow);
+        Assert.assertTrue(slow.started.await(5, TimeUnit.SECONDS));
+        final Call quick = new Call("a", "quick", null);
+        quick.finished = new CountDownLatch(1);
+        strategy.runnableCall(quick.current, quick);
+        Assert.assertTrue(quick.finished.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ran, Arrays.asList("quick"));
+        slow.release.countDown();
+    }
+
+    /**
+     * Test that queued sessions take turns on a single worker.
+     */
+    public void testSessionsTakeTurns() throws Exception {
+        strategy(1, 100);
+        final CountDownLatch release = block();
+        final CountDownLatch finished = new CountDownLatch(5);
+        for (final String name : new String[] {"a1", "a2", "b1", "a3", "b2"}) {
+            final Call call = new Call(name.substring(0, 1), name, null);
+            call.finished = finished;
+            strategy.runnableCall(call.current, call);
+        }
+        release.countDown();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ran.subList(1, ran.size()),
+                Arrays.asList("a1", "b1", "a2", "b2", "a3"));
+    }
+
+    /**
+     * Test that calls beyond the queue limit are rejected with TryAgain.
+     */
+    public void testFullQueueRejects() throws Exception {
+        strategy(1, 2);
+        final CountDownLatch release = block();
+        final Client queued = new Client();
+        final Client rejected = new Client();
+        for (final Client client : new Client[] {queued, queued, rejected}) {
+            final Call call = new Call("a", "a", client);
+            strategy.runnableCall(call.current, call);
+        }
+        Assert.assertNull(queued.exception);
+        Assert.assertTrue(rejected.exception instanceof omero.TryAgain,
+                String.valueOf(rejected.exception));
+        release.countDown();
+    }
+
+    /**
+     * Test that destroying the strategy rejects queued and later calls.
+     */
+    public void testDestroyRejects() throws Exception {
+        strategy(1, 100);
+        final CountDownLatch release = block();
+        final Client queued = new Client();
+        final Call call = new Call("a", "a", queued);
+        strategy.runnableCall(call.current, call);
+        strategy.destroy();
+        Assert.assertTrue(queued.exception instanceof omero.TryAgain,
+                String.valueOf(queued.exception));
+
+        final Client late = new Client();
+        final Call lateCall = new Call("a", "late", late);
+        strategy.runnableCall(lateCall.current, lateCall);
+        Assert.assertTrue(late.exception instanceof omero.TryAgain,
+                String.valueOf(late.exception));
+        release.countDown();
+        Assert.assertFalse(ran.contains("a"));
+        Assert.assertFalse(ran.contains("late"));
+    }
+}
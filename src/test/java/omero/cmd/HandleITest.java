@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ome.services.sessions.SessionManager;
+import ome.services.util.Executor;
+import ome.services.util.ReadOnlyStatus;
+import ome.system.Principal;
+import omero.cmd.HandleI.Cancel;
+
+import net.sf.ehcache.Ehcache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the cancellation of {@link HandleI} and its notification of
+ * callbacks, with a request which needs no database.
+ * @since 5.5.7
+ */
+@Test(groups = "unit")
+public class HandleITest {
+
+    /**
+     * A request whose steps record that they ran, optionally waiting first.
+     */
+    static class TestRequest extends Request implements IRequest {
+
+        private static final long serialVersionUID = 1L;
+
+        final int steps;
+
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        volatile CountDownLatch release;
+
+        volatile long stepMillis;
+
+        volatile boolean finished;
+
+        Helper helper;
+
+        TestRequest(int steps) {
+            this.steps = steps;
+        }
+
+        public Map<String, String> getCallContext() {
+            return null;
+        }
+
+        public void init(Helper helper) throws Cancel {
+            this.helper = helper;
+            helper.allowGuests();
+            helper.setSteps(steps);
+        }
+
+        public Object step(int step) throws Cancel {
+            ran.add(step);
+            started.countDown();
+            try {
+                if (release != null) {
+                    release.await();
+                }
+                if (stepMillis > 0) {
+                    Thread.sleep(stepMillis);
+                }
+            } catch (InterruptedException ie) {
+                throw helper.cancel(new ERR(), ie, "interrupted");
+            }
+            return step;
+        }
+
+        public void finish() throws Cancel {
+            finished = true;
+        }
+
+        public void buildResponse(int step, Object object) {
+            if (helper.isLast(step)) {
+                helper.setResponseIfNull(new OK());
+            }
+        }
+
+        public Response getResponse() {
+            return helper == null ? null : helper.getResponse();
+        }
+    }
+
+    /**
+     * Records the notifications sent to a client, optionally failing them
+     * as a dead client would.
+     */
+    static class TestCallback implements InvocationHandler {
+
+        final List<Integer> steps = Collections.synchronizedList(new ArrayList<Integer>());
+
+        final List<Response> finished = Collections.synchronizedList(new ArrayList<Response>());
+
+        final Ice.Identity id;
+
+        final boolean fail;
+
+        final CmdCallbackPrx prx;
+
+        TestCallback(String name, boolean fail) {
+            this.id = new Ice.Identity(name, "callback");
+            this.fail = fail;
+            this.prx = stub(CmdCallbackPrx.class, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("toString")) {
+                return id.name;
+            } else if (name.equals("ice_getIdentity")) {
+                return id;
+            } else if (name.equals("ice_oneway")) {
+                return proxy;
+            } else if (name.equals("begin_step")) {
+                steps.add((Integer) args[0]);
+            } else if (name.equals("begin_finished")) {
+                finished.add((Response) args[0]);
+            } else {
+                return defaultValue(method);
+            }
+            if (fail) {
+                ((Ice.Callback) args[args.length - 1]).completed(
+                        stub(Ice.AsyncResult.class, new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method,
+                                    Object[] args) {
+                                if (method.getName().equals("throwLocalException")) {
+                                    throw new Ice.ConnectionLostException();
+                                }
+                                return defaultValue(method);
+                            }
+                        }));
+            }
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> iface, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(HandleITest.class.getClassLoader(),
+                new Class<?>[] {iface}, handler);
+    }
+
+    static Object defaultValue(Method method) {
+        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    }
+
+    /**
+     * A session whose executor runs the work directly, without a database.
+     */
+    static SessionI session() throws Exception {
+        return session(stub(Executor.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("execute")) {
+                    final Executor.Work work = (Executor.Work) args[args.length - 1];
+                    return work.doWork(null, null);
+                }
+                return defaultValue(method);
+            }
+        }));
+    }
+
+    /**
+     * A session with the given executor.
+     */
+    static SessionI session(Executor executor) throws Exception {
+        final Ice.Current current = new Ice.Current();
+        current.ctx = Collections.singletonMap(omero.constants.CLIENTUUID.value, "client");
+        final Ehcache cache = stub(Ehcache.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method);
+            }
+        });
+        final SessionManager manager = stub(SessionManager.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("inMemoryCache")) {
+                    return cache;
+                }
+                return defaultValue(method);
+            }
+        });
+        return new SessionI(false, current, null, null, null, manager, executor,
+                new Principal("session"), "token");
+    }
+
+    static HandleI handle(IRequest req, TestCallback... callbacks) throws Exception {
+        return handle(session(), req, callbacks);
+    }
+
+    static HandleI handle(SessionI session, IRequest req, TestCallback... callbacks)
+            throws Exception {
+        final HandleI handle = new HandleI(new ReadOnlyStatus(false, false), 500);
+        handle.setSession(session);
+        handle.initialize(new Ice.Identity("handle", "test"), req, null);
+        for (final TestCallback callback : callbacks) {
+            handle.addCallback(callback.prx, null);
+        }
+        return handle;
+    }
+
+    /**
+     * Test that a request cancelled before it runs never starts.
+     */
+    public void testCancelBeforeRun() throws Exception {
+        final TestRequest req = new TestRequest(3);
+        final TestCallback callback = new TestCallback("a", false);
+        final HandleI handle = handle(req, callback);
+        Assert.assertTrue(handle.cancel(null));
+        handle.run();
+        Assert.assertNull(req.helper);
+        Assert.assertTrue(req.ran.isEmpty());
+        Assert.assertEquals(callback.finished.size(), 1);
+        Assert.assertTrue(callback.steps.isEmpty());
+    }
+
+    /**
+     * Test that cancelling a running request waits for its current step and
+     * then stops it without running the others.
+     */
+    @Test(timeOut = 1000)
+    public void testCancelWhileRunning() throws Exception {
+        final TestRequest req = new TestRequest(3);
+        req.release = new CountDownLatch(1);
+        final TestCallback callback = new TestCallback("a", false);
+        final HandleI handle = handle(req, callback);
+        final Thread runner = new Thread(handle);
+        runner.start();
+        Assert.assertTrue(req.started.await(500, TimeUnit.MILLISECONDS));
+        final Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    // release anyway
+                }
+                req.release.countDown();
+            }
+        };
+        releaser.start();
+        Assert.assertTrue(handle.cancel(null));
+        runner.join();
+        Assert.assertEquals(req.ran, Collections.singletonList(0));
+        Assert.assertFalse(req.finished);
+        Assert.assertTrue(handle.getResponse(null) instanceof ERR);
+        Assert.assertTrue(handle.getStatus(null).flags.contains(State.CANCELLED));
+        Assert.assertFalse(callback.finished.isEmpty());
+    }
+
+    /**
+     * Test that the steps of a fast request are reported together rather
+     * than one notification per step, and that it finishes once.
+     */
+    @Test(timeOut = 1000)
+    public void testStepsAreCoalesced() throws Exception {
+        final TestRequest req = new TestRequest(20);
+        req.stepMillis = 5;
+        final TestCallback callback = new TestCallback("a", false);
+        final HandleI handle = handle(req, callback);
+        handle.run();
+        Assert.assertEquals(req.ran.size(), 20);
+        Assert.assertTrue(req.finished);
+        Assert.assertTrue(handle.getResponse(null) instanceof OK);
+        Thread.sleep(300); // for any pending step notification
+        Assert.assertTrue(callback.steps.size() <= 2, callback.steps.toString());
+        Assert.assertEquals(callback.finished.size(), 1);
+    }
+
+    /**
+     * Test that a callback which cannot be notified is not notified again
+     * while the others still are.
+     */
+    public void testFailedCallbackIsRemoved() throws Exception {
+        final TestCallback good = new TestCallback("good", false);
+        final TestCallback dead = new TestCallback("dead", true);
+        final HandleI handle = handle(new TestRequest(1), good, dead);
+        Assert.assertTrue(handle.cancel(null));
+        Assert.assertEquals(good.finished.size(), 1);
+        Assert.assertEquals(dead.finished.size(), 1);
+        handle.notifyCallbacks();
+        Assert.assertEquals(good.finished.size(), 2);
+        Assert.assertEquals(dead.finished.size(), 1);
+    }
+}
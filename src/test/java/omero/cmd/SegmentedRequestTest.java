@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.services.util.Executor;
+import omero.cmd.HandleI.Cancel;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link HandleI} runs an {@link ISegmentedRequest} in one
+ * transaction per segment and rolls back only a failing segment.
+ * @since 5.5.7
+ */
+@Test(groups = "unit")
+public class SegmentedRequestTest {
+
+    /**
+     * An executor whose transactions keep the steps recorded during work
+     * which returns and discard those recorded during work which throws.
+     */
+    static class Transactions implements InvocationHandler {
+
+        final List<Integer> committed = new ArrayList<Integer>();
+
+        final List<Integer> pending = new ArrayList<Integer>();
+
+        int count;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("execute")) {
+                return HandleITest.defaultValue(method);
+            }
+            count++;
+            pending.clear();
+            final Executor.Work work = (Executor.Work) args[args.length - 1];
+            final Object rv = work.doWork(null, null);
+            committed.addAll(pending);
+            return rv;
+        }
+    }
+
+    /**
+     * A request which may commit before every other step.
+     */
+    static class Segmented extends HandleITest.TestRequest implements ISegmentedRequest {
+
+        private static final long serialVersionUID = 1L;
+
+        final Transactions tx;
+
+        final List<Helper> resumed = new ArrayList<Helper>();
+
+        int failAt = -1;
+
+        Segmented(int steps, Transactions tx) {
+            super(steps);
+            this.tx = tx;
+        }
+
+        public boolean isCommitPoint(int step) {
+            return step % 2 == 0;
+        }
+
+        public void resume(Helper helper) throws Cancel {
+            resumed.add(helper);
+            this.helper = helper;
+        }
+
+        @Override
+        public Object step(int step) throws Cancel {
+            super.step(step);
+            tx.pending.add(step);
+            if (step == failAt) {
+                throw helper.cancel(new ERR(), null, "fail");
+            }
+            return step;
+        }
+    }
+
+    private HandleI handle(Transactions tx, Segmented req) throws Exception {
+        return HandleITest.handle(
+                HandleITest.session(HandleITest.stub(Executor.class, tx)), req);
+    }
+
+    /**
+     * Test that each segment is committed in its own transaction, that the
+     * later ones are resumed with a new helper and that the response is
+     * built from the results of all of them.
+     */
+    public void testSegmentsAreCommitted() throws Exception {
+        final Transactions tx = new Transactions();
+        final Segmented req = new Segmented(6, tx);
+        final HandleI handle = handle(tx, req);
+        handle.run();
+        Assert.assertEquals(tx.count, 3);
+        Assert.assertEquals(tx.committed, Arrays.asList(0, 1, 2, 3, 4, 5));
+        Assert.assertEquals(req.resumed.size(), 2);
+        Assert.assertNotSame(req.resumed.get(0), req.resumed.get(1));
+        Assert.assertTrue(req.finished);
+        Assert.assertTrue(handle.getResponse(null) instanceof OK);
+        Assert.assertEquals(handle.getStatus(null).parameters.get("committed-steps"), "4");
+    }
+
+    /**
+     * Test that a failing segment is rolled back while the segments before
+     * it stay committed.
+     */
+    public void testOnlyFailingSegmentIsRolledBack() throws Exception {
+        final Transactions tx = new Transactions();
+        final Segmented req = new Segmented(6, tx);
+        req.failAt = 3;
+        final HandleI handle = handle(tx, req);
+        handle.run();
+        Assert.assertEquals(tx.count, 2);
+        Assert.assertEquals(tx.committed, Arrays.asList(0, 1));
+        Assert.assertEquals(req.ran, Arrays.asList(0, 1, 2, 3));
+        Assert.assertFalse(req.finished);
+        Assert.assertTrue(handle.getResponse(null) instanceof ERR);
+        Assert.assertEquals(handle.getStatus(null).parameters.get("committed-steps"), "2");
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util.test;
+
+import static omero.rtypes.rlong;
+import static omero.rtypes.rstring;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+import omero.ClientError;
+import omero.api.IQueryPrx;
+import omero.api.RawFileStorePrx;
+import omero.api.ServiceFactoryPrx;
+import omero.client;
+import omero.model.ChecksumAlgorithm;
+import omero.model.ChecksumAlgorithmI;
+import omero.model.OriginalFile;
+import omero.model.OriginalFileI;
+import omero.model.enums.ChecksumAlgorithmSHA1160;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the resuming and checking of downloads by
+ * {@link client#download(long, File, int, int, boolean)} with stores which
+ * need no server.
+ * @since 5.5.7
+ */
+@Test(groups = "unit", timeOut = 5000)
+public class ClientDownloadTest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    /** The content of the remote file. */
+    private final byte[] remote = new byte[1000];
+
+    /** The offsets of the reads, in the order started. */
+    private final List<Long> reads = Collections.synchronizedList(new ArrayList<Long>());
+
+    private final AtomicInteger closed = new AtomicInteger();
+
+    /** The hash of the remote file as known to the server. */
+    private String hash;
+
+    /** The offset of the read which returns too few bytes, if any. */
+    private long shortReadAt;
+
+    private File file;
+
+    private client omeroClient;
+
+    /** A read in flight; also the handler of its result. */
+    private static class Read implements InvocationHandler {
+
+        final long offset;
+
+        final int length;
+
+        Read(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return defaultValue(method);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> iface, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(ClientDownloadTest.class.getClassLoader(),
+                new Class<?>[] {iface}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    }
+
+    private static String sha1(byte[] data) {
+        final ChecksumProvider cp = new ChecksumProviderFactoryImpl()
+                .getProvider(ChecksumType.SHA1);
+        cp.putBytes(data);
+        return cp.checksumAsString();
+    }
+
+    private RawFileStorePrx store() {
+        return stub(RawFileStorePrx.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("begin_read")) {
+                    final Read read = new Read((Long) args[0], (Integer) args[1]);
+                    reads.add(read.offset);
+                    return stub(Ice.AsyncResult.class, read);
+                } else if (name.equals("end_read")) {
+                    final Read read = (Read) Proxy.getInvocationHandler(args[0]);
+                    final int length = read.offset == shortReadAt
+                            ? read.length - 1 : read.length;
+                    return Arrays.copyOfRange(remote, (int) read.offset,
+                            (int) read.offset + length);
+                } else if (name.equals("close")) {
+                    closed.incrementAndGet();
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        new Random(1).nextBytes(remote);
+        hash = sha1(remote);
+        shortReadAt = -1;
+        reads.clear();
+        closed.set(0);
+        file = File.createTempFile("download", ".bin");
+        final IQueryPrx query = stub(IQueryPrx.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("findByQuery")) {
+                    final OriginalFile obj = new OriginalFileI(1L, true);
+                    obj.setSize(rlong(remote.length));
+                    obj.setHash(rstring(hash));
+                    final ChecksumAlgorithm hasher = new ChecksumAlgorithmI();
+                    hasher.setValue(rstring(ChecksumAlgorithmSHA1160.value));
+                    obj.setHasher(hasher);
+                    return obj;
+                }
+                return defaultValue(method);
+            }
+        });
+        final ServiceFactoryPrx sf = stub(ServiceFactoryPrx.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("getQueryService")) {
+                    return query;
+                } else if (name.equals("createRawFileStore")) {
+                    return store();
+                }
+                return defaultValue(method);
+            }
+        });
+        omeroClient = new client("localhost") {
+            @Override
+            public ServiceFactoryPrx getSession() {
+                return sf;
+            }
+        };
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        omeroClient.closeSession();
+        file.delete();
+    }
+
+    /**
+     * @return the sorted offsets of the reads started between the given
+     * indexes
+     */
+    private List<Long> reads(int from, int to) {
+        final List<Long> offsets = new ArrayList<Long>(reads.subList(from, to));
+        Collections.sort(offsets);
+        return offsets;
+    }
+
+    /**
+     * @return the offsets of the blocks from the given offset to the end
+     */
+    private List<Long> blocksFrom(long start) {
+        final List<Long> offsets = new ArrayList<Long>();
+        for (long offset = start; offset < remote.length; offset += BLOCK_SIZE) {
+            offsets.add(offset);
+        }
+        return offsets;
+    }
+
+    /**
+     * Test that a whole file is read with every store, in blocks, and then
+     * the stores are closed.
+     */
+    public void testDownload() throws Exception {
+        omeroClient.download(1L, file, BLOCK_SIZE, 3, false);
+        Assert.assertEquals(Files.readAllBytes(file.toPath()), remote);
+        Assert.assertEquals(reads(0, reads.size()), blocksFrom(0));
+        Assert.assertEquals(closed.get(), 3);
+    }
+
+    /**
+     * Test that resuming a partial download reads only the rest of the file.
+     */
+    public void testResumeReadsOnlyTheRest() throws Exception {
+        Files.write(file.toPath(), Arrays.copyOf(remote, 300));
+        omeroClient.download(1L, file, BLOCK_SIZE, 2, true);
+        Assert.assertEquals(Files.readAllBytes(file.toPath()), remote);
+        Assert.assertEquals(reads(0, reads.size()), blocksFrom(300));
+    }
+
+    /**
+     * Test that if the resumed file then has the wrong hash, the whole file
+     * is downloaded again.
+     */
+    public void testResumeWithBadPrefixRetries() throws Exception {
+        final byte[] partial = Arrays.copyOf(remote, 300);
+        partial[10]++;
+        Files.write(file.toPath(), partial);
+        omeroClient.download(1L, file, BLOCK_SIZE, 2, true);
+        Assert.assertEquals(Files.readAllBytes(file.toPath()), remote);
+        final int resumed = blocksFrom(300).size();
+        Assert.assertEquals(reads(0, resumed), blocksFrom(300));
+        Assert.assertEquals(reads(resumed, reads.size()), blocksFrom(0));
+    }
+
+    /**
+     * Test that a download which does not match the server's hash fails
+     * after the whole file is downloaded again.
+     */
+    public void testHashMismatchFailsAfterRetry() throws Exception {
+        hash = sha1(new byte[remote.length]);
+        Files.write(file.toPath(), Arrays.copyOf(remote, 300));
+        try {
+            omeroClient.download(1L, file, BLOCK_SIZE, 2, true);
+            Assert.fail("must throw");
+        } catch (ClientError ce) {
+            // good
+        }
+        Assert.assertEquals(reads.size(),
+                blocksFrom(300).size() + blocksFrom(0).size());
+        Assert.assertEquals(closed.get(), 2);
+    }
+
+    /**
+     * Test that a read which returns fewer bytes than asked for fails the
+     * download rather than leaving a gap in the file.
+     */
+    public void testShortReadFails() throws Exception {
+        shortReadAt = 2 * BLOCK_SIZE;
+        try {
+            omeroClient.download(1L, file, BLOCK_SIZE, 2, false);
+            Assert.fail("must throw");
+        } catch (ClientError ce) {
+            Assert.assertTrue(ce.getMessage().contains("at " + shortReadAt),
+                    ce.getMessage());
+        }
+        Assert.assertTrue(file.length() <= shortReadAt, Long.toString(file.length()));
+        Assert.assertEquals(closed.get(), 2);
+    }
+}
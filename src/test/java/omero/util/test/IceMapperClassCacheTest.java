@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util.test;
+
+import ome.model.core.Image;
+import omero.ApiUsageException;
+import omero.util.IceMapper;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the caching of class names by {@link IceMapper#omeroClass(String, boolean)}.
+ * Filling the cache of unresolvable names takes a while, hence the longer
+ * time-out.
+ * @since 5.5.7
+ */
+@Test(groups = "unit", timeOut = 30000)
+public class IceMapperClassCacheTest {
+
+    /**
+     * Test that each form of a model class name resolves to the class and
+     * that later lookups are answered from the cache.
+     */
+    public void testValidNamesAreCached() throws Exception {
+        Assert.assertEquals(IceMapper.omeroClass("Image", true), Image.class);
+        Assert.assertEquals(IceMapper.omeroClass("omero.model.ImageI", true), Image.class);
+        Assert.assertEquals(IceMapper.omeroClass("ome.model.core.Image", true), Image.class);
+        final long misses = IceMapper.getClassCacheMisses();
+        final long hits = IceMapper.getClassCacheHits();
+        Assert.assertEquals(IceMapper.omeroClass("Image", false), Image.class);
+        Assert.assertEquals(IceMapper.omeroClass("omero.model.ImageI", false), Image.class);
+        Assert.assertEquals(IceMapper.getClassCacheMisses(), misses);
+        Assert.assertEquals(IceMapper.getClassCacheHits(), hits + 2);
+    }
+
+    /**
+     * Test that a name which does not resolve is looked up only once.
+     */
+    public void testInvalidNamesAreCached() throws Exception {
+        Assert.assertNull(IceMapper.omeroClass("NoSuchClass", false));
+        final long misses = IceMapper.getClassCacheMisses();
+        final long hits = IceMapper.getClassCacheHits();
+        Assert.assertNull(IceMapper.omeroClass("NoSuchClass", false));
+        Assert.assertNull(IceMapper.omeroClass(null, false));
+        Assert.assertEquals(IceMapper.getClassCacheMisses(), misses);
+        Assert.assertEquals(IceMapper.getClassCacheHits(), hits + 2);
+    }
+
+    /**
+     * Test that a cached invalid name still fails a strict lookup.
+     */
+    @Test(expectedExceptions = ApiUsageException.class)
+    public void testCachedInvalidNameIsStillRejected() throws Exception {
+        Assert.assertNull(IceMapper.omeroClass("NoSuchStrictClass", false));
+        IceMapper.omeroClass("NoSuchStrictClass", true);
+    }
+
+    /**
+     * Test that once {@link IceMapper#MAX_UNRESOLVED} invalid names are
+     * cached, further ones are looked up every time while valid names are
+     * still answered from the cache.
+     */
+    @Test(dependsOnMethods = {"testInvalidNamesAreCached",
+            "testCachedInvalidNameIsStillRejected"})
+    public void testUnresolvedNamesAreBounded() throws Exception {
+        for (int i = 0; i < IceMapper.MAX_UNRESOLVED; i++) {
+            Assert.assertNull(IceMapper.omeroClass("NoSuchClass" + i, false));
+        }
+        final long misses = IceMapper.getClassCacheMisses();
+        Assert.assertNull(IceMapper.omeroClass("NoSuchClassBeyondLimit", false));
+        Assert.assertNull(IceMapper.omeroClass("NoSuchClassBeyondLimit", false));
+        Assert.assertEquals(IceMapper.getClassCacheMisses(), misses + 2);
+
+        final long hits = IceMapper.getClassCacheHits();
+        Assert.assertNull(IceMapper.omeroClass("NoSuchClass", false));
+        Assert.assertEquals(IceMapper.omeroClass("Image", false), Image.class);
+        Assert.assertEquals(IceMapper.getClassCacheMisses(), misses + 2);
+        Assert.assertEquals(IceMapper.getClassCacheHits(), hits + 2);
+    }
+}
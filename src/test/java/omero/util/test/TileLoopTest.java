@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import omero.util.TileData;
+import omero.util.TileLoop;
+import omero.util.TileLoopIteration;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the parallel {@link TileLoop} visits the same tiles as the
+ * sequential one.
+ */
+@Test(groups = "unit", timeOut = 30000)
+public class TileLoopTest {
+
+    private static class Loop extends TileLoop {
+
+        final List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public TileData createData() {
+            return data("first");
+        }
+
+        @Override
+        protected TileData createWorkerData() {
+            return data("worker");
+        }
+
+        private TileData data(final String name) {
+            return new TileData() {
+                public byte[] getTile(int z, int c, int t, int x, int y, int w, int h) {
+                    return null;
+                }
+                public void setTile(byte[] buffer, int z, int c, int t, int x, int y, int w, int h) {
+                }
+                public void close() {
+                    closed.add(name);
+                }
+            };
+        }
+    }
+
+    private static Set<String> visit(Loop loop, int workers) {
+        final Set<String> tiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final int count = loop.forEachTile(100, 70, 2, 3, 2, 32, 32, workers, new TileLoopIteration() {
+            public void run(TileData data, int z, int c, int t, int x, int y,
+                    int tileWidth, int tileHeight, int tileCount) {
+                Assert.assertTrue(tiles.add(tileCount + ":" + z + "," + c + "," + t
+                        + "," + x + "," + y + "," + tileWidth + "," + tileHeight));
+            }
+        });
+        Assert.assertEquals(count, tiles.size());
+        return tiles;
+    }
+
+    @Test
+    public void testParallelVisitsSameTiles() {
+        final Set<String> sequential = visit(new Loop(), 1);
+        Assert.assertEquals(sequential.size(), 4 * 3 * 2 * 3 * 2);
+        final Loop loop = new Loop();
+        Assert.assertEquals(visit(loop, 5), sequential);
+        Assert.assertEquals(loop.closed.size(), 5);
+        Assert.assertEquals(loop.closed.get(4), "first");
+    }
+
+    /**
+     * Test that a failing worker stops the others at once, even those whose
+     * results are collected before its own.
+     */
+    @Test
+    public void testFailureStopsOtherWorkers() {
+        final Loop loop = new Loop();
+        final AtomicInteger visited = new AtomicInteger();
+        try {
+            loop.forEachTile(1000, 1000, 1, 1, 1, 10, 10, 2, new TileLoopIteration() {
+                public void run(TileData data, int z, int c, int t, int x, int y,
+                        int tileWidth, int tileHeight, int tileCount) {
+                    if (tileCount == 1) {
+                        throw new IllegalStateException("tile 1");
+                    }
+                    visited.incrementAndGet();
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            Assert.fail("must throw");
+        } catch (IllegalStateException ise) {
+            Assert.assertEquals(ise.getMessage(), "tile 1");
+        }
+        Assert.assertTrue(visited.get() < 100, Integer.toString(visited.get()));
+        Assert.assertEquals(loop.closed.size(), 2);
+    }
+}